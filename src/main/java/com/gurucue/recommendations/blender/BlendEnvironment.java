@@ -35,6 +35,10 @@ public final class BlendEnvironment {
     public final ConsumerEntity consumer;
     public final long requestTimestampMillis;
     public final boolean debug;
+    /** The deadline of the blend, in terms of {@link System#nanoTime()}, valid only when {@link #hasDeadline}. */
+    public final long deadlineNanos;
+    /** Whether the blend has a deadline, by which optional stages of DataSets given it are degraded, see {@link DataSet#deadline(BlendEnvironment)}. */
+    public final boolean hasDeadline;
 
     /**
      * Constructs the environment for a blender from the given arguments.
@@ -45,7 +49,7 @@ public final class BlendEnvironment {
      * @param partner the partner for which to make a DataSet
      * @param consumer the consumer for which to make a DataSet
      * @param requestTimestampMillis the timestamp at which the blend is occurring
-     * @param debug whether the blender should generate logs for debugging purposes
+     * @param debug whether the blender should generate logs for debugging purposes, see {@link BlendTrace}
      */
     public BlendEnvironment(
             final DataProvider dataProvider,
@@ -55,6 +59,48 @@ public final class BlendEnvironment {
             final ConsumerEntity consumer,
             final long requestTimestampMillis,
             final boolean debug
+    ) {
+        this(dataProvider, recommenderProvider, transaction, partner, consumer, requestTimestampMillis, debug, 0L, false);
+    }
+
+    /**
+     * Constructs the environment for a blender from the given arguments,
+     * for a blend that should finish within the given time budget.
+     * Optional stateful filters are degraded when the budget is exhausted.
+     *
+     * @param dataProvider the database provider
+     * @param recommenderProvider the recommender provider
+     * @param transaction the transaction to use for database operations
+     * @param partner the partner for which to make a DataSet
+     * @param consumer the consumer for which to make a DataSet
+     * @param requestTimestampMillis the timestamp at which the blend is occurring
+     * @param debug whether the blender should generate logs for debugging purposes, see {@link BlendTrace}
+     * @param budgetMillis the time budget of the blend, from now, in milliseconds
+     * @throws IllegalArgumentException if the budget is negative
+     */
+    public BlendEnvironment(
+            final DataProvider dataProvider,
+            final RecommenderProvider recommenderProvider,
+            final Transaction transaction,
+            final Partner partner,
+            final ConsumerEntity consumer,
+            final long requestTimestampMillis,
+            final boolean debug,
+            final long budgetMillis
+    ) {
+        this(dataProvider, recommenderProvider, transaction, partner, consumer, requestTimestampMillis, debug, System.nanoTime() + (checkBudget(budgetMillis) * 1000000L), true);
+    }
+
+    private BlendEnvironment(
+            final DataProvider dataProvider,
+            final RecommenderProvider recommenderProvider,
+            final Transaction transaction,
+            final Partner partner,
+            final ConsumerEntity consumer,
+            final long requestTimestampMillis,
+            final boolean debug,
+            final long deadlineNanos,
+            final boolean hasDeadline
     ) {
         this.dataProvider = dataProvider;
         this.recommenderProvider = recommenderProvider;
@@ -63,5 +109,38 @@ public final class BlendEnvironment {
         this.consumer = consumer;
         this.requestTimestampMillis = requestTimestampMillis;
         this.debug = debug;
+        this.deadlineNanos = deadlineNanos;
+        this.hasDeadline = hasDeadline;
+    }
+
+    private static long checkBudget(final long budgetMillis) {
+        if (budgetMillis < 0L) throw new IllegalArgumentException("The time budget must not be negative: " + budgetMillis);
+        return budgetMillis;
+    }
+
+    /**
+     * Begins tracing the blend of this environment on the current thread,
+     * recording events if the blend is debugged. The returned trace must
+     * be closed when the blend ends:
+     * <pre>
+     * try (final BlendTrace trace = environment.beginTrace()) {
+     *     ...
+     * }
+     * </pre>
+     *
+     * @return the trace of the blend
+     * @see BlendTrace#begin(boolean)
+     */
+    public BlendTrace beginTrace() {
+        return BlendTrace.begin(debug);
+    }
+
+    /**
+     * Returns the time remaining until the deadline of the blend.
+     *
+     * @return the remaining time in nanoseconds, negative after the deadline, or <code>Long.MAX_VALUE</code> if there is no deadline
+     */
+    public long remainingNanos() {
+        return hasDeadline ? deadlineNanos - System.nanoTime() : Long.MAX_VALUE;
     }
 }
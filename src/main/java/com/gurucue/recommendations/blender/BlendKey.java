@@ -0,0 +1,76 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Identifies a blend request by its data class, partner, consumer,
+ * blender name and input parameters, and by the catalogue version and the
+ * time bucket, where these matter to the user of the key.
+ *
+ * @see CachingTopBlender
+ * @see CoalescingTopBlender
+ */
+final class BlendKey {
+    final Class<?> dataClass;
+    final long partnerId;
+    final long consumerId;
+    final String blenderName;
+    final Map<String, Object> input;
+    final long catalogueVersion;
+    final long bucket;
+    final int hash;
+
+    BlendKey(final Class<?> dataClass, final BlendEnvironment environment, final BlendParameters parameters, final long catalogueVersion, final long bucket) {
+        this.dataClass = dataClass;
+        this.partnerId = environment.partner == null ? -1L : environment.partner.getId();
+        this.consumerId = environment.consumer == null ? -1L : environment.consumer.id;
+        this.blenderName = parameters.blenderName;
+        this.input = parameters.input == null ? null : new HashMap<>(parameters.input); // the caller may reuse its map
+        this.catalogueVersion = catalogueVersion;
+        this.bucket = bucket;
+        int h = dataClass.hashCode();
+        h = (31 * h) + (int) (partnerId ^ (partnerId >>> 32));
+        h = (31 * h) + (int) (consumerId ^ (consumerId >>> 32));
+        h = (31 * h) + (blenderName == null ? 0 : blenderName.hashCode());
+        h = (31 * h) + (input == null ? 0 : input.hashCode());
+        h = (31 * h) + (int) (catalogueVersion ^ (catalogueVersion >>> 32));
+        h = (31 * h) + (int) (bucket ^ (bucket >>> 32));
+        this.hash = h;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof BlendKey)) return false;
+        final BlendKey other = (BlendKey) obj;
+        return (hash == other.hash) && (dataClass == other.dataClass) && (partnerId == other.partnerId) &&
+                (consumerId == other.consumerId) && (catalogueVersion == other.catalogueVersion) &&
+                (bucket == other.bucket) &&
+                (blenderName == null ? other.blenderName == null : blenderName.equals(other.blenderName)) &&
+                (input == null ? other.input == null : input.equals(other.input));
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
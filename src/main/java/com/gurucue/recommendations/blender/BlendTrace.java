@@ -0,0 +1,295 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+import java.util.Arrays;
+
+/**
+ * Records the course of a blend as fixed-size events in a buffer of the
+ * blend, so tracing allocates only when the buffer grows. Events are
+ * rendered into text only when a
+ * {@link DataSet#writeLog(StringBuilder) log is written}.
+ * <p>
+ * A blend begins its trace with {@link #begin(boolean)} and ends it by
+ * {@link #close() closing} the trace, in a <code>finally</code> block or
+ * with try-with-resources. Between the two the trace is the current trace
+ * of the thread, and DataSets created or modified on the thread record
+ * their events in it. Outside of such a trace, and in blends that are not
+ * debugged, events are recorded only for DataSets of a debugged
+ * {@link DataSet#environment(BlendEnvironment) environment}, while the
+ * text of explicit {@link DataSet#log(String) logs} is always kept. Both
+ * go to a detached trace shared by a DataSet and the DataSets derived from
+ * it on the same thread, and dropped with them, so nothing is allocated
+ * for tracing otherwise. Blends may nest: the inner blend has its
+ * own trace, and the outer blend's trace becomes current again when the
+ * inner one ends. Each debugged blend has its own buffer, so the logs of
+ * its DataSets remain readable after the blend ends, e.g. when a result
+ * is cached, for as long as the DataSets are reachable.
+ * Every event points to the event before it in the log of its DataSet,
+ * so DataSets derived from the same DataSet share the common part of
+ * their logs without copying it.
+ */
+public final class BlendTrace implements AutoCloseable {
+    // event types
+    static final int LOG = 0; // subject: a LoggingSupport or a CharSequence
+    static final int CREATED = 1; // a: items, x: ns
+    static final int CHAIN_BEGIN = 2;
+    static final int CHAIN_END = 3; // x: ns
+    static final int STATEFUL = 4; // subject: the filter, x: ns
+    static final int SORTED = 5; // x: ns
+    static final int TOP = 6; // a: selected, b: of items, x: ns
+    static final int TOP_BY_SCORE = 7; // a: selected, b: of items, x: ns
+    static final int BUILT_TV_AND_VIDEO = 8; // a: tv-programmes, b: videos, x: tv-programme ns, y: video ns
+    static final int BUILT_VIDEO = 9; // a: items, x: ns
+    static final int BUILT_TV = 10; // a: items, x: ns
+    static final int BUILT_PROVIDED = 11; // a: items, x: ns
+    static final int OVERLAID = 12; // subject: the CatalogueSnapshot, a: tv-programmes, b: videos, x: tv-programme ns, y: video ns
+    static final int BUILT_TV_AND_VIDEO_CONCURRENTLY = 13; // a: tv-programmes, b: videos, x: tv-programme ns, y: total ns
+    static final int DEGRADED = 14; // subject: the filter, x: remaining ns, y: ns
+    static final int GROUP_LIMITED = 15; // a: retained, b: of items, x: ns
+    static final int MERGED = 16; // a: items, b: DataSets, x: ns
+    static final int SLICED = 17; // a: items, b: from position, x: ns
+    static final int STATIC_FILTERED = 18; // subject: the catalogue-static filter, a: items with precomputed results, b: of them rejected
+
+    private static final int INITIAL_CAPACITY = 64;
+    /** When the buffer is full, the recording starts over, as if a new blend began. */
+    static final int MAX_EVENTS = 1 << 14;
+
+    /** The trace outside of blends, which records nothing. */
+    private static final BlendTrace OFF = new BlendTrace(false, null, null);
+    private static final ThreadLocal<BlendTrace> traces = new ThreadLocal<>();
+
+    private final boolean enabled;
+    private final BlendTrace outer; // the trace of the enclosing blend, current again when this one ends
+    private final Thread owner; // the thread recording in a detached trace, null for the trace of a blend
+    private volatile int epoch = 0; // incremented whenever recorded events are discarded
+    private int size = 0;
+    // allocated with the first event
+    private int[] type = null;
+    private int[] previous = null;
+    private Object[] subject = null;
+    private int[] a = null;
+    private int[] b = null;
+    private long[] x = null;
+    private long[] y = null;
+
+    private BlendTrace(final boolean enabled, final BlendTrace outer, final Thread owner) {
+        this.enabled = enabled;
+        this.outer = outer;
+        this.owner = owner;
+    }
+
+    /**
+     * Returns the trace of the blend in progress on the current thread, or
+     * a trace that records nothing if there is none.
+     *
+     * @return the current thread's trace
+     */
+    public static BlendTrace current() {
+        final BlendTrace t = traces.get();
+        return t == null ? OFF : t;
+    }
+
+    /**
+     * Begins tracing a new blend on the current thread. The returned trace
+     * must be {@link #close() closed} when the blend ends.
+     *
+     * @param debug whether to record events, if not the logs of DataSets contain only what is explicitly logged
+     * @return the trace of the new blend
+     */
+    public static BlendTrace begin(final boolean debug) {
+        final BlendTrace trace = new BlendTrace(debug, traces.get(), null);
+        traces.set(trace);
+        return trace;
+    }
+
+    /**
+     * Creates a trace for DataSets recording outside of a traced blend,
+     * which is never current: only the calling thread may record in it.
+     */
+    static BlendTrace detached() {
+        return new BlendTrace(true, null, Thread.currentThread());
+    }
+
+    /**
+     * Whether this is a detached trace in which the given thread records.
+     */
+    boolean isDetachedIn(final Thread thread) {
+        return owner == thread;
+    }
+
+    /**
+     * Ends the blend of this trace, making the trace of the enclosing
+     * blend current again, if there is one. The recorded events remain
+     * available to the logs of DataSets.
+     *
+     * @throws IllegalStateException if this is not the current trace of the thread, i.e. an inner blend has not ended
+     */
+    @Override
+    public void close() {
+        if (traces.get() != this) throw new IllegalStateException("Ending a blend trace that is not the current trace of the thread");
+        if (outer == null) traces.remove();
+        else traces.set(outer);
+    }
+
+    /**
+     * Whether events are recorded.
+     *
+     * @return whether tracing is enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    int epoch() {
+        return epoch;
+    }
+
+    private void reset() {
+        Arrays.fill(subject, 0, size, null); // don't keep filters and snapshots alive
+        size = 0;
+        epoch++;
+    }
+
+    /**
+     * Appends an event to the log ending with the given event. Must be
+     * invoked from the thread of the blend, or of a detached trace. If the buffer is full, the recording
+     * starts over and the event begins a new log, so the caller must
+     * re-read the epoch.
+     *
+     * @return the index of the appended event, the new end of the log
+     */
+    int append(final int previousEvent, final int eventType, final Object eventSubject, final int eventA, final int eventB, final long eventX, final long eventY) {
+        int i = size;
+        int p = previousEvent;
+        if (type == null) {
+            type = new int[INITIAL_CAPACITY];
+            previous = new int[INITIAL_CAPACITY];
+            subject = new Object[INITIAL_CAPACITY];
+            a = new int[INITIAL_CAPACITY];
+            b = new int[INITIAL_CAPACITY];
+            x = new long[INITIAL_CAPACITY];
+            y = new long[INITIAL_CAPACITY];
+        }
+        else if (i >= MAX_EVENTS) {
+            reset(); // the log of the DataSet appending this event is lost with the rest
+            i = 0;
+            p = -1;
+        }
+        else if (i >= type.length) {
+            final int capacity = Math.min(i << 1, MAX_EVENTS);
+            type = Arrays.copyOf(type, capacity);
+            previous = Arrays.copyOf(previous, capacity);
+            subject = Arrays.copyOf(subject, capacity);
+            a = Arrays.copyOf(a, capacity);
+            b = Arrays.copyOf(b, capacity);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+        }
+        type[i] = eventType;
+        previous[i] = p;
+        subject[i] = eventSubject;
+        a[i] = eventA;
+        b[i] = eventB;
+        x[i] = eventX;
+        y[i] = eventY;
+        size = i + 1;
+        return i;
+    }
+
+    /**
+     * Renders the log ending with the given event, in the order of
+     * recording.
+     */
+    void render(final int lastEvent, final StringBuilder output) {
+        int n = 0;
+        for (int i = lastEvent; i >= 0; i = previous[i]) n++;
+        final int[] events = new int[n];
+        for (int i = lastEvent; i >= 0; i = previous[i]) events[--n] = i;
+        for (final int i : events) render(type[i], subject[i], a[i], b[i], x[i], y[i], output);
+    }
+
+    /**
+     * Renders the given event.
+     */
+    static void render(final int eventType, final Object eventSubject, final int eventA, final int eventB, final long eventX, final long eventY, final StringBuilder output) {
+        switch (eventType) {
+            case LOG:
+                if (eventSubject instanceof LoggingSupport) ((LoggingSupport) eventSubject).writeLog(output);
+                else output.append((CharSequence) eventSubject);
+                break;
+            case CREATED:
+                output.append("----- DataSet created from ").append(eventA).append(" items in ").append(eventX).append(" ns\n");
+                break;
+            case CHAIN_BEGIN:
+                output.append("----- Stateless filtering chain begins\n");
+                break;
+            case CHAIN_END:
+                output.append("----- Stateless filtering chain done, timing: ").append(eventX).append(" ns\n");
+                break;
+            case STATEFUL:
+                output.append("----- Stateful filter ").append(eventSubject.getClass().getSimpleName()).append(" done, timing: ").append(eventX).append(" ns\n");
+                break;
+            case SORTED:
+                output.append("----- Sorting done, timing: ").append(eventX).append(" ns\n");
+                break;
+            case TOP:
+                output.append("----- Top ").append(eventA).append(" of ").append(eventB).append(" items selected, timing: ").append(eventX).append(" ns\n");
+                break;
+            case TOP_BY_SCORE:
+                output.append("----- Top ").append(eventA).append(" of ").append(eventB).append(" items selected by score, timing: ").append(eventX).append(" ns\n");
+                break;
+            case BUILT_TV_AND_VIDEO:
+                output.append("----- Building tv-programme data from ").append(eventA).append(" items: ").append(eventX).append(" ns, building video data from ").append(eventB).append(" items: ").append(eventY).append(" ns\n");
+                break;
+            case BUILT_VIDEO:
+                output.append("----- Building video data from ").append(eventA).append(" items: ").append(eventX).append(" ns\n");
+                break;
+            case BUILT_TV:
+                output.append("----- Building tv-programme data from ").append(eventA).append(" items: ").append(eventX).append(" ns\n");
+                break;
+            case BUILT_PROVIDED:
+                output.append("----- Building data from provided products into a dataset of ").append(eventA).append(" items: ").append(eventX).append(" ns\n");
+                break;
+            case OVERLAID:
+                output.append("----- Overlaying catalogue snapshot version ").append(((CatalogueSnapshot) eventSubject).version).append(": tv-programme data from ").append(eventA).append(" items: ").append(eventX).append(" ns, video data from ").append(eventB).append(" items: ").append(eventY).append(" ns\n");
+                break;
+            case BUILT_TV_AND_VIDEO_CONCURRENTLY:
+                output.append("----- Building tv-programme data from ").append(eventA).append(" items: ").append(eventX).append(" ns, concurrently with video data from ").append(eventB).append(" items, total with merging: ").append(eventY).append(" ns\n");
+                break;
+            case DEGRADED:
+                output.append("----- Optional stateful filter ").append(eventSubject.getClass().getSimpleName()).append(" degraded with ").append(eventX).append(" ns of the time budget remaining, timing: ").append(eventY).append(" ns\n");
+                break;
+            case GROUP_LIMITED:
+                output.append("----- Limiting items per group retained ").append(eventA).append(" of ").append(eventB).append(" items, timing: ").append(eventX).append(" ns\n");
+                break;
+            case MERGED:
+                output.append("----- Merged ").append(eventA).append(" items from ").append(eventB).append(" DataSets, timing: ").append(eventX).append(" ns\n");
+                break;
+            case SLICED:
+                output.append("----- Sliced ").append(eventA).append(" items from position ").append(eventB).append(", timing: ").append(eventX).append(" ns\n");
+                break;
+            case STATIC_FILTERED:
+                output.append("----- Catalogue-static filter ").append(eventSubject.getClass().getSimpleName()).append(" applied from precomputed results to ").append(eventA).append(" items, rejecting ").append(eventB).append("\n");
+                break;
+            default:
+                output.append("----- Unknown trace event ").append(eventType).append("\n");
+        }
+    }
+}
@@ -33,6 +33,8 @@ public final class BlenderResult<V extends DataValue> {
     public final String blenderName;
     /** Any feedback emitted by the blender. */
     public final Map<String, Object> blenderFeedback;
+    /** The cursor of the next page of a paged result, or null if there are no more pages, see {@link BlenderResultStore}. */
+    public final String nextCursor;
 
     /**
      * Constructs the blender result.
@@ -45,6 +47,22 @@ public final class BlenderResult<V extends DataValue> {
         this.dataSet = dataSet;
         this.blenderName = blenderName;
         this.blenderFeedback = blenderFeedback == null ? Collections.emptyMap() : blenderFeedback;
+        this.nextCursor = null;
+    }
+
+    /**
+     * Constructs a page of a paged blender result.
+     *
+     * @param dataSet dataset of the page
+     * @param blenderName the name of the blender creating the result
+     * @param blenderFeedback any feedback emitted by the blender
+     * @param nextCursor the cursor of the next page, or null if this is the last page
+     */
+    public BlenderResult(final DataSet<V> dataSet, final String blenderName, final Map<String, Object> blenderFeedback, final String nextCursor) {
+        this.dataSet = dataSet;
+        this.blenderName = blenderName;
+        this.blenderFeedback = blenderFeedback == null ? Collections.emptyMap() : blenderFeedback;
+        this.nextCursor = nextCursor;
     }
 
     /**
@@ -56,6 +74,29 @@ public final class BlenderResult<V extends DataValue> {
         this.dataSet = dataSet;
         this.blenderName = blenderName;
         this.blenderFeedback = new HashMap<>();
+        this.nextCursor = null;
+    }
+
+    /**
+     * Returns a copy of this result, with a copy-on-write clone of the
+     * DataSet and a copy of the feedback, for handing the same result to
+     * several callers. The items are shared.
+     *
+     * @return the copy of this result
+     */
+    public BlenderResult<V> copy() {
+        return new BlenderResult<>(new DataSet<>(dataSet), blenderName, new HashMap<>(blenderFeedback), nextCursor);
+    }
+
+    /**
+     * Returns a copy of this result like {@link #copy()}, but with copies
+     * of the items as well, see {@link DataSet#withCopiedItems()}, so
+     * the recipient may modify the items without affecting this result.
+     *
+     * @return the copy of this result and its items
+     */
+    public BlenderResult<V> deepCopy() {
+        return new BlenderResult<>(dataSet.withCopiedItems(), blenderName, new HashMap<>(blenderFeedback), nextCursor);
     }
 
     /**
@@ -0,0 +1,127 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retains complete blender results, so that clients paging through a long
+ * row get the following pages by slicing the retained result instead of
+ * blending again. The first page of a result is returned with an opaque
+ * cursor in {@link BlenderResult#nextCursor}, with which the client
+ * requests the next page. A result is dropped when it was not accessed for
+ * the given time, or when the store is full; a request with its cursor
+ * then gets <code>null</code> and must blend again. Cursors are random,
+ * so they cannot be guessed from other cursors. The instance is
+ * thread-safe.
+ */
+public final class BlenderResultStore {
+    private final Cache<String, BlenderResult<?>> results;
+
+    /**
+     * Constructs an empty store.
+     *
+     * @param ttlMillis for how long a result is retained after it was last accessed, in milliseconds
+     * @param maximumSize the maximum number of retained results
+     */
+    public BlenderResultStore(final long ttlMillis, final long maximumSize) {
+        results = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(ttlMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Returns the first page of the given result, retaining the result if
+     * it has more pages.
+     *
+     * @param result the complete, sorted, result of a blender
+     * @param pageSize the number of items in a page
+     * @param <V> the type of items
+     * @return the first page, with the cursor of the next page if there is one
+     */
+    public <V extends DataValue> BlenderResult<V> firstPage(final BlenderResult<V> result, final int pageSize) {
+        if (pageSize <= 0) throw new IllegalArgumentException("The page size must be positive: " + pageSize);
+        final DataSet<V> dataSet = result.dataSet;
+        if (dataSet.size() <= pageSize) return result;
+        final String id = UUID.randomUUID().toString();
+        final BlenderResult<V> retained = new BlenderResult<>(dataSet.readOnlyView(), result.blenderName, new HashMap<>(result.blenderFeedback));
+        results.put(id, retained);
+        return page(id, retained, 0, pageSize);
+    }
+
+    /**
+     * Returns the page of a retained result at the given cursor.
+     *
+     * @param cursor the cursor of the page, as returned with the previous page
+     * @param pageSize the number of items in a page, it may differ from the previous pages
+     * @param <V> the type of items, must be the same as of the retained result
+     * @return the page, with the cursor of the next page if there is one, or null if the result is no longer retained
+     */
+    @SuppressWarnings("unchecked")
+    public <V extends DataValue> BlenderResult<V> page(final String cursor, final int pageSize) {
+        if (pageSize <= 0) throw new IllegalArgumentException("The page size must be positive: " + pageSize);
+        if (cursor == null) return null;
+        final int separator = cursor.lastIndexOf(':');
+        if (separator <= 0) return null;
+        final int from;
+        try {
+            from = Integer.parseInt(cursor.substring(separator + 1));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+        if (from < 0) return null;
+        final String id = cursor.substring(0, separator);
+        final BlenderResult<V> retained = (BlenderResult<V>) results.getIfPresent(id);
+        if (retained == null) return null;
+        return page(id, retained, from, pageSize);
+    }
+
+    private static <V extends DataValue> BlenderResult<V> page(final String id, final BlenderResult<V> retained, final int from, final int pageSize) {
+        final DataSet<V> all = retained.dataSet;
+        final int next = from + pageSize;
+        return new BlenderResult<>(
+                all.slice(from, pageSize), retained.blenderName, new HashMap<>(retained.blenderFeedback),
+                next < all.size() ? id + ":" + next : null
+        );
+    }
+
+    /**
+     * Discards all retained results.
+     */
+    public void invalidateAll() {
+        results.invalidateAll();
+    }
+
+    /**
+     * The number of retained results, including any that have expired but
+     * were not yet evicted.
+     *
+     * @return the number of retained results
+     */
+    public long size() {
+        return results.size();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.gurucue.recommendations.ResponseException;
+import com.gurucue.recommendations.entity.Partner;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * A {@link TopBlender} that caches the results of another TopBlender, so
+ * repeated requests, e.g. a consumer refreshing a page or many devices
+ * starting at once, are served from memory. A result is reused for
+ * requests with the same partner, consumer, blender name, data class and
+ * input parameters, while the partner's catalogue version does not change
+ * and the request time stays within the same time bucket. The cache holds
+ * at most the given number of results, and drops a result after its time
+ * bucket passes.
+ * <p>
+ * The cache keeps its own copies of the items of a result, and each
+ * request gets its own copies, see {@link BlenderResult#deepCopy()}, so
+ * callers may modify the items of their results. Changes of a consumer's
+ * data, such as consumer events, must be reported with
+ * {@link #invalidateConsumer(long)}, which also keeps the results of
+ * blends in progress for the consumer from being cached, as they may
+ * predate the change. Requests in debug mode bypass the
+ * cache, so their logs are complete, and are traced, see
+ * {@link BlendEnvironment#beginTrace()}.
+ */
+public final class CachingTopBlender implements TopBlender {
+    private final TopBlender delegate;
+    private final ToLongFunction<Partner> catalogueVersion;
+    private final long bucketMillis;
+    private final Cache<BlendKey, BlenderResult<?>> cache;
+    private final ConcurrentHashMap<Long, ConsumerResults> consumers = new ConcurrentHashMap<>(); // the cached results and blends in progress of each consumer
+    private final ConcurrentLinkedQueue<BlendKey> discarded = new ConcurrentLinkedQueue<>(); // keys of discarded results, unindexed outside of updates of consumers
+
+    /**
+     * Constructs a cache in front of the given TopBlender.
+     *
+     * @param delegate the TopBlender whose results to cache
+     * @param catalogueVersion returns the current version of a partner's catalogue, e.g. {@link CatalogueSnapshots#version(Partner)}
+     * @param bucketMillis the length of a time bucket, a result is only reused for requests within its bucket
+     * @param maximumSize the maximum number of cached results
+     */
+    public CachingTopBlender(final TopBlender delegate, final ToLongFunction<Partner> catalogueVersion, final long bucketMillis, final long maximumSize) {
+        if (bucketMillis <= 0L) throw new IllegalArgumentException("The time bucket length must be positive: " + bucketMillis);
+        this.delegate = delegate;
+        this.catalogueVersion = catalogueVersion;
+        this.bucketMillis = bucketMillis;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(bucketMillis, TimeUnit.MILLISECONDS)
+                .removalListener((final RemovalNotification<BlendKey, BlenderResult<?>> notification) -> {
+                    // the cache notifies from within put() and invalidateAll(), which are invoked while updating consumers
+                    if (notification.getCause() != RemovalCause.REPLACED) discarded.add(notification.getKey());
+                })
+                .build();
+    }
+
+    @Override
+    public <V extends DataValue> BlenderResult<V> blend(
+            final Class<V> dataClass,
+            final BlendEnvironment environment,
+            final BlendParameters parameters
+    ) throws ResponseException {
+        if (environment.debug) {
+            final BlendTrace trace = environment.beginTrace();
+            try {
+                return delegate.blend(dataClass, environment, parameters);
+            }
+            finally {
+                trace.close();
+            }
+        }
+        final BlendKey key = new BlendKey(dataClass, environment, parameters, catalogueVersion.applyAsLong(environment.partner), environment.requestTimestampMillis / bucketMillis);
+        @SuppressWarnings("unchecked")
+        final BlenderResult<V> cached = (BlenderResult<V>) cache.getIfPresent(key);
+        if (cached != null) return cached.deepCopy();
+        final long[] generation = new long[1];
+        consumers.compute(key.consumerId, (final Long consumerId, final ConsumerResults results) -> {
+            final ConsumerResults r = results == null ? new ConsumerResults() : results;
+            r.blending++;
+            generation[0] = r.generation;
+            return r;
+        });
+        BlenderResult<?> stored = null;
+        try {
+            final BlenderResult<V> result = delegate.blend(dataClass, environment, parameters);
+            if ((result != null) && (result.dataSet != null)) {
+                final BlenderResult<V> copy = result.deepCopy();
+                stored = new BlenderResult<>(copy.dataSet.readOnlyView(), copy.blenderName, copy.blenderFeedback);
+            }
+            return result;
+        }
+        finally {
+            final BlenderResult<?> value = stored;
+            consumers.compute(key.consumerId, (final Long consumerId, final ConsumerResults r) -> {
+                r.blending--;
+                // not cached if the consumer was invalidated while blending, the result may predate the change
+                if ((value != null) && (r.generation == generation[0])) {
+                    cache.put(key, value);
+                    r.keys.add(key);
+                }
+                return r.isUnused() ? null : r;
+            });
+            unindexDiscarded();
+        }
+    }
+
+    /**
+     * Removes the keys of discarded results from their consumers' keys,
+     * unless they were cached again in the meantime.
+     */
+    private void unindexDiscarded() {
+        for (BlendKey key = discarded.poll(); key != null; key = discarded.poll()) {
+            final BlendKey k = key;
+            consumers.computeIfPresent(k.consumerId, (final Long consumerId, final ConsumerResults r) -> {
+                if (!cache.asMap().containsKey(k)) r.keys.remove(k);
+                return r.isUnused() ? null : r;
+            });
+        }
+    }
+
+    /**
+     * Discards the cached results of the given consumer, to be invoked
+     * when the consumer's data changes, e.g. on a consumer event.
+     *
+     * @param consumerId the ID of the consumer
+     */
+    public void invalidateConsumer(final long consumerId) {
+        consumers.computeIfPresent(consumerId, (final Long id, final ConsumerResults r) -> {
+            cache.invalidateAll(r.keys);
+            r.keys.clear();
+            r.generation++;
+            return r.isUnused() ? null : r;
+        });
+        unindexDiscarded();
+    }
+
+    /**
+     * Discards all cached results, and keeps the results of blends in
+     * progress from being cached.
+     */
+    public void invalidateAll() {
+        for (final Long consumerId : consumers.keySet()) invalidateConsumer(consumerId);
+        cache.invalidateAll();
+        unindexDiscarded();
+    }
+
+    /**
+     * The number of cached results, including any that have expired but
+     * were not yet evicted.
+     *
+     * @return the number of cached results
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * The cached results of a consumer and its blends in progress, only
+     * accessed while updating the consumer's entry in the map.
+     */
+    private static final class ConsumerResults {
+        final Set<BlendKey> keys = new HashSet<>(); // of the cached results
+        long generation = 0L; // incremented by each invalidation
+        int blending = 0; // the number of blends in progress
+
+        boolean isUnused() {
+            return keys.isEmpty() && (blending == 0);
+        }
+    }
+}
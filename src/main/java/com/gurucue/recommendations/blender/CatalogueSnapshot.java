@@ -0,0 +1,320 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+import com.gurucue.recommendations.Transaction;
+import com.gurucue.recommendations.dto.ConsumerEntity;
+import com.gurucue.recommendations.entity.Partner;
+import com.gurucue.recommendations.entity.product.PackageProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import com.gurucue.recommendations.entitymanager.ProductManager;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable snapshot of a partner's catalogue of videos and
+ * tv-programmes, from which DataSets for individual consumers are made
+ * without querying the {@link ProductManager}. The snapshot holds
+ * template {@link VideoData} instances built without any subscriptions,
+ * and covers a time window wide enough to serve requests for
+ * <code>rollMillis</code> after it was built. For each request a
+ * consumer overlay creates fresh VideoData instances from the templates,
+ * with subscription flags computed from the consumer's active packages
+ * and with tv-programmes outside the request's time window left out.
+ * <p>
+ * Content is regarded as subscribed when any of its packages (for a
+ * tv-programme: the packages of any of its TV-channels) is among the
+ * consumer's active packages. Duplicates are retained in the snapshot
+ * and resolved for each request with the request's resolver, so the
+ * resolver sees the same subscription flags as without a snapshot.
+ * Videos are not re-checked against the request time, a catalogue change
+ * must {@link CatalogueSnapshots#invalidate(Partner) invalidate} the
+ * snapshot.
+ * <p>
+ * The snapshot also holds the results of catalogue-static filters over
+ * its templates, computed on first use and shared by all overlays, see
+ * {@link StatelessFilter#catalogueStaticKey()}.
+ *
+ * @see CatalogueSnapshots
+ */
+public final class CatalogueSnapshot implements StaticFilterResults<VideoData> {
+    private static final TLongSet NO_SUBSCRIPTIONS = new TLongHashSet(0);
+
+    /** The ID of the partner whose catalogue this is. */
+    public final long partnerId;
+    /** The version of the partner's catalogue that this snapshot was built from. */
+    public final long version;
+    /** The time for which the snapshot was built, in milliseconds. */
+    public final long timestampMillis;
+    /** The snapshot serves requests before this time, in milliseconds. */
+    public final long validUntilMillis;
+    private final long maxCatchupMillis;
+    private final long maxLiveMillis;
+    private final VideoData[] tvProgrammes;
+    private final VideoData[] videos;
+    private final ConcurrentHashMap<Object, long[]> staticResults = new ConcurrentHashMap<>();
+
+    private CatalogueSnapshot(
+            final long partnerId,
+            final long version,
+            final long timestampMillis,
+            final long validUntilMillis,
+            final long maxCatchupMillis,
+            final long maxLiveMillis,
+            final VideoData[] tvProgrammes,
+            final VideoData[] videos
+    ) {
+        this.partnerId = partnerId;
+        this.version = version;
+        this.timestampMillis = timestampMillis;
+        this.validUntilMillis = validUntilMillis;
+        this.maxCatchupMillis = maxCatchupMillis;
+        this.maxLiveMillis = maxLiveMillis;
+        this.tvProgrammes = tvProgrammes;
+        this.videos = videos;
+    }
+
+    /**
+     * Builds a snapshot of the partner's catalogue, to serve requests in
+     * the interval of <code>rollMillis</code> after the given time.
+     *
+     * @param transaction the transaction to use
+     * @param partner the partner whose catalogue to take
+     * @param version the version of the catalogue, as maintained by the caller
+     * @param timestampMillis the earliest request time that the snapshot will serve
+     * @param maxCatchupMillis maximum offset into the past for catch-up tv-programmes, as with {@link VideoData#buildDataSetOfVideosAndTvProgrammes(Transaction, Partner, ConsumerEntity, DuplicateResolver, long, long, long)}
+     * @param maxLiveMillis maximum offset into the future for tv-programmes
+     * @param rollMillis for how long the snapshot is valid
+     * @return the snapshot
+     */
+    public static CatalogueSnapshot build(
+            final Transaction transaction,
+            final Partner partner,
+            final long version,
+            final long timestampMillis,
+            final long maxCatchupMillis,
+            final long maxLiveMillis,
+            final long rollMillis
+    ) {
+        final ProductManager pm = transaction.getLink().getProductManager();
+        final List<VideoData> duplicateTvProgrammes = new ArrayList<>();
+        final DataSet.Builder<VideoData> tvProgrammes = templateBuilder(duplicateTvProgrammes);
+        pm.tvProgrammesInIntervalForPartner(transaction, partner, timestampMillis, maxCatchupMillis, maxLiveMillis + rollMillis, NO_SUBSCRIPTIONS, tvProgrammes);
+        final List<VideoData> duplicateVideos = new ArrayList<>();
+        final DataSet.Builder<VideoData> videos = templateBuilder(duplicateVideos);
+        pm.vodForPartner(transaction, partner, timestampMillis, NO_SUBSCRIPTIONS, videos);
+        return new CatalogueSnapshot(
+                partner.getId(), version, timestampMillis, timestampMillis + rollMillis, maxCatchupMillis, maxLiveMillis,
+                templates(tvProgrammes, duplicateTvProgrammes), templates(videos, duplicateVideos)
+        );
+    }
+
+    /**
+     * Returns a builder that keeps the first of the duplicates and adds
+     * the others to the given list, thus retaining all items.
+     */
+    private static DataSet.Builder<VideoData> templateBuilder(final List<VideoData> duplicates) {
+        return new DataSet.Builder<>((final VideoData value, final VideoData existing) -> {
+            duplicates.add(value);
+            return existing;
+        }, VideoData.KEY_EXTRACTOR, null);
+    }
+
+    /**
+     * Returns the templates from the given builder, followed by the
+     * duplicates that it rejected. The duplicates come last, but the
+     * overlay resolves them into the slots of the first ones, so the order
+     * of items is the same as with a direct build.
+     */
+    private static VideoData[] templates(final DataSet.Builder<VideoData> builder, final List<VideoData> duplicates) {
+        final DataSet<VideoData> built = builder.build();
+        final VideoData[] result = built.toArray(new VideoData[built.size() + duplicates.size()]);
+        final int n = duplicates.size();
+        final int offset = result.length - n;
+        for (int i = 0; i < n; i++) result[offset + i] = duplicates.get(i);
+        return result;
+    }
+
+    /**
+     * Whether the snapshot can serve a request at the given time.
+     *
+     * @param requestTimestampMillis the time of the request
+     * @return whether the snapshot covers the request's time window
+     */
+    public boolean isValidAt(final long requestTimestampMillis) {
+        return (requestTimestampMillis >= timestampMillis) && (requestTimestampMillis < validUntilMillis);
+    }
+
+    /**
+     * The number of template items in the snapshot, including duplicates.
+     *
+     * @return the number of items
+     */
+    public int size() {
+        return tvProgrammes.length + videos.length;
+    }
+
+    /**
+     * Creates the DataSet of tv-programmes and videos for the given
+     * consumer, equivalent to what
+     * {@link VideoData#buildDataSetOfVideosAndTvProgrammes(Transaction, Partner, ConsumerEntity, DuplicateResolver, long, long, long)}
+     * returns with this snapshot's time window.
+     *
+     * @param consumer the consumer whose subscriptions to apply
+     * @param duplicateResolver the resolver for duplicate items
+     * @param requestTimestampMillis the time of the request, must be valid for this snapshot
+     * @return the DataSet of the consumer's catalogue
+     */
+    public DataSet<VideoData> overlay(final ConsumerEntity consumer, final DuplicateResolver<VideoData> duplicateResolver, final long requestTimestampMillis) {
+        return overlay(consumer, duplicateResolver, requestTimestampMillis, null);
+    }
+
+    /**
+     * Creates the DataSet like {@link #overlay(ConsumerEntity, DuplicateResolver, long)},
+     * with the settings of the given blend applied, if there is one.
+     */
+    DataSet<VideoData> overlay(final ConsumerEntity consumer, final DuplicateResolver<VideoData> duplicateResolver, final long requestTimestampMillis, final BlendEnvironment environment) {
+        final Overlay overlay = new Overlay(consumer.activeRelationProductIds(requestTimestampMillis));
+        final DataSet.Builder<VideoData> dataBuilder = new DataSet.Builder<>(duplicateResolver, VideoData.KEY_EXTRACTOR, null).environment(environment);
+        final long timeTvProgramme = System.nanoTime();
+        final VideoData[] t = tvProgrammes;
+        final int tn = t.length;
+        final long liveLimit = requestTimestampMillis + maxLiveMillis;
+        for (int i = 0; i < tn; i++) {
+            final VideoData template = t[i];
+            final TvProgrammeProduct tvProgramme = (TvProgrammeProduct) template.video;
+            final boolean isLive = (tvProgramme.endTimeMillis > requestTimestampMillis) && (tvProgramme.beginTimeMillis <= liveLimit);
+            final List<TvChannelData> templateChannels = template.availableTvChannels;
+            final int cn = templateChannels.size();
+            List<TvChannelData> channels = templateChannels; // stays the template list while nothing changes
+            boolean isSubscribed = false;
+            for (int j = 0; j < cn; j++) {
+                final TvChannelData templateChannel = templateChannels.get(j);
+                final TvChannelData channel;
+                if (isLive || ((tvProgramme.beginTimeMillis <= requestTimestampMillis) && ((requestTimestampMillis - tvProgramme.beginTimeMillis) <= Math.min(maxCatchupMillis, templateChannel.tvChannel.catchupMillis)))) {
+                    channel = overlay.tvChannel(templateChannel);
+                    isSubscribed |= channel.isSubscribed;
+                }
+                else channel = null; // the catch-up on this channel has expired
+                if ((channel != templateChannel) && (channels == templateChannels)) channels = new ArrayList<>(templateChannels.subList(0, j));
+                if ((channels != templateChannels) && (channel != null)) channels.add(channel);
+            }
+            if (channels.isEmpty()) continue;
+            final VideoData item = VideoData.forTvProgramme(tvProgramme, channels, isSubscribed);
+            item.catalogueSnapshot = this;
+            item.cataloguePosition = i;
+            dataBuilder.add(item);
+        }
+        final long timeVod = System.nanoTime();
+        final int middleSize = dataBuilder.size();
+        final VideoData[] v = videos;
+        final int vn = v.length;
+        for (int i = 0; i < vn; i++) {
+            final VideoData template = v[i];
+            final VideoData item = new VideoData(template.video, false, template.vod, template.productPackages, null, overlay.isSubscribed(template.productPackages));
+            item.catalogueSnapshot = this;
+            item.cataloguePosition = tn + i;
+            dataBuilder.add(item);
+        }
+        final long timeEnd = System.nanoTime();
+        final int finalSize = dataBuilder.size();
+        final DataSet<VideoData> ds = dataBuilder.build();
+        ds.staticFilterResults(this);
+        ds.record(BlendTrace.OVERLAID, this, middleSize, finalSize - middleSize, timeVod - timeTvProgramme, timeEnd - timeVod);
+        return ds;
+    }
+
+    @Override
+    public int positionOf(final VideoData value) {
+        return value.catalogueSnapshot == this ? value.cataloguePosition : -1;
+    }
+
+    @Override
+    public long[] passing(final StatelessFilter<VideoData> filter) {
+        final Object key = filter.catalogueStaticKey();
+        final long[] existing = staticResults.get(key);
+        if (existing != null) return existing;
+        // positions: tv-programmes first, then videos
+        final VideoData[] t = tvProgrammes;
+        final VideoData[] v = videos;
+        final int tn = t.length;
+        final int vn = v.length;
+        final long[] result = new long[(tn + vn + 63) >>> 6];
+        for (int i = 0; i < tn; i++) {
+            if (filter.test(t[i])) result[i >>> 6] |= 1L << i;
+        }
+        for (int i = 0; i < vn; i++) {
+            final int position = tn + i;
+            if (filter.test(v[i])) result[position >>> 6] |= 1L << position;
+        }
+        final long[] raced = staticResults.putIfAbsent(key, result);
+        return raced == null ? result : raced;
+    }
+
+    /**
+     * Per-request state of an overlay, memoizing the consumer's
+     * subscriptions to package lists and TV-channels, which are shared by
+     * many items.
+     */
+    private static final class Overlay {
+        private final TLongSet activePackages;
+        private final IdentityHashMap<List<PackageProduct>, Boolean> subscribed = new IdentityHashMap<>();
+        private final IdentityHashMap<TvChannelData, TvChannelData> tvChannels = new IdentityHashMap<>();
+
+        Overlay(final TLongSet activePackages) {
+            this.activePackages = activePackages;
+        }
+
+        boolean isSubscribed(final List<PackageProduct> packages) {
+            if ((packages == null) || activePackages.isEmpty()) return false;
+            final Boolean cached = subscribed.get(packages);
+            if (cached != null) return cached;
+            boolean result = false;
+            final int n = packages.size();
+            for (int i = 0; i < n; i++) {
+                if (activePackages.contains(packages.get(i).id)) {
+                    result = true;
+                    break;
+                }
+            }
+            subscribed.put(packages, result);
+            return result;
+        }
+
+        /**
+         * Returns the consumer's instance of the given template channel,
+         * which is the template itself when the consumer is not subscribed
+         * to it.
+         */
+        TvChannelData tvChannel(final TvChannelData template) {
+            if (!isSubscribed(template.productPackages)) return template;
+            TvChannelData channel = tvChannels.get(template);
+            if (channel == null) {
+                channel = new TvChannelData(template.tvChannel, template.productPackages, true);
+                tvChannels.put(template, channel);
+            }
+            return channel;
+        }
+    }
+}
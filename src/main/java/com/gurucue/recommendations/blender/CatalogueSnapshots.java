@@ -0,0 +1,162 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+import com.gurucue.recommendations.Transaction;
+import com.gurucue.recommendations.dto.ConsumerEntity;
+import com.gurucue.recommendations.entity.Partner;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache of {@link CatalogueSnapshot} instances, one per partner, for a
+ * fixed time window. A snapshot is rebuilt when a request falls outside
+ * the interval that it serves (the time window has rolled), or after the
+ * partner's catalogue has been invalidated. Concurrent requests of a
+ * partner wait for a single rebuild instead of each building their own.
+ * The instance is thread-safe, and is meant to be kept by a blender for
+ * its whole lifetime.
+ */
+public final class CatalogueSnapshots {
+    private final long maxCatchupMillis;
+    private final long maxLiveMillis;
+    private final long rollMillis;
+    private final ConcurrentHashMap<Long, Slot> slots = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param maxCatchupMillis maximum offset into the past for catch-up tv-programmes
+     * @param maxLiveMillis maximum offset into the future for tv-programmes
+     * @param rollMillis for how long a snapshot serves requests before it is rebuilt
+     */
+    public CatalogueSnapshots(final long maxCatchupMillis, final long maxLiveMillis, final long rollMillis) {
+        if (rollMillis <= 0L) throw new IllegalArgumentException("The roll interval must be positive: " + rollMillis);
+        this.maxCatchupMillis = maxCatchupMillis;
+        this.maxLiveMillis = maxLiveMillis;
+        this.rollMillis = rollMillis;
+    }
+
+    /**
+     * Returns the partner's snapshot serving a request at the given time,
+     * building it if necessary. A request for a time before the cached
+     * snapshot gets a snapshot of its own, which is not cached.
+     *
+     * @param transaction the transaction to use for building
+     * @param partner the partner whose snapshot to return
+     * @param requestTimestampMillis the time of the request
+     * @return the snapshot valid at the given time
+     */
+    public CatalogueSnapshot get(final Transaction transaction, final Partner partner, final long requestTimestampMillis) {
+        final Long partnerId = partner.getId();
+        Slot slot = slots.get(partnerId);
+        if (slot == null) slot = slots.computeIfAbsent(partnerId, (final Long id) -> new Slot());
+        final CatalogueSnapshot snapshot = slot.snapshot;
+        if ((snapshot != null) && snapshot.isValidAt(requestTimestampMillis)) return snapshot;
+        synchronized (slot) {
+            final CatalogueSnapshot current = slot.snapshot; // may have been rebuilt while waiting
+            if ((current != null) && current.isValidAt(requestTimestampMillis)) return current;
+            final long version = slot.version;
+            final CatalogueSnapshot rebuilt = CatalogueSnapshot.build(transaction, partner, version, requestTimestampMillis, maxCatchupMillis, maxLiveMillis, rollMillis);
+            if ((current == null) || (current.timestampMillis < requestTimestampMillis)) slot.snapshot = rebuilt;
+            return rebuilt;
+        }
+    }
+
+    /**
+     * Creates the DataSet of tv-programmes and videos for the given
+     * consumer from the partner's snapshot.
+     *
+     * @param transaction the transaction to use, if the snapshot must be built
+     * @param partner the partner whose catalogue to use
+     * @param consumer the consumer whose subscriptions to apply
+     * @param duplicateResolver the resolver for duplicate items
+     * @param requestTimestampMillis the time of the request
+     * @return the DataSet of the consumer's catalogue
+     * @see CatalogueSnapshot#overlay(ConsumerEntity, DuplicateResolver, long)
+     */
+    public DataSet<VideoData> dataSetOfVideosAndTvProgrammes(
+            final Transaction transaction,
+            final Partner partner,
+            final ConsumerEntity consumer,
+            final DuplicateResolver<VideoData> duplicateResolver,
+            final long requestTimestampMillis
+    ) {
+        return get(transaction, partner, requestTimestampMillis).overlay(consumer, duplicateResolver, requestTimestampMillis);
+    }
+
+    /**
+     * Creates the DataSet of tv-programmes and videos for the consumer of
+     * the given blend from the partner's snapshot, with the settings of the
+     * blend applied, see {@link DataSet#environment(BlendEnvironment)}.
+     *
+     * @param environment the environment of the blend
+     * @param duplicateResolver the resolver for duplicate items
+     * @return the DataSet of the consumer's catalogue
+     */
+    public DataSet<VideoData> dataSetOfVideosAndTvProgrammes(final BlendEnvironment environment, final DuplicateResolver<VideoData> duplicateResolver) {
+        return get(environment.transaction, environment.partner, environment.requestTimestampMillis).overlay(environment.consumer, duplicateResolver, environment.requestTimestampMillis, environment);
+    }
+
+    /**
+     * Returns the version of the partner's catalogue, which changes with
+     * each invalidation. It does not wait for a rebuild in progress.
+     *
+     * @param partner the partner whose catalogue version to return
+     * @return the version of the partner's catalogue
+     */
+    public long version(final Partner partner) {
+        final Slot slot = slots.get(partner.getId());
+        return slot == null ? 0L : slot.version;
+    }
+
+    /**
+     * Discards the partner's snapshot, to be invoked when the partner's
+     * catalogue changes. The next request rebuilds the snapshot, with a
+     * new version. A rebuild that is in progress is waited for and
+     * discarded.
+     *
+     * @param partner the partner whose catalogue changed
+     */
+    public void invalidate(final Partner partner) {
+        final Slot slot = slots.get(partner.getId());
+        if (slot == null) return;
+        synchronized (slot) {
+            slot.version++;
+            slot.snapshot = null;
+        }
+    }
+
+    /**
+     * Discards snapshots of all partners.
+     */
+    public void invalidateAll() {
+        slots.forEach((final Long partnerId, final Slot slot) -> {
+            synchronized (slot) {
+                slot.version++;
+                slot.snapshot = null;
+            }
+        });
+    }
+
+    private static final class Slot {
+        volatile CatalogueSnapshot snapshot = null;
+        volatile long version = 0L; // modified while holding the slot
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+import com.gurucue.recommendations.ResponseException;
+import com.gurucue.recommendations.ResponseStatus;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link TopBlender} that coalesces identical concurrent requests: while
+ * a blend for the same partner, consumer, blender name, data class and
+ * input parameters is in progress, further such requests wait for its
+ * result instead of blending themselves. The first request (the leader)
+ * blends on its own thread, in its own transaction; the others (the
+ * followers) get their own copies of the leader's result and its items,
+ * see {@link BlenderResult#deepCopy()}, or the leader's exception. The
+ * leader takes a snapshot of its result for the followers to copy only
+ * when any followers are waiting for it. A
+ * follower waits for the leader at most until its own deadline, see
+ * {@link BlendEnvironment#remainingNanos()}, and at most the given
+ * maximum wait, after which it blends itself. Nothing is retained after
+ * the leader finishes, see {@link CachingTopBlender} for that. Requests
+ * in debug mode are not coalesced, so their logs are complete, and are
+ * traced, see {@link BlendEnvironment#beginTrace()}.
+ */
+public final class CoalescingTopBlender implements TopBlender {
+    /** How long a follower without a deadline waits for the leader by default, in milliseconds. */
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 10000L;
+    private static final BlenderResult<?> TIMED_OUT = new BlenderResult<>(null, null); // a follower did not get the leader's result in time
+
+    private final TopBlender delegate;
+    private final long maxWaitNanos;
+    private final ConcurrentHashMap<BlendKey, Flight> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs the coalescing wrapper of the given TopBlender, with
+     * followers waiting at most {@link #DEFAULT_MAX_WAIT_MILLIS}.
+     *
+     * @param delegate the TopBlender performing the blends
+     */
+    public CoalescingTopBlender(final TopBlender delegate) {
+        this(delegate, DEFAULT_MAX_WAIT_MILLIS);
+    }
+
+    /**
+     * Constructs the coalescing wrapper of the given TopBlender.
+     *
+     * @param delegate the TopBlender performing the blends
+     * @param maxWaitMillis how long a follower waits for the leader at most, before it blends itself
+     */
+    public CoalescingTopBlender(final TopBlender delegate, final long maxWaitMillis) {
+        if (maxWaitMillis < 0L) throw new IllegalArgumentException("The maximum wait must not be negative: " + maxWaitMillis);
+        this.delegate = delegate;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    @Override
+    public <V extends DataValue> BlenderResult<V> blend(
+            final Class<V> dataClass,
+            final BlendEnvironment environment,
+            final BlendParameters parameters
+    ) throws ResponseException {
+        if (environment.debug) {
+            final BlendTrace trace = environment.beginTrace();
+            try {
+                return delegate.blend(dataClass, environment, parameters);
+            }
+            finally {
+                trace.close();
+            }
+        }
+        final BlendKey key = new BlendKey(dataClass, environment, parameters, 0L, 0L);
+        final Flight own = new Flight();
+        final Flight flight = inFlight.compute(key, (k, f) -> {
+            if (f == null) return own;
+            f.followers++;
+            return f;
+        });
+        if (flight != own) {
+            final BlenderResult<V> result = follow(flight.result, Math.min(maxWaitNanos, environment.remainingNanos()));
+            return result == TIMED_OUT ? delegate.blend(dataClass, environment, parameters) : result;
+        }
+        final BlenderResult<V> result;
+        try {
+            result = delegate.blend(dataClass, environment, parameters);
+        }
+        catch (ResponseException | RuntimeException | Error e) {
+            inFlight.remove(key, own);
+            own.result.completeExceptionally(e);
+            throw e;
+        }
+        // no follower can attach once the flight is removed, so the count is final
+        inFlight.remove(key, own);
+        if ((own.followers == 0) || (result == null) || (result.dataSet == null)) own.result.complete(result);
+        else {
+            try {
+                final BlenderResult<V> published = result.deepCopy(); // the leader may modify its items
+                own.result.complete(new BlenderResult<>(published.dataSet.readOnlyView(), published.blenderName, published.blenderFeedback));
+            }
+            catch (RuntimeException | Error e) {
+                own.result.completeExceptionally(e);
+                throw e;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The number of blends currently in progress.
+     *
+     * @return the number of blends in progress
+     */
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Waits for the leader's result at most the given time, and returns a
+     * copy of it, or {@link #TIMED_OUT}.
+     */
+    @SuppressWarnings("unchecked")
+    private static <V extends DataValue> BlenderResult<V> follow(final CompletableFuture<BlenderResult<?>> leader, final long timeoutNanos) throws ResponseException {
+        final BlenderResult<V> result;
+        try {
+            result = (BlenderResult<V>) leader.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException e) {
+            return (BlenderResult<V>) TIMED_OUT;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseException(ResponseStatus.UNKNOWN_ERROR, e, "Interrupted while waiting for an identical blend in progress");
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ResponseException) throw (ResponseException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new ResponseException(ResponseStatus.UNKNOWN_ERROR, cause, "An identical blend in progress failed");
+        }
+        return ((result == null) || (result.dataSet == null)) ? result : result.deepCopy();
+    }
+
+    /**
+     * A blend in progress: the leader's result or exception, and the number
+     * of followers waiting for it. The count only changes within
+     * {@link ConcurrentHashMap#compute} of the flight's key, and the leader
+     * reads it after removing the flight.
+     */
+    private static final class Flight {
+        final CompletableFuture<BlenderResult<?>> result = new CompletableFuture<>();
+        int followers = 0;
+    }
+}
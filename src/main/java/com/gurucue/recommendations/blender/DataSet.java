@@ -19,6 +19,9 @@
 package com.gurucue.recommendations.blender;
 
 import com.gurucue.recommendations.ProcessingException;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.TLongSet;
 
 import java.util.Arrays;
 import java.util.Collection;
@@ -32,85 +35,176 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 
 /**
  * A HashSet with the ability to resolve duplicates as they are added.
  * It uses two underlying containers to perform its operations efficiently:
- * a HashMap and an array of objects. Thus mutation methods are somewhat
- * slower, but iteration is fast and ordered.
+ * an array of objects and an open-addressing index from the primitive key
+ * of each item (see {@link KeyExtractor}) to its slot in the array. Thus
+ * mutation methods are somewhat slower, but iteration is fast and ordered.
+ * Which slots hold live items is tracked in a bitmap, so removals only
+ * clear bits and iteration skips removed items 64 at a time. The array is
+ * compacted lazily, only before sorting, spliterating or returning the
+ * result of blending, or to avoid growing the array.
+ * Clones share the array, the bitmap and the index with their source
+ * until one of them is modified (copy-on-write), so branching a filter
+ * pipeline is cheap.
  */
 public final class DataSet<V extends DataValue> implements Set<V>, LoggingSupport, Filterable<V> {
     protected static final int ARRAY_INCREMENT = 10000;
+    protected static final int PARALLEL_THRESHOLD = 20000; // minimum number of slots for parallel filtering to pay off
+    protected static final int PARALLEL_CHUNK = 4096; // number of slots filtered by a single fork-join task, must be a multiple of 64
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<DataSet, AtomicInteger> SHARERS = AtomicReferenceFieldUpdater.newUpdater(DataSet.class, AtomicInteger.class, "sharers");
 
     protected final DuplicateResolver<V> duplicateResolver;
-    protected final Map<V, V> productMap = new HashMap<>();
+    protected final KeyExtractor<? super V> keyExtractor;
+    protected KeyIndex index; // maps item keys to slots in data
     protected V[] data; // a sparse array
+    protected long[] live; // bitmap of slots in data holding live items, the source of truth for liveness
     protected int length; // right border of the array
-    protected int size; // actual number of items in the set, must be equal to productMap.size()
+    protected int size; // actual number of items in the set, must be equal to index.size()
     protected int modificationCount = 0; // for detecting mutation during (spl)iteration
     protected final LinkedList<StatelessFilter<V>> filters = new LinkedList<>();
-    protected final LinkedList<LoggingSupport> subLoggers = new LinkedList<>();
+    protected BlendTrace trace; // where the log of this DataSet is recorded
+    protected int traceEpoch; // the epoch of the trace when the log was last extended
+    protected int traceTail = -1; // the last event of the log in the trace, or -1 if the log is empty
     protected final HashMap<String, Integer> limitTags = new HashMap<>();
+    protected ForkJoinPool filterPool = null; // when set, stateless filters are evaluated in parallel
+    protected FilterStatistics filterStatistics = null; // when set, reorderable stateless filters are sampled and reordered
+    protected StaticFilterResults<V> staticFilterResults = null; // when set, catalogue-static filters are applied from precomputed results
+    protected boolean hasDeadline = false; // whether optional stateful filters are degraded by deadlineNanos
+    protected long deadlineNanos = 0L; // the deadline of the blend, in terms of System.nanoTime()
+    protected boolean debug = false; // whether events are recorded also outside of a traced blend, see BlendTrace
+    protected volatile AtomicInteger sharers = null; // when set, data, live and index are shared by this many DataSets and must be copied before modification
+    protected boolean readOnly = false; // whether this is a read-only view
 
     /**
-     * A constructor for an empty dataset.
+     * A constructor for an empty dataset. The key extractor is taken from
+     * the parent DataSet, if there is one, otherwise keys are hash codes.
      *
      * @param duplicateResolver the resolver for duplicate items
      * @param parentDataSet the DataSet from which logically follows this new DataSet, or null if this is the first DataSet
      */
-    @SuppressWarnings("unchecked")
     public DataSet(final DuplicateResolver<V> duplicateResolver, final DataSet<V> parentDataSet) {
+        this(duplicateResolver, parentDataSet == null ? KeyExtractor.byHashCode() : parentDataSet.keyExtractor, parentDataSet);
+    }
+
+    /**
+     * A constructor for an empty dataset, with the given key extractor.
+     *
+     * @param duplicateResolver the resolver for duplicate items
+     * @param keyExtractor the extractor of item keys, for indexing
+     * @param parentDataSet the DataSet from which logically follows this new DataSet, or null if this is the first DataSet
+     */
+    @SuppressWarnings("unchecked")
+    public DataSet(final DuplicateResolver<V> duplicateResolver, final KeyExtractor<? super V> keyExtractor, final DataSet<V> parentDataSet) {
         this.duplicateResolver = duplicateResolver;
+        this.keyExtractor = keyExtractor;
+        this.index = new KeyIndex(ARRAY_INCREMENT);
         this.data = (V[]) new DataValue[ARRAY_INCREMENT];
+        this.live = new long[(ARRAY_INCREMENT + 63) >>> 6];
         size = length = 0;
-        if ((parentDataSet != null) && (!parentDataSet.subLoggers.isEmpty())) {
-            subLoggers.addAll(parentDataSet.subLoggers);
+        if (parentDataSet != null) {
+            filterPool = parentDataSet.filterPool;
+            filterStatistics = parentDataSet.filterStatistics;
+            staticFilterResults = parentDataSet.staticFilterResults;
+            hasDeadline = parentDataSet.hasDeadline;
+            deadlineNanos = parentDataSet.deadlineNanos;
+            debug = parentDataSet.debug;
         }
+        inheritLog(parentDataSet);
     }
 
     /**
-     * A constructor supplying the initial content for the dataset.
+     * A constructor supplying the initial content for the dataset. The key
+     * extractor is taken from the parent DataSet, if there is one, otherwise
+     * keys are hash codes.
      *
      * @param duplicateResolver the resolver for duplicate items
      * @param items the items with which to initialize the content of the DataSet
      * @param parentDataSet the DataSet from which logically follows this new DataSet, or null if this is the first DataSet
      */
-    @SuppressWarnings("unchecked")
     public DataSet(final DuplicateResolver<V> duplicateResolver, V[] items, final DataSet<V> parentDataSet) {
+        this(duplicateResolver, parentDataSet == null ? KeyExtractor.byHashCode() : parentDataSet.keyExtractor, items, parentDataSet);
+    }
+
+    /**
+     * A constructor supplying the initial content for the dataset, with the
+     * given key extractor. Duplicates among the items are resolved.
+     *
+     * @param duplicateResolver the resolver for duplicate items
+     * @param keyExtractor the extractor of item keys, for indexing
+     * @param items the items with which to initialize the content of the DataSet
+     * @param parentDataSet the DataSet from which logically follows this new DataSet, or null if this is the first DataSet
+     */
+    @SuppressWarnings("unchecked")
+    public DataSet(final DuplicateResolver<V> duplicateResolver, final KeyExtractor<? super V> keyExtractor, V[] items, final DataSet<V> parentDataSet) {
         this.duplicateResolver = duplicateResolver;
+        this.keyExtractor = keyExtractor;
         final int N = items.length;
         final int l = ((N / ARRAY_INCREMENT) + 1) * ARRAY_INCREMENT; // round to the next ARRAY_INCREMENT multiple
-        final V[] data = (V[]) new DataValue[l];
-        int i = 0;
+        this.index = new KeyIndex(N);
+        this.data = (V[]) new DataValue[l];
+        this.live = new long[(l + 63) >>> 6];
+        size = length = 0;
         for (int j = 0; j < N; j++) {
             final V item = items[j];
             if (item == null) continue;
-            item.arrayIndex = i;
-            data[i] = item;
-            i++;
+            insert(item);
         }
-        this.data = data;
-        size = length = i;
-        if ((parentDataSet != null) && (!parentDataSet.subLoggers.isEmpty())) {
-            subLoggers.addAll(parentDataSet.subLoggers);
+        modificationCount = 0;
+        if (parentDataSet != null) {
+            filterPool = parentDataSet.filterPool;
+            filterStatistics = parentDataSet.filterStatistics;
+            staticFilterResults = parentDataSet.staticFilterResults;
+            hasDeadline = parentDataSet.hasDeadline;
+            deadlineNanos = parentDataSet.deadlineNanos;
+            debug = parentDataSet.debug;
         }
+        inheritLog(parentDataSet);
     }
 
     /**
-     * The clone constructor.
+     * The clone constructor. The clone shares the storage of the source
+     * until either of them is modified, at which time the modified DataSet
+     * makes its own copy of the storage, so cloning is O(1). Note that the
+     * items themselves are always shared.
      *
      * @param source the DataSet to clone
      */
     public DataSet(final DataSet<V> source) {
         this.duplicateResolver = source.duplicateResolver;
-        this.productMap.putAll(source.productMap);
-        this.data = Arrays.copyOf(source.data, source.data.length);
+        this.keyExtractor = source.keyExtractor;
+        AtomicInteger s = source.sharers;
+        if (s == null) {
+            // the source may be cloned concurrently, e.g. a published read-only view, so only one counter may win
+            SHARERS.compareAndSet(source, null, new AtomicInteger(1));
+            s = source.sharers;
+        }
+        s.incrementAndGet();
+        this.sharers = s;
+        this.index = source.index;
+        this.data = source.data;
+        this.live = source.live;
         this.length = source.length;
         this.size = source.size;
         this.filters.addAll(source.filters);
-        this.subLoggers.addAll(source.subLoggers);
+        inheritLog(source);
+        this.filterPool = source.filterPool;
+        this.filterStatistics = source.filterStatistics;
+        this.staticFilterResults = source.staticFilterResults;
+        this.hasDeadline = source.hasDeadline;
+        this.deadlineNanos = source.deadlineNanos;
+        this.debug = source.debug;
     }
 
     /**
@@ -123,34 +217,89 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
     @SuppressWarnings("unchecked")
     private DataSet(final DataSet<V> source, final boolean copyData) {
         this.duplicateResolver = source.duplicateResolver;
-        this.subLoggers.addAll(source.subLoggers); // preserve the logs
+        this.keyExtractor = source.keyExtractor;
+        inheritLog(source); // preserve the logs
+        this.filterPool = source.filterPool;
+        this.filterStatistics = source.filterStatistics;
+        this.staticFilterResults = source.staticFilterResults;
+        this.hasDeadline = source.hasDeadline;
+        this.deadlineNanos = source.deadlineNanos;
+        this.debug = source.debug;
         if (copyData) {
             // full cloning
-            this.productMap.putAll(source.productMap);
+            this.index = new KeyIndex(source.index);
             this.data = Arrays.copyOf(source.data, source.data.length);
+            this.live = Arrays.copyOf(source.live, source.live.length);
             this.length = source.length;
             this.size = source.size;
             this.filters.addAll(source.filters);
         }
         else {
             // zero data
+            this.index = new KeyIndex(ARRAY_INCREMENT);
             this.data = (V[]) new DataValue[ARRAY_INCREMENT];
+            this.live = new long[(ARRAY_INCREMENT + 63) >>> 6];
             size = length = 0;
         }
     }
 
+    /**
+     * The private constructor for a DataSet derived from the given DataSet,
+     * containing the given items in the given order. The items must be
+     * distinct, e.g. taken from the source DataSet.
+     *
+     * @param source the DataSet from which logically follows this new DataSet
+     * @param items the distinct items of the new DataSet
+     * @param count the number of items to take from the beginning of the array
+     */
     @SuppressWarnings("unchecked")
-    protected DataSet(final DuplicateResolver<V> duplicateResolver, final V[] data, final Map<V, V> builderMap, final DataSet<V> parentDataSet) {
+    private DataSet(final DataSet<V> source, final V[] items, final int count) {
+        this.duplicateResolver = source.duplicateResolver;
+        this.keyExtractor = source.keyExtractor;
+        inheritLog(source); // preserve the logs
+        this.filterPool = source.filterPool;
+        this.filterStatistics = source.filterStatistics;
+        this.staticFilterResults = source.staticFilterResults;
+        this.hasDeadline = source.hasDeadline;
+        this.deadlineNanos = source.deadlineNanos;
+        this.debug = source.debug;
+        final KeyExtractor<? super V> k = keyExtractor;
+        final KeyIndex x = new KeyIndex(count);
+        final V[] d = (V[]) new DataValue[count];
+        for (int i = 0; i < count; i++) {
+            final V v = items[i];
+            x.putUnique(k.keyOf(v), i);
+            v.arrayIndex = i;
+            d[i] = v;
+        }
+        index = x;
+        data = d;
+        live = new long[(count + 63) >>> 6];
+        markLive(live, count);
+        size = length = count;
+    }
+
+    protected DataSet(final DuplicateResolver<V> duplicateResolver, final KeyExtractor<? super V> keyExtractor, final V[] data, final KeyIndex builderIndex, final DataSet<V> parentDataSet, final BlendEnvironment environment) {
         this.duplicateResolver = duplicateResolver;
+        this.keyExtractor = keyExtractor;
         final long timeStart = System.nanoTime();
-        productMap.putAll(builderMap);
+        index = builderIndex; // taken over from the builder, no copying
         this.data = data;
-        size = length = productMap.size();
+        size = length = index.size();
+        live = new long[(data.length + 63) >>> 6];
+        markLive(live, length);
         final long timeEnd = System.nanoTime();
-        if ((parentDataSet != null) && (!parentDataSet.subLoggers.isEmpty())) {
-            subLoggers.addAll(parentDataSet.subLoggers);
+        if (parentDataSet != null) {
+            filterPool = parentDataSet.filterPool;
+            filterStatistics = parentDataSet.filterStatistics;
+            staticFilterResults = parentDataSet.staticFilterResults;
+            hasDeadline = parentDataSet.hasDeadline;
+            deadlineNanos = parentDataSet.deadlineNanos;
+            debug = parentDataSet.debug;
         }
-        subLoggers.add(new InfoLogStringBuilder(new StringBuilder(64).append("----- DataSet created from ").append(size).append(" items in ").append(timeEnd - timeStart).append(" ns\n")));
+        if (environment != null) environment(environment);
+        inheritLog(parentDataSet);
+        record(BlendTrace.CREATED, null, size, 0, timeEnd - timeStart, 0L);
     }
 
     @Override
@@ -169,11 +318,16 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
     public boolean contains(final Object o) {
         if (o instanceof DataValue) {
             applyFilters();
-            return productMap.containsKey(o);
+            return indexOf(o) >= 0;
         }
         return false;
     }
 
+    @SuppressWarnings("unchecked")
+    private int indexOf(final Object o) {
+        return index.get(keyExtractor.keyOf((V)o), o, data);
+    }
+
     @Override
     public Iterator<V> iterator() {
         applyFilters();
@@ -184,11 +338,16 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
     public Object[] toArray() {
         applyFilters();
         final Object[] result = new Object[size];
-        int i = 0;
+        final V[] d = data;
+        final long[] b = live;
+        final int words = (length + 63) >>> 6;
         int j = 0;
-        while (i < length) {
-            final V o = data[i++];
-            if (o != null) result[j++] = o;
+        for (int w = 0; w < words; w++) {
+            long bits = b[w];
+            while (bits != 0L) {
+                result[j++] = d[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                bits &= bits - 1L;
+            }
         }
         return result;
     }
@@ -198,69 +357,308 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
     public <T> T[] toArray(T[] a) {
         applyFilters();
         final T[] result = a.length < size ? (T[])java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), size) : a;
-        int i = 0;
+        final V[] d = data;
+        final long[] b = live;
+        final int words = (length + 63) >>> 6;
         int j = 0;
-        while (i < length) {
-            final V o = data[i++];
-            if (o != null) result[j++] = (T)o;
+        for (int w = 0; w < words; w++) {
+            long bits = b[w];
+            while (bits != 0L) {
+                result[j++] = (T)d[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                bits &= bits - 1L;
+            }
         }
-        while (j < result.length) result[j++] = null;
+        if (j < result.length) result[j] = null; // as per the Collection contract
         return result;
     }
 
     @Override
     public boolean add(final V value) {
         if (value == null) throw new NullPointerException();
+        checkWritable();
         applyFilters();
-        final V existing = productMap.put(value, value);
-        if (existing == null) {
-            // a new item has been added
-            modificationCount++;
-            if (length >= data.length) {
+        return insert(value);
+    }
+
+    private boolean insert(final V value) {
+        unshare();
+        if (length >= data.length) {
+            if ((size + size) < length) compactData(); // reuse the slots of removed items instead of growing
+            else {
                 data = Arrays.copyOf(data, length + ARRAY_INCREMENT);
+                live = Arrays.copyOf(live, (data.length + 63) >>> 6);
             }
+        }
+        final int existingIndex = index.putIfAbsent(keyExtractor.keyOf(value), value, length, data);
+        if (existingIndex < 0) {
+            // a new item has been added
+            modificationCount++;
             value.arrayIndex = length;
             data[length] = value;
+            live[length >>> 6] |= 1L << length;
             length++;
             size++;
             return true;
         }
-        // an existing item has been replaced, check if this is the correct action
+        // an existing item is already there, check if it should be replaced
+        final V existing = data[existingIndex];
         if (value == existing) return false; // both are the same instance
         final V correct = duplicateResolver.resolve(value, existing);
         if (correct == value) {
             // retain the new value (a replacement has occurred)
             modificationCount++;
-            data[value.arrayIndex = existing.arrayIndex] = value;
+            data[value.arrayIndex = existingIndex] = value;
             return true;
         }
         // retain the old value (no replacement occurred)
-        productMap.put(correct, correct);
         return false;
     }
 
+    /**
+     * Moves all live items to the beginning of the data array, preserving
+     * their order.
+     */
     protected void compactData() {
+        unshare();
         modificationCount++;
-        int i = 0;
         final int l = length; // local variables to make dereferencing faster
         final V[] d = data;
-        while ((i < l) && (d[i] != null)) {
-            i++;
-        }
-        int j = i;
-        while (i < l) {
-            final V o = d[i++];
-            if (o == null) continue;
-            o.arrayIndex = j;
-            d[j++] = o;
+        final long[] b = live;
+        final KeyIndex x = index;
+        final KeyExtractor<? super V> k = keyExtractor;
+        final int words = (l + 63) >>> 6;
+        int j = 0;
+        for (int w = 0; w < words; w++) {
+            long bits = b[w];
+            while (bits != 0L) {
+                final int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1L;
+                if (i != j) {
+                    final V o = d[i];
+                    x.relocate(k.keyOf(o), i, j);
+                    o.arrayIndex = j;
+                    d[j] = o;
+                    d[i] = null; // removed items were already nulled, so there will be no references beyond the new border
+                }
+                j++;
+            }
         }
         length = j;
+        markLive(b, j);
+    }
+
+    /**
+     * Sets the bitmap to mark exactly the first <code>count</code> slots
+     * as live.
+     */
+    private static void markLive(final long[] bitmap, final int count) {
+        final int fullWords = count >>> 6;
+        Arrays.fill(bitmap, 0, fullWords, -1L);
+        if (fullWords < bitmap.length) {
+            bitmap[fullWords] = (count & 63) == 0 ? 0L : (-1L >>> (64 - (count & 63)));
+            Arrays.fill(bitmap, fullWords + 1, bitmap.length, 0L);
+        }
+    }
+
+    /**
+     * Makes sure the storage (data, live bitmap, index) is not shared with
+     * any other DataSet, copying it if necessary. Must be invoked before
+     * any modification of the storage. The storage is copied before the
+     * number of sharers is decremented, so the last sharer can safely keep
+     * the storage without copying it even when other sharers live in other
+     * threads.
+     */
+    private void unshare() {
+        final AtomicInteger s = sharers;
+        if (s == null) return;
+        if (s.get() > 1) {
+            index = new KeyIndex(index);
+            data = Arrays.copyOf(data, data.length);
+            live = Arrays.copyOf(live, live.length);
+            s.decrementAndGet();
+        }
+        sharers = null;
+    }
+
+    private void checkWritable() {
+        if (readOnly) throw new UnsupportedOperationException("The DataSet is a read-only view");
+    }
+
+    /**
+     * Returns the first slot holding a live item at or after the given slot.
+     *
+     * @param from the slot where to start searching
+     * @return the first live slot, or -1 if there is none
+     */
+    int nextLive(final int from) {
+        final int words = (length + 63) >>> 6;
+        int w = from >>> 6;
+        if (w >= words) return -1;
+        final long[] b = live;
+        long bits = b[w] & (-1L << from); // the shift distance is taken modulo 64
+        while (bits == 0L) {
+            if (++w >= words) return -1;
+            bits = b[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Removes the items in the slots marked in the given bitmap, which must
+     * all be live. The storage must not be shared, and the size and the
+     * modification count are left to the caller.
+     *
+     * @param rejected the bitmap of slots to remove
+     * @return the number of removed items
+     */
+    private int removeRejected(final long[] rejected) {
+        final V[] d = data;
+        final long[] b = live;
+        final KeyIndex x = index;
+        final KeyExtractor<? super V> k = keyExtractor;
+        final int words = Math.min(rejected.length, (length + 63) >>> 6);
+        int removeCount = 0;
+        for (int w = 0; w < words; w++) {
+            long bits = rejected[w];
+            if (bits == 0L) continue;
+            b[w] &= ~bits;
+            while (bits != 0L) {
+                final int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1L;
+                x.removeSlot(k.keyOf(d[i]), i);
+                d[i] = null;
+                removeCount++;
+            }
+        }
+        return removeCount;
+    }
+
+    /**
+     * Removes the items in the slots marked in the given bitmap, for
+     * filtering that is evaluated outside of the DataSet, e.g. on
+     * {@link VideoColumns}. Pending filters must already be applied, and
+     * the marked slots must be live. Slots of the remaining items do not
+     * change.
+     *
+     * @param rejected the bitmap of slots to remove
+     * @return the number of removed items
+     */
+    int removeSlots(final long[] rejected) {
+        checkWritable();
+        unshare();
+        final int removeCount = removeRejected(rejected);
+        if (removeCount > 0) {
+            size -= removeCount;
+            modificationCount++;
+        }
+        return removeCount;
+    }
+
+    /**
+     * Rearranges the items into the order of the given slots, for sorting
+     * that is evaluated outside of the DataSet. The given slots must be
+     * exactly the live slots, afterwards the i-th of them is in slot i.
+     *
+     * @param slots the live slots in their new order
+     */
+    @SuppressWarnings("unchecked")
+    void reorder(final int[] slots) {
+        checkWritable();
+        final int n = slots.length;
+        if (n != size) throw new IllegalArgumentException("The number of slots differs from the size of the DataSet: " + n + " != " + size);
+        final V[] old = data;
+        final V[] d = (V[]) new DataValue[old.length];
+        for (int i = 0; i < n; i++) {
+            final V v = old[slots[i]];
+            v.arrayIndex = i;
+            d[i] = v;
+        }
+        final AtomicInteger s = sharers;
+        if (s != null) {
+            // the data array is replaced and the bitmap and the index are rebuilt, so detach without copying
+            if (s.get() > 1) {
+                live = new long[live.length];
+                index = new KeyIndex(n);
+                s.decrementAndGet();
+            }
+            sharers = null;
+        }
+        data = d;
+        length = n;
+        markLive(live, n);
+        index.rebuild(keyExtractor, d, n);
+        modificationCount++;
+    }
+
+    /**
+     * Returns the bitmap of live slots holding items that any of the given
+     * catalogue-static filters rejects, using precomputed results for items
+     * from the catalogue and invoking the filters for other items. Counts
+     * the items whose results were precomputed in the last element of
+     * <code>counts</code>, and how many of them each filter rejects in the
+     * element at the filter's position.
+     */
+    private long[] staticRejections(final StatelessFilter<V>[] statics, final StaticFilterResults<V> results, final int[] counts) {
+        final int sc = statics.length;
+        final long[][] passingBy = new long[sc][];
+        long[] passing = null;
+        for (int i = 0; i < sc; i++) {
+            final long[] p = results.passing(statics[i]);
+            passingBy[i] = p;
+            if (passing == null) passing = p.clone();
+            else {
+                final int n = Math.min(passing.length, p.length);
+                for (int w = 0; w < n; w++) passing[w] &= p[w];
+                for (int w = n; w < passing.length; w++) passing[w] = 0L;
+            }
+        }
+        final V[] d = data;
+        final long[] b = live;
+        final int words = (length + 63) >>> 6;
+        final long[] rejected = new long[words];
+        final int pw = passing.length;
+        int served = 0;
+        for (int w = 0; w < words; w++) {
+            long bits = b[w];
+            long r = 0L;
+            while (bits != 0L) {
+                final long bit = bits & -bits;
+                final V v = d[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                bits ^= bit;
+                final int position = results.positionOf(v);
+                if (position >= 0) {
+                    served++;
+                    final int word = position >>> 6;
+                    final long pb = 1L << position;
+                    if ((word >= pw) || ((passing[word] & pb) == 0L)) {
+                        r |= bit;
+                        for (int i = 0; i < sc; i++) {
+                            final long[] p = passingBy[i];
+                            if ((word >= p.length) || ((p[word] & pb) == 0L)) counts[i]++;
+                        }
+                    }
+                }
+                else {
+                    for (int i = 0; i < sc; i++) {
+                        if (!statics[i].test(v)) {
+                            r |= bit;
+                            break;
+                        }
+                    }
+                }
+            }
+            rejected[w] = r;
+        }
+        counts[sc] = served;
+        return rejected;
     }
 
     private boolean internalRemove(final V o) {
-        final V existing = productMap.remove(o);
-        if (existing == null) return false;
-        data[o.arrayIndex = existing.arrayIndex] = null;
+        unshare();
+        final int existingIndex = index.remove(keyExtractor.keyOf(o), o, data);
+        if (existingIndex < 0) return false;
+        data[o.arrayIndex = existingIndex] = null;
+        live[existingIndex >>> 6] &= ~(1L << existingIndex);
         modificationCount++;
         size--;
         return true;
@@ -270,8 +668,8 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
     @Override
     public boolean remove(final Object o) {
         if (o == null) return false;
+        checkWritable();
         applyFilters();
-        if ((size + size) < length) compactData();
         return internalRemove((V)o);
     }
 
@@ -279,7 +677,7 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
     public boolean containsAll(final Collection<?> c) {
         applyFilters();
         for (final Object o : c) {
-            if (!productMap.containsKey(o)) return false;
+            if ((o == null) || (indexOf(o) < 0)) return false;
         }
         return true;
     }
@@ -287,17 +685,22 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
     @SuppressWarnings("unchecked")
     @Override
     public boolean addAll(final Collection<? extends V> c) {
+        checkWritable();
         applyFilters();
         final int oldModificationCount = modificationCount;
         if (c instanceof DataSet) {
             // optimized implementation
             final DataSet<V> ds = (DataSet<V>)c;
+            ds.applyFilters();
             final V[] d = ds.data;
-            final int l = ds.length;
-            for (int i = 0; i < l; i++) {
-                final V v = d[i];
-                if (v == null) continue;
-                add(v);
+            final long[] b = ds.live;
+            final int words = (ds.length + 63) >>> 6;
+            for (int w = 0; w < words; w++) {
+                long bits = b[w];
+                while (bits != 0L) {
+                    insert(d[(w << 6) + Long.numberOfTrailingZeros(bits)]);
+                    bits &= bits - 1L;
+                }
             }
         }
         else {
@@ -308,44 +711,211 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
         return modificationCount != oldModificationCount;
     }
 
+    @SuppressWarnings("unchecked")
     @Override
     public boolean retainAll(final Collection<?> c) {
+        checkWritable();
         applyFilters();
+        if (c instanceof DataSet) {
+            final int previousModificationCount = modificationCount;
+            intersect((DataSet<V>) c);
+            return previousModificationCount != modificationCount;
+        }
         final Set<?> s = c instanceof Set ? (Set<?>)c : new HashSet<>(c);
         final int previousModificationCount = modificationCount;
         final V[] d = data;
-        final int l = length;
-        for (int i = 0; i < l; i++) {
-            final V v = d[i];
-            if (v == null) continue;
-            if (!s.contains(v)) {
-                internalRemove(v);
+        final long[] b = live;
+        final int words = (length + 63) >>> 6;
+        for (int w = 0; w < words; w++) {
+            long bits = b[w];
+            while (bits != 0L) {
+                final V v = d[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                bits &= bits - 1L;
+                if (!s.contains(v)) {
+                    internalRemove(v);
+                }
             }
         }
-        if ((size + size) < length) compactData();
         return previousModificationCount != modificationCount;
     }
 
     @SuppressWarnings("unchecked")
     @Override
     public boolean removeAll(final Collection<?> c) {
+        checkWritable();
         applyFilters();
         final int previousModificationCount = modificationCount;
-        for (final Object o : c) {
-            if (o == null) continue;
-            internalRemove((V)o);
+        if (c instanceof DataSet) subtract((DataSet<V>) c);
+        else {
+            for (final Object o : c) {
+                if (o == null) continue;
+                internalRemove((V)o);
+            }
         }
-        if ((size + size) < length) compactData();
         return previousModificationCount != modificationCount;
     }
 
+    // set algebra, in a single pass over the items without creating any objects per item
+
+    /**
+     * Adds the items of the given DataSet to this DataSet, resolving
+     * duplicates with this DataSet's {@link DuplicateResolver}. Equivalent
+     * to {@link #addAll(Collection)}, but returns this DataSet for chaining,
+     * and is O(1) if the other DataSet shares storage with this one, e.g.
+     * as a copy-on-write clone that was not modified.
+     *
+     * @param other the DataSet whose items to add
+     * @return this DataSet, to support chaining
+     */
+    public DataSet<V> union(final DataSet<V> other) {
+        checkWritable();
+        applyFilters();
+        other.applyFilters();
+        if (other.data == data) return this; // shared storage, the same items
+        addAll(other);
+        return this;
+    }
+
+    /**
+     * Retains only the items that are also in the given DataSet. Each item
+     * is looked up in the other DataSet's index, so no set is created;
+     * sharing storage with the other DataSet is O(1).
+     *
+     * @param other the DataSet whose items to retain
+     * @return this DataSet, to support chaining
+     */
+    public DataSet<V> intersect(final DataSet<V> other) {
+        checkWritable();
+        applyFilters();
+        other.applyFilters();
+        if (other.data == data) return this; // shared storage, the same items
+        final long[] rejected = rejectedBy(other, false);
+        if (rejected != null) removeSlots(rejected);
+        return this;
+    }
+
+    /**
+     * Removes the items that are in the given DataSet, e.g. the items that
+     * were already consumed. Each item is looked up in the other DataSet's
+     * index; sharing storage with the other DataSet is O(1).
+     *
+     * @param other the DataSet whose items to remove
+     * @return this DataSet, to support chaining
+     */
+    public DataSet<V> subtract(final DataSet<V> other) {
+        checkWritable();
+        applyFilters();
+        other.applyFilters();
+        if (other.data == data) {
+            if (size > 0) clear(); // shared storage, the same items
+            return this;
+        }
+        final long[] rejected = rejectedBy(other, true);
+        if (rejected != null) removeSlots(rejected);
+        return this;
+    }
+
+    /**
+     * Retains only the items whose keys, as given by this DataSet's
+     * {@link KeyExtractor}, are in the given set.
+     *
+     * @param keys the keys of items to retain
+     * @return this DataSet, to support chaining
+     */
+    public DataSet<V> intersect(final TLongSet keys) {
+        checkWritable();
+        applyFilters();
+        final long[] rejected = rejectedBy(keys, false);
+        if (rejected != null) removeSlots(rejected);
+        return this;
+    }
+
+    /**
+     * Removes the items whose keys, as given by this DataSet's
+     * {@link KeyExtractor}, are in the given set.
+     *
+     * @param keys the keys of items to remove
+     * @return this DataSet, to support chaining
+     */
+    public DataSet<V> subtract(final TLongSet keys) {
+        checkWritable();
+        applyFilters();
+        final long[] rejected = rejectedBy(keys, true);
+        if (rejected != null) removeSlots(rejected);
+        return this;
+    }
+
+    /**
+     * Returns the bitmap of live slots holding items that are (or are
+     * not) in the given DataSet, or null if there are none.
+     */
+    private long[] rejectedBy(final DataSet<V> other, final boolean rejectPresent) {
+        final V[] d = data;
+        final long[] b = live;
+        final int words = (length + 63) >>> 6;
+        final KeyIndex ox = other.index;
+        final V[] od = other.data;
+        final KeyExtractor<? super V> ok = other.keyExtractor;
+        long[] rejected = null;
+        for (int w = 0; w < words; w++) {
+            long bits = b[w];
+            while (bits != 0L) {
+                final long bit = bits & -bits;
+                final V v = d[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                bits ^= bit;
+                if ((ox.get(ok.keyOf(v), v, od) >= 0) == rejectPresent) {
+                    if (rejected == null) rejected = new long[words];
+                    rejected[w] |= bit;
+                }
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * Returns the bitmap of live slots holding items whose keys are (or
+     * are not) in the given set, or null if there are none.
+     */
+    private long[] rejectedBy(final TLongSet keys, final boolean rejectPresent) {
+        final V[] d = data;
+        final long[] b = live;
+        final int words = (length + 63) >>> 6;
+        final KeyExtractor<? super V> k = keyExtractor;
+        long[] rejected = null;
+        for (int w = 0; w < words; w++) {
+            long bits = b[w];
+            while (bits != 0L) {
+                final long bit = bits & -bits;
+                final V v = d[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                bits ^= bit;
+                if (keys.contains(k.keyOf(v)) == rejectPresent) {
+                    if (rejected == null) rejected = new long[words];
+                    rejected[w] |= bit;
+                }
+            }
+        }
+        return rejected;
+    }
+
+    @SuppressWarnings("unchecked")
     @Override
     public void clear() {
-        modificationCount = 0;
-        productMap.clear();
-        for (int i = length - 1; i >= 0; i--) {
-            data[i] = null;
+        checkWritable();
+        final AtomicInteger s = sharers;
+        if ((s != null) && (s.get() > 1)) {
+            // detach from the shared storage instead of copying it
+            index = new KeyIndex(ARRAY_INCREMENT);
+            data = (V[]) new DataValue[ARRAY_INCREMENT];
+            live = new long[(ARRAY_INCREMENT + 63) >>> 6];
+            s.decrementAndGet();
         }
+        else {
+            index.clear();
+            Arrays.fill(data, 0, length, null);
+            Arrays.fill(live, 0, (length + 63) >>> 6, 0L);
+        }
+        sharers = null;
+        modificationCount++;
         length = 0;
         size = 0;
     }
@@ -355,11 +925,14 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
         applyFilters();
         int h = 0;
         final V[] d = data;
-        final int l = length;
-        for (int i = 0; i < l; i++) {
-            final V v = d[i];
-            if (v == null) continue;
-            h += v.hashCode();
+        final long[] b = live;
+        final int words = (length + 63) >>> 6;
+        for (int w = 0; w < words; w++) {
+            long bits = b[w];
+            while (bits != 0L) {
+                h += d[(w << 6) + Long.numberOfTrailingZeros(bits)].hashCode();
+                bits &= bits - 1L;
+            }
         }
         return h;
     }
@@ -384,29 +957,36 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
         if (action == null) throw new NullPointerException();
         applyFilters();
         final V[] d = data;
-        final int l = length;
-        for (int i = 0; i < l; i++) {
-            final V v = d[i];
-            if (v == null) continue;
-            action.accept(v);
+        final long[] b = live;
+        final int words = (length + 63) >>> 6;
+        for (int w = 0; w < words; w++) {
+            long bits = b[w];
+            while (bits != 0L) {
+                action.accept(d[(w << 6) + Long.numberOfTrailingZeros(bits)]);
+                bits &= bits - 1L;
+            }
         }
     }
 
     @Override
     public boolean removeIf(final Predicate<? super V> filter) {
         if (filter == null) throw new NullPointerException();
+        checkWritable();
         applyFilters();
         final int previousModificationCount = modificationCount;
         final V[] d = data;
-        final int l = length;
-        for (int i = 0; i < l; i++) {
-            final V v = d[i];
-            if (v == null) continue;
-            if (filter.test(v)) {
-                internalRemove(v);
+        final long[] b = live;
+        final int words = (length + 63) >>> 6;
+        for (int w = 0; w < words; w++) {
+            long bits = b[w];
+            while (bits != 0L) {
+                final V v = d[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                bits &= bits - 1L;
+                if (filter.test(v)) {
+                    internalRemove(v);
+                }
             }
         }
-        if ((size + size) < length) compactData();
         return previousModificationCount != modificationCount;
     }
 
@@ -421,27 +1001,79 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
         // because filters are being invoked below in this method, it is essential to watch for endless recursion,
         // therefore the first thing we do is create a recursion stop condition and fulfill it in case a recursion does happen
         if (filters.isEmpty()) return;
-        @SuppressWarnings("unchecked")
-        final StatelessFilter<V>[] filters = this.filters.toArray(new StatelessFilter[this.filters.size()]);
+        final FilterStatistics statistics = filterStatistics;
+        final StatelessFilter<V>[] declared = this.filters.toArray(DataSet.<V>filterArray(this.filters.size()));
         this.filters.clear(); // make a copy of filters list and clear the original list, thereby stopping any recursion that may follow
+        final StatelessFilter<V>[] filters = statistics == null ? declared : statistics.order(declared);
+        unshare();
         int j;
         final int fc = filters.length;
         final V[] d = data;
+        final long[] b = live;
         final int l = length;
+        final int words = (l + 63) >>> 6;
+        final KeyIndex x = index;
+        final KeyExtractor<? super V> k = keyExtractor;
+        final ForkJoinPool pool = filterPool;
         final long timeStart = System.nanoTime();
         int removeCount = 0;
         for (j = 0; j < fc; j++) filters[j].onStart(this);
-        for (int i = 0; i < l; i++) {
-            final V v = d[i];
-            if (v == null) continue;
+        StatelessFilter<V>[] evaluated = filters; // the filters that must be invoked for each item
+        final StaticFilterResults<V> results = staticFilterResults;
+        int[] staticCounts = null; // per catalogue-static filter, the items it rejects from precomputed results, and the number of such items last
+        if (results != null) {
+            int sc = 0;
             for (j = 0; j < fc; j++) {
-                if (!filters[j].test(v)) {
+                if (filters[j].catalogueStaticKey() != null) sc++;
+            }
+            if (sc > 0) {
+                // catalogue-static filters go first, from their precomputed results
+                final StatelessFilter<V>[] statics = DataSet.<V>filterArray(sc);
+                final StatelessFilter<V>[] dynamics = DataSet.<V>filterArray(fc - sc);
+                int si = 0, di = 0;
+                for (j = 0; j < fc; j++) {
+                    if (filters[j].catalogueStaticKey() != null) statics[si++] = filters[j];
+                    else dynamics[di++] = filters[j];
+                }
+                staticCounts = new int[sc + 1];
+                removeCount = removeRejected(staticRejections(statics, results, staticCounts));
+                evaluated = dynamics;
+            }
+        }
+        final int ec = evaluated.length;
+        if (ec == 0) {
+            // nothing more to evaluate
+        }
+        else if ((pool != null) && (l >= PARALLEL_THRESHOLD)) {
+            // mark rejections in a bitmap in parallel, then remove them in a single pass
+            final long[] rejected = new long[words];
+            pool.invoke(new FilterTask<>(evaluated, statistics, d, b, rejected, 0, l));
+            removeCount += removeRejected(rejected);
+        }
+        else {
+            int tested = 0;
+            for (int w = 0; w < words; w++) {
+                long bits = b[w];
+                long removed = 0L;
+                while (bits != 0L) {
+                    final long bit = bits & -bits;
+                    final int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits ^= bit;
+                    final V v = d[i];
+                    if ((statistics == null) || ((++tested & FilterStatistics.SAMPLE_MASK) != 0)) {
+                        for (j = 0; j < ec; j++) {
+                            if (!evaluated[j].test(v)) break;
+                        }
+                        if (j == ec) continue;
+                    }
+                    else if (statistics.sample(evaluated, v)) continue;
                     // fast remove
-                    productMap.remove(v);
+                    x.removeSlot(k.keyOf(v), i);
                     d[i] = null;
+                    removed |= bit;
                     removeCount++;
-                    break;
                 }
+                if (removed != 0L) b[w] &= ~removed;
             }
         }
         for (j = 0; j < fc; j++) filters[j].onEnd(this);
@@ -449,20 +1081,30 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
         if (removeCount > 0) {
             size -= removeCount;
             modificationCount++;
-            if ((size + size) < length) compactData();
         }
         // store loggers of all the filters after they're done
-        subLoggers.add(new InfoLogStringBuilder(new StringBuilder(64).append("----- Stateless filtering chain begins\n")));
+        record(BlendTrace.CHAIN_BEGIN, null, 0, 0, 0L, 0L);
+        int si = 0;
         for (int i = 0; i < fc; i++) {
-            final StatelessFilter<V> f = filters[i];
-            subLoggers.add(f);
+            record(BlendTrace.LOG, filters[i], 0, 0, 0L, 0L);
+            // a catalogue-static filter was not invoked for items with precomputed results, so its log does not cover them
+            if ((staticCounts != null) && (filters[i].catalogueStaticKey() != null)) record(BlendTrace.STATIC_FILTERED, filters[i], staticCounts[staticCounts.length - 1], staticCounts[si++], 0L, 0L);
         }
-        subLoggers.add(new InfoLogStringBuilder(new StringBuilder(128).append("----- Stateless filtering chain done, timing: ").append(timeEnd - timeStart).append(" ns\n")));
+        record(BlendTrace.CHAIN_END, null, 0, 0, timeEnd - timeStart, 0L);
+    }
+
+    /**
+     * Returns a new array of stateless filters of the given length.
+     */
+    @SuppressWarnings("unchecked")
+    static <V extends DataValue> StatelessFilter<V>[] filterArray(final int length) {
+        return (StatelessFilter<V>[]) new StatelessFilter<?>[length];
     }
 
     @Override
     public DataSet<V> filter(final StatelessFilter<V> filter) {
         if ((filter == null) || (filter == NullStatelessFilter.INSTANCE)) return this; // ignore the null filter
+        checkWritable();
         filters.add(filter);
         return this;
     }
@@ -472,10 +1114,19 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
         if (filter == null) return this;
         applyFilters();
         final long timeStart = System.nanoTime();
+        if (filter.isOptional()) {
+            final long remaining = remainingNanos();
+            if (remaining < filter.requiredNanos()) {
+                // not enough time left in the budget of the blend
+                final DataSet<V> result = filter.degrade(this);
+                result.record(BlendTrace.DEGRADED, filter, 0, 0, remaining, System.nanoTime() - timeStart);
+                return result;
+            }
+        }
         final DataSet<V> result = filter.transform(this);
         final long timeEnd = System.nanoTime();
-        result.subLoggers.add(filter);
-        result.subLoggers.add(new InfoLogStringBuilder(new StringBuilder(128).append("----- Stateful filter ").append(filter.getClass().getSimpleName()).append(" done, timing: ").append(timeEnd - timeStart).append(" ns\n")));
+        result.record(BlendTrace.LOG, filter, 0, 0, 0L, 0L);
+        result.record(BlendTrace.STATEFUL, filter, 0, 0, timeEnd - timeStart, 0L);
         return result;
     }
 
@@ -498,6 +1149,7 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
     }
 
     public DataSet<V> filter(final StatelessFilterChain<V> filterChain) {
+        checkWritable();
         filterChain.forEach((final StatelessFilter<V> filter) -> {
             if ((filter != null) && (filter != NullStatelessFilter.INSTANCE)) {
                 filters.add(filter);
@@ -507,8 +1159,11 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
     }
 
     public DataSet<V> sort(final Comparator<V> comparator) {
+        checkWritable();
         applyFilters();
-        compactData();
+        if (size != length) compactData();
+        else unshare();
+        modificationCount++;
         final V[] d = data;
         final int l = length;
         final long timeStart = System.nanoTime();
@@ -516,35 +1171,762 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
         for (int i = 0; i < l; i++) {
             d[i].arrayIndex = i;
         }
+        index.rebuild(keyExtractor, d, l);
+        final long timeEnd = System.nanoTime();
+        record(BlendTrace.SORTED, null, 0, 0, timeEnd - timeStart, 0L);
+        return this;
+    }
+
+    /**
+     * Selects the first <code>k</code> items in the order defined by the
+     * given comparator, as if this DataSet was sorted and then truncated,
+     * but in O(n log k) time using a bounded heap. Items that compare
+     * equal keep their relative order. This DataSet is left intact, the
+     * selected items are returned in a new DataSet in the sorted order.
+     *
+     * @param k the maximum number of items to select
+     * @param comparator the order of items, the first items are selected
+     * @return a new DataSet with at most <code>k</code> items, sorted
+     */
+    @SuppressWarnings("unchecked")
+    public DataSet<V> top(final int k, final Comparator<? super V> comparator) {
+        applyFilters();
+        final long timeStart = System.nanoTime();
+        final V[] d = data;
+        final long[] b = live;
+        final int words = (length + 63) >>> 6;
+        final int m = k <= 0 ? 0 : Math.min(k, size);
+        final int[] heap = new int[m]; // slots of selected items, the root is the last of them in the sorted order
+        int h = 0;
+        if (m > 0) {
+            for (int w = 0; w < words; w++) {
+                long bits = b[w];
+                while (bits != 0L) {
+                    final int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1L;
+                    if (h < m) {
+                        // sift up
+                        int c = h++;
+                        while (c > 0) {
+                            final int parent = (c - 1) >>> 1;
+                            if (compareSlots(d, comparator, i, heap[parent]) <= 0) break;
+                            heap[c] = heap[parent];
+                            c = parent;
+                        }
+                        heap[c] = i;
+                    }
+                    else if (compareSlots(d, comparator, i, heap[0]) < 0) {
+                        siftDown(d, comparator, heap, i, m);
+                    }
+                }
+            }
+        }
+        final V[] selected = (V[]) new DataValue[m];
+        for (int r = m - 1; r >= 0; r--) {
+            // heap-sort: the root is the last remaining item in the sorted order
+            selected[r] = d[heap[0]];
+            if (r > 0) siftDown(d, comparator, heap, heap[r], r);
+        }
+        final DataSet<V> result = new DataSet<>(this, selected, m);
+        final long timeEnd = System.nanoTime();
+        result.record(BlendTrace.TOP, null, m, size, timeEnd - timeStart, 0L);
+        return result;
+    }
+
+    /**
+     * Selects the <code>k</code> items with the highest scores, in
+     * O(n log k) time using a bounded heap of primitive scores, so the
+     * score function is invoked exactly once per item. Items having equal
+     * scores keep their relative order. This DataSet is left intact, the
+     * selected items are returned in a new DataSet ordered by descending
+     * score.
+     *
+     * @param k the maximum number of items to select
+     * @param score the scoring function
+     * @return a new DataSet with at most <code>k</code> items, sorted by descending score
+     */
+    @SuppressWarnings("unchecked")
+    public DataSet<V> topByScore(final int k, final ToDoubleFunction<? super V> score) {
+        applyFilters();
+        final long timeStart = System.nanoTime();
+        final V[] d = data;
+        final long[] b = live;
+        final int words = (length + 63) >>> 6;
+        final int m = k <= 0 ? 0 : Math.min(k, size);
+        final double[] scores = new double[m]; // a heap, the root is the selected item with the lowest score
+        final int[] slots = new int[m];
+        int h = 0;
+        if (m > 0) {
+            for (int w = 0; w < words; w++) {
+                long bits = b[w];
+                while (bits != 0L) {
+                    final int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1L;
+                    final double s = score.applyAsDouble(d[i]);
+                    if (h < m) {
+                        // sift up
+                        int c = h++;
+                        while (c > 0) {
+                            final int parent = (c - 1) >>> 1;
+                            if (!isLowerScore(s, i, scores[parent], slots[parent])) break;
+                            scores[c] = scores[parent];
+                            slots[c] = slots[parent];
+                            c = parent;
+                        }
+                        scores[c] = s;
+                        slots[c] = i;
+                    }
+                    else if (isLowerScore(scores[0], slots[0], s, i)) {
+                        siftDown(scores, slots, s, i, m);
+                    }
+                }
+            }
+        }
+        final V[] selected = (V[]) new DataValue[m];
+        for (int r = m - 1; r >= 0; r--) {
+            // heap-sort: the root has the lowest remaining score
+            selected[r] = d[slots[0]];
+            if (r > 0) siftDown(scores, slots, scores[r], slots[r], r);
+        }
+        final DataSet<V> result = new DataSet<>(this, selected, m);
         final long timeEnd = System.nanoTime();
-        subLoggers.add(new InfoLogStringBuilder(new StringBuilder(128).append("----- Sorting done, timing: ").append(timeEnd - timeStart).append(" ns\n")));
+        result.record(BlendTrace.TOP_BY_SCORE, null, m, size, timeEnd - timeStart, 0L);
+        return result;
+    }
+
+    /**
+     * Limits the number of items per group, e.g. at most 2 episodes per
+     * series, keeping the first items of each group in the order of this
+     * DataSet, so it should be sorted first. An item belonging to several
+     * groups is kept only if none of its groups is full, and then counts
+     * towards all of them. The limits are applied in a single pass, with
+     * primitive counters.
+     *
+     * @param groups the extractor of the groups of an item
+     * @param cap the maximum number of items in a group without its own limit
+     * @param caps the limits of individual groups, by group key, may be null
+     * @return this DataSet, to support chaining
+     */
+    public DataSet<V> limitPerGroup(final GroupExtractor<? super V> groups, final int cap, final TLongIntMap caps) {
+        checkWritable();
+        applyFilters();
+        final long timeStart = System.nanoTime();
+        final int initialSize = size;
+        final V[] d = data;
+        final long[] b = live;
+        final int words = (length + 63) >>> 6;
+        final TLongIntHashMap counts = new TLongIntHashMap();
+        long[] keys = new long[8];
+        long[] rejected = null;
+        for (int w = 0; w < words; w++) {
+            long bits = b[w];
+            while (bits != 0L) {
+                final long bit = bits & -bits;
+                final V v = d[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                bits ^= bit;
+                int n = groups.groupsOf(v, keys);
+                if (n > keys.length) {
+                    keys = new long[Math.max(n, keys.length << 1)];
+                    n = groups.groupsOf(v, keys);
+                }
+                boolean full = false;
+                for (int g = 0; g < n; g++) {
+                    final long key = keys[g];
+                    final int c = (caps != null) && caps.containsKey(key) ? caps.get(key) : cap;
+                    if (counts.get(key) >= c) {
+                        full = true;
+                        break;
+                    }
+                }
+                if (full) {
+                    if (rejected == null) rejected = new long[words];
+                    rejected[w] |= bit;
+                }
+                else {
+                    for (int g = 0; g < n; g++) counts.adjustOrPutValue(keys[g], 1, 1);
+                }
+            }
+        }
+        if (rejected != null) removeSlots(rejected);
+        record(BlendTrace.GROUP_LIMITED, null, size, initialSize, System.nanoTime() - timeStart, 0L);
         return this;
     }
 
+    /**
+     * Returns a new DataSet with the items at the given positions in the
+     * order of this DataSet, e.g. a page of a sorted result. The starting
+     * item is found by counting live items a bitmap word at a time, so the
+     * cost does not depend on the number of skipped items.
+     *
+     * @param from the position of the first item to take
+     * @param count the maximum number of items to take
+     * @return a new DataSet with at most <code>count</code> items
+     */
+    @SuppressWarnings("unchecked")
+    public DataSet<V> slice(final int from, final int count) {
+        if (from < 0) throw new IllegalArgumentException("Negative starting position: " + from);
+        applyFilters();
+        final long timeStart = System.nanoTime();
+        final int n = Math.max(0, Math.min(count, size - from));
+        final V[] selected = (V[]) new DataValue[n];
+        if (n > 0) {
+            final V[] d = data;
+            final long[] b = live;
+            int w = 0;
+            int skip = from;
+            int c;
+            while (skip >= (c = Long.bitCount(b[w]))) {
+                skip -= c;
+                w++;
+            }
+            long bits = b[w];
+            for (; skip > 0; skip--) bits &= bits - 1L;
+            int taken = 0;
+            while (true) {
+                while ((bits != 0L) && (taken < n)) {
+                    selected[taken++] = d[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                    bits &= bits - 1L;
+                }
+                if (taken >= n) break;
+                bits = b[++w];
+            }
+        }
+        final DataSet<V> result = new DataSet<>(this, selected, n);
+        result.record(BlendTrace.SLICED, null, n, from, System.nanoTime() - timeStart, 0L);
+        return result;
+    }
+
+    // merging of sorted DataSets, taking only as many items as needed
+
+    /**
+     * Merges DataSets that are each sorted by descending score into a new
+     * DataSet of at most <code>k</code> items with the highest scores, in
+     * the order of descending score, like a k-way merge. Only the taken
+     * items are scored and nothing is sorted, so the cost is O(k log n)
+     * for <code>n</code> DataSets, regardless of their sizes. Among equal
+     * scores, the DataSet given first goes first. Duplicates are resolved
+     * with the first DataSet's {@link DuplicateResolver}, keeping the
+     * position of the first occurrence, and count once towards
+     * <code>k</code>. The new DataSet follows the first DataSet.
+     *
+     * @param k the maximum number of items to take
+     * @param score the scoring function, by which each DataSet is sorted
+     * @param sources the DataSets to merge, at least one
+     * @param <V> the type of items
+     * @return a new DataSet with at most <code>k</code> items
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public static <V extends DataValue> DataSet<V> mergeByScore(final int k, final ToDoubleFunction<? super V> score, final DataSet<V>... sources) {
+        final long timeStart = System.nanoTime();
+        final Merge<V> merge = new Merge<>(k, sources);
+        final int n = sources.length;
+        final double[] scores = new double[n]; // the score of the next item of each source
+        final int[] heap = new int[n]; // sources, the root is the source with the highest next score
+        int h = 0;
+        for (int i = 0; i < n; i++) {
+            if (!merge.advance(i)) continue;
+            scores[i] = score.applyAsDouble(merge.head(i));
+            // sift up
+            int c = h++;
+            while (c > 0) {
+                final int parent = (c - 1) >>> 1;
+                if (!isHigherScore(scores, i, heap[parent])) break;
+                heap[c] = heap[parent];
+                c = parent;
+            }
+            heap[c] = i;
+        }
+        while ((h > 0) && !merge.isFull()) {
+            final int i = heap[0];
+            merge.add(merge.head(i));
+            if (merge.advance(i)) scores[i] = score.applyAsDouble(merge.head(i));
+            else if (--h > 0) heap[0] = heap[h]; // the source is exhausted, replace it with the last one
+            else break;
+            // sift down the root
+            final int root = heap[0];
+            int c = 0;
+            int child;
+            while ((child = (c << 1) + 1) < h) {
+                if (((child + 1) < h) && isHigherScore(scores, heap[child + 1], heap[child])) child++;
+                if (!isHigherScore(scores, heap[child], root)) break;
+                heap[c] = heap[child];
+                c = child;
+            }
+            heap[c] = root;
+        }
+        return merge.build(timeStart);
+    }
+
+    /**
+     * Whether the next item of the first source goes before the next item
+     * of the second source.
+     */
+    private static boolean isHigherScore(final double[] scores, final int source1, final int source2) {
+        final int c = Double.compare(scores[source1], scores[source2]);
+        return c != 0 ? c > 0 : source1 < source2;
+    }
+
+    /**
+     * Interleaves DataSets into a new DataSet of at most <code>k</code>
+     * items, taking one item from each DataSet in turn, in the order of the
+     * DataSets. See {@link #interleave(int, int[], DataSet[])}.
+     *
+     * @param k the maximum number of items to take
+     * @param sources the DataSets to interleave, at least one
+     * @param <V> the type of items
+     * @return a new DataSet with at most <code>k</code> items
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public static <V extends DataValue> DataSet<V> interleave(final int k, final DataSet<V>... sources) {
+        final long timeStart = System.nanoTime();
+        return interleave(timeStart, null, new Merge<>(k, sources));
+    }
+
+    /**
+     * Interleaves DataSets into a new DataSet of at most <code>k</code>
+     * items, taking in each round the given number of items from each
+     * DataSet, in the order of the DataSets, until <code>k</code> items
+     * are taken or all DataSets are exhausted. Only the taken items are
+     * visited. Duplicates are resolved with the first DataSet's
+     * {@link DuplicateResolver}, keeping the position of the first
+     * occurrence, and count once towards <code>k</code>. The new DataSet
+     * follows the first DataSet.
+     *
+     * @param k the maximum number of items to take
+     * @param weights the number of items to take from each DataSet in a round, or null to take one from each
+     * @param sources the DataSets to interleave, at least one
+     * @param <V> the type of items
+     * @return a new DataSet with at most <code>k</code> items
+     * @throws IllegalArgumentException if the number of weights differs from the number of DataSets
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public static <V extends DataValue> DataSet<V> interleave(final int k, final int[] weights, final DataSet<V>... sources) {
+        if ((weights != null) && (weights.length != sources.length)) throw new IllegalArgumentException("The number of weights differs from the number of DataSets: " + weights.length + " != " + sources.length);
+        final long timeStart = System.nanoTime();
+        return interleave(timeStart, weights, new Merge<>(k, sources));
+    }
+
+    private static <V extends DataValue> DataSet<V> interleave(final long timeStart, final int[] weights, final Merge<V> merge) {
+        final int n = merge.sources.length;
+        boolean taken = true;
+        while (taken && !merge.isFull()) {
+            taken = false;
+            for (int i = 0; (i < n) && !merge.isFull(); i++) {
+                final int w = weights == null ? 1 : weights[i];
+                for (int j = 0; (j < w) && !merge.isFull() && merge.advance(i); j++) {
+                    merge.add(merge.head(i));
+                    taken = true;
+                }
+            }
+        }
+        return merge.build(timeStart);
+    }
+
+    /**
+     * The state of a merge: a cursor for each source, and the taken items.
+     * The varargs array of the sources is only read, during the merge.
+     */
+    private static final class Merge<V extends DataValue> {
+        private final DataSet<V>[] sources;
+        private final int[] heads; // the slot of the current item of each source, or -1 before the first one
+        private final int k;
+        private final V[] taken;
+        private final KeyIndex index;
+        private final KeyExtractor<? super V> keyExtractor;
+        private final DuplicateResolver<V> duplicateResolver;
+        private int count = 0;
+
+        @SuppressWarnings("unchecked")
+        Merge(final int k, final DataSet<V>[] sources) {
+            if (sources.length == 0) throw new IllegalArgumentException("There are no DataSets to merge");
+            for (final DataSet<V> source : sources) source.applyFilters();
+            this.sources = sources;
+            this.heads = new int[sources.length];
+            Arrays.fill(heads, -1);
+            this.k = k < 0 ? 0 : k;
+            final int capacity = (int) Math.min((long) this.k, totalSize(sources));
+            this.taken = (V[]) new DataValue[capacity];
+            this.index = new KeyIndex(capacity);
+            this.keyExtractor = sources[0].keyExtractor;
+            this.duplicateResolver = sources[0].duplicateResolver;
+        }
+
+        private static long totalSize(final DataSet<?>[] sources) {
+            long total = 0L;
+            for (final DataSet<?> source : sources) total += source.size;
+            return total;
+        }
+
+        /** Moves to the next item of the given source, returns false if there is none. */
+        boolean advance(final int source) {
+            final DataSet<V> s = sources[source];
+            final int slot = s.nextLive(heads[source] + 1);
+            if (slot < 0) {
+                heads[source] = s.length; // exhausted
+                return false;
+            }
+            heads[source] = slot;
+            return true;
+        }
+
+        V head(final int source) {
+            return sources[source].data[heads[source]];
+        }
+
+        boolean isFull() {
+            return count >= taken.length;
+        }
+
+        void add(final V value) {
+            final V[] t = taken;
+            final int existingIndex = index.putIfAbsent(keyExtractor.keyOf(value), value, count, t);
+            if (existingIndex < 0) t[count++] = value;
+            else {
+                final V existing = t[existingIndex];
+                if ((value != existing) && (duplicateResolver.resolve(value, existing) == value)) t[existingIndex] = value;
+            }
+        }
+
+        DataSet<V> build(final long timeStart) {
+            final DataSet<V> result = new DataSet<>(sources[0], taken, count);
+            result.record(BlendTrace.MERGED, null, count, sources.length, System.nanoTime() - timeStart, 0L);
+            return result;
+        }
+    }
+
+    private static <V> int compareSlots(final V[] data, final Comparator<? super V> comparator, final int slot1, final int slot2) {
+        final int c = comparator.compare(data[slot1], data[slot2]);
+        return c != 0 ? c : Integer.compare(slot1, slot2); // ties are ordered as they appear in the DataSet
+    }
+
+    /**
+     * Puts the given slot into the heap at the root, and sifts it down.
+     * The heap is ordered so that the root is the last in the sorted order.
+     */
+    private static <V> void siftDown(final V[] data, final Comparator<? super V> comparator, final int[] heap, final int slot, final int heapSize) {
+        int c = 0;
+        int child;
+        while ((child = (c << 1) + 1) < heapSize) {
+            if (((child + 1) < heapSize) && (compareSlots(data, comparator, heap[child + 1], heap[child]) > 0)) child++;
+            if (compareSlots(data, comparator, slot, heap[child]) >= 0) break;
+            heap[c] = heap[child];
+            c = child;
+        }
+        heap[c] = slot;
+    }
+
+    /**
+     * Whether an item with the first score and slot comes after an item
+     * with the second score and slot in the order of descending scores.
+     */
+    private static boolean isLowerScore(final double score1, final int slot1, final double score2, final int slot2) {
+        final int c = Double.compare(score1, score2);
+        return c != 0 ? c < 0 : slot1 > slot2;
+    }
+
+    /**
+     * Puts the given score and slot into the heap at the root, and sifts
+     * it down. The heap is ordered so that the root has the lowest score.
+     */
+    private static void siftDown(final double[] scores, final int[] slots, final double score, final int slot, final int heapSize) {
+        int c = 0;
+        int child;
+        while ((child = (c << 1) + 1) < heapSize) {
+            if (((child + 1) < heapSize) && isLowerScore(scores[child + 1], slots[child + 1], scores[child], slots[child])) child++;
+            if (!isLowerScore(scores[child], slots[child], score, slot)) break;
+            scores[c] = scores[child];
+            slots[c] = slots[child];
+            c = child;
+        }
+        scores[c] = score;
+        slots[c] = slot;
+    }
+
     public DuplicateResolver<V> getDuplicateResolver() {
         return duplicateResolver;
     }
 
+    /**
+     * Returns a read-only view of this DataSet, for consumers that only
+     * read. Any pending stateless filters are applied first. The view is a
+     * copy-on-write clone, so it is O(1) to create, it does not reflect
+     * subsequent modifications of this DataSet, and all its own modifying
+     * methods throw {@link UnsupportedOperationException}. Stateful filters
+     * and operations returning new DataSets, such as
+     * {@link #top(int, Comparator)}, can still be used on it.
+     *
+     * @return a read-only view of this DataSet
+     */
+    public DataSet<V> readOnlyView() {
+        applyFilters();
+        final DataSet<V> view = new DataSet<>(this);
+        view.readOnly = true;
+        return view;
+    }
+
+    /**
+     * Returns a writable clone of this DataSet whose items are copies, see
+     * {@link DataValue#copy()}, so the items can be modified without
+     * affecting this DataSet, e.g. when the same cached result is handed
+     * to several callers. Pending stateless filters are carried over. This
+     * is O(n), unlike the copy-on-write clone.
+     *
+     * @return the clone with copied items
+     */
+    @SuppressWarnings("unchecked")
+    public DataSet<V> withCopiedItems() {
+        final DataSet<V> clone = new DataSet<>(this, true);
+        final V[] d = clone.data;
+        for (int i = clone.nextLive(0); i >= 0; i = clone.nextLive(i + 1)) {
+            final V v = (V) d[i].copy();
+            v.arrayIndex = i;
+            d[i] = v;
+        }
+        return clone;
+    }
+
+    /**
+     * Returns whether this DataSet is a read-only view.
+     *
+     * @return whether this DataSet is read-only
+     * @see #readOnlyView()
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Enables or disables parallel evaluation of stateless filters. When
+     * enabled, and the DataSet is big enough, the data is split into ranges
+     * that are filtered concurrently on the given pool. The
+     * {@link StatelessFilter#onStart(DataSet)} and
+     * {@link StatelessFilter#onEnd(DataSet)} methods are still invoked
+     * from the calling thread, but {@link StatelessFilter#test(DataValue)}
+     * is invoked concurrently, so it must be thread-safe for all filters
+     * given to this DataSet. The setting is inherited by DataSets created
+     * from this DataSet.
+     *
+     * @param pool the pool where to run filtering, or null to filter sequentially
+     * @return this DataSet, to support chaining
+     */
+    public DataSet<V> parallelFiltering(final ForkJoinPool pool) {
+        filterPool = pool;
+        return this;
+    }
+
+    /**
+     * Enables parallel evaluation of stateless filters in the common
+     * fork-join pool.
+     *
+     * @return this DataSet, to support chaining
+     * @see #parallelFiltering(ForkJoinPool)
+     */
+    public DataSet<V> parallelFiltering() {
+        return parallelFiltering(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sets the deadline of the blend, by which optional stateful filters
+     * are degraded, see {@link StatefulFilter#isOptional()}. The deadline
+     * is inherited by DataSets created from this DataSet, also in other
+     * threads, and ends with them.
+     *
+     * @param deadlineNanos the deadline, in terms of {@link System#nanoTime()}
+     * @return this DataSet, to support chaining
+     * @see BlendEnvironment#deadlineNanos
+     */
+    public DataSet<V> deadline(final long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+        hasDeadline = true;
+        return this;
+    }
+
+    /**
+     * Sets the deadline of the given blend, if it has one, see
+     * {@link #deadline(long)}.
+     *
+     * @param environment the environment of the blend
+     * @return this DataSet, to support chaining
+     */
+    public DataSet<V> deadline(final BlendEnvironment environment) {
+        if (environment.hasDeadline) deadline(environment.deadlineNanos);
+        return this;
+    }
+
+    /**
+     * Applies the settings of the given blend to this DataSet, to be
+     * invoked on the first DataSet of the blend, e.g. through
+     * {@link Builder#environment(BlendEnvironment)}. If the blend is
+     * debugged, the events of this DataSet and of the DataSets derived
+     * from it are recorded even when the blend has not begun a
+     * {@link BlendTrace}. If the blend has a deadline, it is set, see
+     * {@link #deadline(BlendEnvironment)}. The settings are inherited like
+     * the other processing settings.
+     *
+     * @param environment the environment of the blend
+     * @return this DataSet, to support chaining
+     */
+    public DataSet<V> environment(final BlendEnvironment environment) {
+        debug = environment.debug;
+        return deadline(environment);
+    }
+
+    /**
+     * Returns the time remaining until the deadline of the blend.
+     *
+     * @return the remaining time in nanoseconds, negative after the deadline, or <code>Long.MAX_VALUE</code> if there is no deadline
+     * @see #deadline(long)
+     */
+    public long remainingNanos() {
+        return hasDeadline ? deadlineNanos - System.nanoTime() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Enables or disables adaptive ordering of stateless filters. When
+     * enabled, a sample of items is used to measure the pass rate and the
+     * cost of each filter that declares itself reorderable, and each run
+     * of consecutive reorderable filters is evaluated in the order that
+     * the given statistics deem the cheapest. The statistics should be
+     * kept by the blender across requests, so the order converges. The
+     * setting is inherited by DataSets created from this DataSet.
+     *
+     * @param statistics the statistics to use and update, or null to evaluate filters in the declared order
+     * @return this DataSet, to support chaining
+     * @see StatelessFilter#isReorderable()
+     */
+    public DataSet<V> adaptiveFiltering(final FilterStatistics statistics) {
+        filterStatistics = statistics;
+        return this;
+    }
+
+    /**
+     * Sets the precomputed results of catalogue-static filters for items
+     * of this DataSet. Catalogue-static filters are then applied before
+     * other stateless filters, by testing a bit per item. The setting is
+     * inherited by DataSets created from this DataSet.
+     *
+     * @param results the precomputed results, or null to invoke all filters
+     * @return this DataSet, to support chaining
+     * @see StatelessFilter#catalogueStaticKey()
+     */
+    public DataSet<V> staticFilterResults(final StaticFilterResults<V> results) {
+        staticFilterResults = results;
+        return this;
+    }
+
+    /**
+     * Renders the log of this DataSet: what happened to it and to the
+     * DataSets it was derived from, and the logs of the filters that were
+     * applied. The log is recorded in the {@link BlendTrace} of the blend
+     * and rendered only here. When the blend is not being debugged, it
+     * contains only what was explicitly logged.
+     *
+     * @param output where to render the log
+     */
     @Override
     public void writeLog(final StringBuilder output) {
-        subLoggers.forEach((final LoggingSupport l) -> l.writeLog(output));
+        final BlendTrace t = trace;
+        final int tail = traceTail;
+        if ((tail >= 0) && (traceEpoch == t.epoch())) t.render(tail, output);
     }
 
     public DataSet<V> log(final LoggingSupport log) {
-        subLoggers.add(log);
+        recordLog(log);
         return this;
     }
 
     public DataSet<V> log(final String line) {
-        subLoggers.add(new InfoLogString(line));
+        recordLog(line);
         return this;
     }
 
     public DataSet<V> log(final StringBuilder content) {
-        subLoggers.add(new InfoLogStringBuilder(content));
+        recordLog(content);
         return this;
     }
 
+    /**
+     * Appends an event to the log of this DataSet, if the blend on the
+     * current thread is being traced, or if this DataSet is debugged, in
+     * which case the event goes to a detached trace outside of a traced
+     * blend.
+     *
+     * @see BlendTrace
+     */
+    void record(final int type, final Object subject, final int a, final int b, final long x, final long y) {
+        final BlendTrace t = BlendTrace.current();
+        if (t.isEnabled()) append(t, type, subject, a, b, x, y);
+        else if (debug) append(detachedTrace(), type, subject, a, b, x, y);
+    }
+
+    /**
+     * Appends an explicitly logged content to the log of this DataSet,
+     * which is kept also when the blend is not being traced.
+     */
+    private void recordLog(final Object content) {
+        final BlendTrace t = BlendTrace.current();
+        append(t.isEnabled() ? t : detachedTrace(), BlendTrace.LOG, content, 0, 0, 0L, 0L);
+    }
+
+    /**
+     * Returns the detached trace of this thread in which the log of this
+     * DataSet continues, the one it already uses or a new one.
+     */
+    private BlendTrace detachedTrace() {
+        final BlendTrace t = trace;
+        return t.isDetachedIn(Thread.currentThread()) ? t : BlendTrace.detached();
+    }
+
+    private void append(final BlendTrace t, final int type, final Object subject, final int a, final int b, final long x, final long y) {
+        if (trace != t) rebindLog(t);
+        else if (traceEpoch != t.epoch()) traceTail = -1; // the log was discarded with an earlier blend
+        traceTail = t.append(traceTail, type, subject, a, b, x, y);
+        traceEpoch = t.epoch();
+    }
+
+    /**
+     * Starts the log of this DataSet, continuing the log of the given
+     * DataSet. The common part of the logs is shared if both are recorded
+     * on the current thread.
+     */
+    private void inheritLog(final DataSet<V> parentDataSet) {
+        final BlendTrace t = BlendTrace.current();
+        trace = t;
+        traceEpoch = t.epoch();
+        traceTail = -1;
+        if (parentDataSet == null) return;
+        if (parentDataSet.trace == t) {
+            if (parentDataSet.traceEpoch == traceEpoch) traceTail = parentDataSet.traceTail;
+        }
+        else if (t.isEnabled()) rebindLog(t, parentDataSet);
+        else if (parentDataSet.traceTail >= 0) {
+            // continued in a trace of this thread when this DataSet records
+            trace = parentDataSet.trace;
+            traceEpoch = parentDataSet.traceEpoch;
+            traceTail = parentDataSet.traceTail;
+        }
+    }
+
+    private void rebindLog(final BlendTrace t) {
+        rebindLog(t, this);
+    }
+
+    /**
+     * Continues the log of the given DataSet, recorded on another thread,
+     * in the trace of this thread. The log recorded so far is rendered, as
+     * the other thread may reuse its trace.
+     */
+    private void rebindLog(final BlendTrace t, final DataSet<V> source) {
+        final StringBuilder text = new StringBuilder(256);
+        source.writeLog(text);
+        trace = t;
+        traceTail = text.length() == 0 ? -1 : t.append(-1, BlendTrace.LOG, text, 0, 0, 0L, 0L);
+        traceEpoch = t.epoch();
+    }
+
     public void setLimit(final String key, final Integer value) {
         limitTags.put(key, value);
     }
@@ -563,6 +1945,7 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
      */
     public BlenderResult<V> result(final String blenderName, final Map<String, Object> blenderFeedback) {
         applyFilters();
+        if (size != length) compactData();
         return new BlenderResult<>(this, blenderName, blenderFeedback);
     }
 
@@ -575,6 +1958,7 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
      */
     public BlenderResult<V> result(final String blenderName) {
         applyFilters();
+        if (size != length) compactData();
         return new BlenderResult<>(this, blenderName);
     }
 
@@ -582,34 +1966,27 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
 
     public static final class DataSetIterator<V extends DataValue> implements Iterator<V> {
         private final DataSet<V> dataSet;
-        private int nextIndex;
+        private int nextIndex; // -1 when there are no more items
         private V current = null;
         private int requiredModificationCount;
 
         DataSetIterator(final DataSet<V> dataSet) {
             this.dataSet = dataSet;
-            final V[] data = dataSet.data;
-            final int length = dataSet.length;
-            // position the index of the next value at the first non-null value
-            int i = 0;
-            while ((i < length) && (data[i] == null)) i++;
-            nextIndex = i;
+            nextIndex = dataSet.nextLive(0);
             requiredModificationCount = dataSet.modificationCount;
         }
 
         @Override
         public boolean hasNext() {
-            return nextIndex < dataSet.length;
+            return nextIndex >= 0;
         }
 
         @Override
         public V next() {
             if (requiredModificationCount != dataSet.modificationCount) throw new ConcurrentModificationException();
-            final int length = dataSet.length;
-            if (nextIndex >= length) throw new NoSuchElementException("No more data");
-            final V[] data = dataSet.data;
-            current = data[nextIndex++];
-            while ((nextIndex < length) && (data[nextIndex] == null)) nextIndex++;
+            if (nextIndex < 0) throw new NoSuchElementException("No more data");
+            current = dataSet.data[nextIndex];
+            nextIndex = dataSet.nextLive(nextIndex + 1);
             return current;
         }
 
@@ -617,14 +1994,8 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
         public void remove() {
             if (current == null) throw new IllegalStateException("The next() method has not yet been called, or the current entry has already been removed");
             if (requiredModificationCount != dataSet.modificationCount) throw new ConcurrentModificationException();
-            final int beforeIndex = current.arrayIndex;
-            if (dataSet.remove(current) && (beforeIndex != current.arrayIndex)) {
-                // the indexes changed, recompute next index
-                nextIndex = current.arrayIndex + 1;
-                final int length = dataSet.length;
-                final V[] data = dataSet.data;
-                while ((nextIndex < length) && (data[nextIndex] == null)) nextIndex++;
-            }
+            dataSet.remove(current); // removal does not move items, but pending filters may remove the next item
+            if (nextIndex >= 0) nextIndex = dataSet.nextLive(nextIndex);
             requiredModificationCount = dataSet.modificationCount;
             current = null;
         }
@@ -633,21 +2004,19 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
         public void forEachRemaining(final Consumer<? super V> action) {
             if (action == null) throw new NullPointerException();
             if (requiredModificationCount != dataSet.modificationCount) throw new ConcurrentModificationException();
-            final int length = dataSet.length;
             final V[] data = dataSet.data;
-            for (int i = nextIndex; i < length; i++) {
+            for (int i = nextIndex; i >= 0; i = dataSet.nextLive(i + 1)) {
                 final V v = data[i];
-                if (v == null) continue;
                 try {
                     action.accept(v);
                 }
                 catch (RuntimeException e) {
-                    nextIndex = i + 1;
+                    nextIndex = dataSet.nextLive(i + 1);
                     current = v;
                     throw e;
                 }
             }
-            nextIndex = length;
+            nextIndex = -1;
             current = null;
             if (requiredModificationCount != dataSet.modificationCount) throw new ConcurrentModificationException();
         }
@@ -669,7 +2038,6 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
         private int fence;
 
         DataSetSpliterator(final DataSet<V> dataSet) {
-            if (dataSet.size != dataSet.length) throw new IllegalStateException("Spliterator created on an un-compacted DataSet; invoke compactData() before spliterator()");
             this.dataSet = dataSet;
             requiredModificationCount = 0;
             fence = -1; // support late binding
@@ -749,68 +2117,313 @@ public final class DataSet<V extends DataValue> implements Set<V>, LoggingSuppor
      */
     public static final class Builder<V extends DataValue> {
         protected final DuplicateResolver<V> duplicateResolver;
-        protected final Map<V, V> productMap = new HashMap<>();
+        protected final KeyExtractor<? super V> keyExtractor;
+        protected final KeyIndex index = new KeyIndex(ARRAY_INCREMENT);
         protected final DataSet<V> parentDataSet;
+        @SuppressWarnings("unchecked")
         protected V[] data = (V[]) new DataValue[ARRAY_INCREMENT];
         protected int size = 0;
-
+        protected Predicate<? super V> admission = null; // when set, only values satisfying it are added
+        protected BlendEnvironment environment = null; // when set, applied to the built DataSet
+
+        /**
+         * Constructs a builder taking the key extractor from the parent
+         * DataSet, if there is one, otherwise keys are hash codes.
+         *
+         * @param duplicateResolver the resolver for duplicate items
+         * @param parentDataSet the DataSet from which logically follows the built DataSet, or null if this is the first DataSet
+         */
         public Builder(final DuplicateResolver<V> duplicateResolver, final DataSet<V> parentDataSet) {
+            this(duplicateResolver, parentDataSet == null ? KeyExtractor.byHashCode() : parentDataSet.keyExtractor, parentDataSet);
+        }
+
+        /**
+         * Constructs a builder with the given key extractor.
+         *
+         * @param duplicateResolver the resolver for duplicate items
+         * @param keyExtractor the extractor of item keys, for indexing
+         * @param parentDataSet the DataSet from which logically follows the built DataSet, or null if this is the first DataSet
+         */
+        public Builder(final DuplicateResolver<V> duplicateResolver, final KeyExtractor<? super V> keyExtractor, final DataSet<V> parentDataSet) {
             this.duplicateResolver = duplicateResolver;
+            this.keyExtractor = keyExtractor;
             this.parentDataSet = parentDataSet;
         }
 
         public void add(final V value) {
             if (value == null) throw new NullPointerException();
-            final V existing = productMap.put(value, value);
-            if (existing == null) {
-                if (size >= data.length) {
-                    data = Arrays.copyOf(data, size + ARRAY_INCREMENT);
-                }
+            final Predicate<? super V> a = admission;
+            if ((a != null) && !a.test(value)) return;
+            if (size >= data.length) {
+                data = Arrays.copyOf(data, size + ARRAY_INCREMENT);
+            }
+            final int existingIndex = index.putIfAbsent(keyExtractor.keyOf(value), value, size, data);
+            if (existingIndex < 0) {
                 data[size] = value;
                 value.arrayIndex = size;
                 size++;
             }
-            else if (value != existing) {
-                final V correct = duplicateResolver.resolve(value, existing);
-                if (correct == value) {
+            else {
+                final V existing = data[existingIndex];
+                if ((value != existing) && (duplicateResolver.resolve(value, existing) == value)) {
                     // retain the new value (a replacement has occurred)
-                    data[value.arrayIndex = existing.arrayIndex] = value;
-                }
-                else {
-                    // retain the old value (no replacement occurred)
-                    productMap.put(correct, correct);
+                    data[value.arrayIndex = existingIndex] = value;
                 }
             }
         }
 
+        /**
+         * Sets the condition that values must satisfy to be added, other
+         * values are silently dropped by {@link #add(DataValue)}. It is
+         * meant for producers that cannot evaluate a condition themselves,
+         * see {@link ProductPredicate}.
+         *
+         * @param admission the condition, or null to add all values
+         * @return the previous condition, or null if there was none
+         */
+        public Predicate<? super V> admit(final Predicate<? super V> admission) {
+            final Predicate<? super V> previous = this.admission;
+            this.admission = admission;
+            return previous;
+        }
+
+        /**
+         * Sets the environment of the blend to apply to the built DataSet,
+         * before anything is recorded in its log, see
+         * {@link DataSet#environment(BlendEnvironment)}.
+         *
+         * @param environment the environment of the blend, or null to inherit the settings of the parent DataSet only
+         * @return this builder, to support chaining
+         */
+        public Builder<V> environment(final BlendEnvironment environment) {
+            this.environment = environment;
+            return this;
+        }
+
+        /**
+         * Builds the DataSet. The builder hands its storage over to the
+         * DataSet without copying, so it must not be used afterwards.
+         *
+         * @return the built DataSet
+         */
         public DataSet<V> build() {
-            return new DataSet<V>(duplicateResolver, data, productMap, parentDataSet);
+            return new DataSet<V>(duplicateResolver, keyExtractor, data, index, parentDataSet, environment);
+        }
+
+        /**
+         * Adds all items of the given builder, in their order, resolving
+         * duplicates as if they were added one by one. The given builder is
+         * not modified.
+         *
+         * @param other the builder whose items to add
+         */
+        public void addAll(final Builder<? extends V> other) {
+            final V[] d = other.data;
+            final int n = other.size;
+            for (int i = 0; i < n; i++) add(d[i]);
         }
 
         public int size() {
-            return productMap.size();
+            return size;
         }
     }
 
-    static final class InfoLogStringBuilder implements LoggingSupport {
-        private final StringBuilder log;
-        InfoLogStringBuilder(final StringBuilder log) {
-            this.log = log;
+    /**
+     * A builder that can be filled from many threads at once, e.g. from a
+     * parallel stream. Each thread adds into its own shard without any
+     * synchronization, and the shards are merged by {@link #build()} or
+     * {@link #drainTo(Builder)}. The merge is deterministic regardless of
+     * how the items were distributed among threads: items are merged in the
+     * order of their keys, and duplicates are resolved in the order of the
+     * tie-breaker, if one is given. Without a tie-breaker the result is
+     * still deterministic for resolvers that return the same item for both
+     * orders of arguments. Thus the resulting DataSet is ordered by keys.
+     * <p>
+     * All additions must happen-before the merge, as is the case with
+     * the terminal operation of a stream or with joined tasks. The builder
+     * cannot be used after the merge: both additions and another merge
+     * throw an {@link IllegalStateException}. Shards are kept by the
+     * builder itself, so nothing outlives it in the threads of a pool.
+     *
+     * @param <V> the type of items in the DataSet
+     */
+    public static final class ConcurrentBuilder<V extends DataValue> {
+        private static final int SHARD_INCREMENT = 1024;
+
+        private final DuplicateResolver<V> duplicateResolver;
+        private final KeyExtractor<? super V> keyExtractor;
+        private final Comparator<? super V> tieBreaker;
+        private final DataSet<V> parentDataSet;
+        private final ConcurrentHashMap<Thread, Shard<V>> shards = new ConcurrentHashMap<>(); // by the adding thread, dropped with the builder
+        private volatile boolean drained = false;
+
+        /**
+         * Constructs a concurrent builder.
+         *
+         * @param duplicateResolver the resolver for duplicate items
+         * @param keyExtractor the extractor of item keys, for indexing and ordering
+         * @param tieBreaker the order in which to resolve duplicates, or null
+         * @param parentDataSet the DataSet from which logically follows the built DataSet, or null if this is the first DataSet
+         */
+        public ConcurrentBuilder(final DuplicateResolver<V> duplicateResolver, final KeyExtractor<? super V> keyExtractor, final Comparator<? super V> tieBreaker, final DataSet<V> parentDataSet) {
+            this.duplicateResolver = duplicateResolver;
+            this.keyExtractor = keyExtractor;
+            this.tieBreaker = tieBreaker;
+            this.parentDataSet = parentDataSet;
         }
-        @Override
-        public void writeLog(final StringBuilder output) {
-            output.append(log);
+
+        /**
+         * Adds the item to the shard of the current thread.
+         *
+         * @param value the item to add
+         * @throws IllegalStateException if the shards were already merged
+         */
+        public void add(final V value) {
+            if (value == null) throw new NullPointerException();
+            if (drained) throw new IllegalStateException("Cannot add to a concurrent builder after its shards were merged");
+            final Thread thread = Thread.currentThread();
+            Shard<V> shard = shards.get(thread);
+            if (shard == null) shard = shards.computeIfAbsent(thread, (final Thread t) -> new Shard<>());
+            shard.add(keyExtractor.keyOf(value), value);
+        }
+
+        /**
+         * Returns the number of added items, including duplicates. Exact
+         * only when no additions are in progress.
+         *
+         * @return the number of added items
+         */
+        public int size() {
+            int n = 0;
+            for (final Shard<V> shard : shards.values()) n += shard.size;
+            return n;
+        }
+
+        /**
+         * Merges the shards into the given builder, in the deterministic
+         * order, so the given builder's resolver resolves duplicates. This
+         * is how a provider that fills a {@link Builder} can scan in
+         * parallel.
+         *
+         * @param output the builder where to add items
+         * @throws IllegalStateException if the shards were already merged
+         */
+        @SuppressWarnings("unchecked")
+        public void drainTo(final Builder<V> output) {
+            if (drained) throw new IllegalStateException("The shards of the concurrent builder were already merged");
+            drained = true;
+            final int n = size();
+            final long[] keys = new long[n];
+            final V[] items = (V[]) new DataValue[n];
+            int j = 0;
+            for (final Shard<V> shard : shards.values()) {
+                System.arraycopy(shard.keys, 0, keys, j, shard.size);
+                System.arraycopy(shard.items, 0, items, j, shard.size);
+                j += shard.size;
+            }
+            shards.clear();
+            final int[] order = new int[n];
+            for (int i = 0; i < n; i++) order[i] = i;
+            final Comparator<? super V> t = tieBreaker;
+            IndexSort.mergeSort(order, new int[n], 0, n, (final int a, final int b) -> {
+                final int c = Long.compare(keys[a], keys[b]);
+                if ((c != 0) || (t == null)) return c;
+                return t.compare(items[a], items[b]);
+            });
+            for (int i = 0; i < n; i++) output.add(items[order[i]]);
+        }
+
+        /**
+         * Merges the shards and builds the DataSet.
+         *
+         * @return the built DataSet
+         */
+        public DataSet<V> build() {
+            final Builder<V> builder = new Builder<>(duplicateResolver, keyExtractor, parentDataSet);
+            drainTo(builder);
+            return builder.build();
+        }
+
+        /**
+         * Items added by one thread, with their keys.
+         */
+        private static final class Shard<V extends DataValue> {
+            long[] keys = new long[SHARD_INCREMENT];
+            @SuppressWarnings("unchecked")
+            V[] items = (V[]) new DataValue[SHARD_INCREMENT];
+            int size = 0;
+
+            void add(final long key, final V value) {
+                final int i = size;
+                if (i >= keys.length) {
+                    keys = Arrays.copyOf(keys, i << 1);
+                    items = Arrays.copyOf(items, i << 1);
+                }
+                keys[i] = key;
+                items[i] = value;
+                size = i + 1;
+            }
         }
     }
 
-    static final class InfoLogString implements LoggingSupport {
-        private final String log;
-        InfoLogString(final String log) {
-            this.log = log;
+    /**
+     * Evaluates stateless filters over a range of slots, splitting the range
+     * on 64-slot boundaries so each task writes its own words of the
+     * rejection bitmap.
+     */
+    static final class FilterTask<V extends DataValue> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final StatelessFilter<V>[] filters;
+        private final FilterStatistics statistics;
+        private final V[] data;
+        private final long[] live;
+        private final long[] rejected;
+        private final int from;
+        private final int to;
+
+        FilterTask(final StatelessFilter<V>[] filters, final FilterStatistics statistics, final V[] data, final long[] live, final long[] rejected, final int from, final int to) {
+            this.filters = filters;
+            this.statistics = statistics;
+            this.data = data;
+            this.live = live;
+            this.rejected = rejected;
+            this.from = from;
+            this.to = to;
         }
+
         @Override
-        public void writeLog(final StringBuilder output) {
-            output.append(log);
+        protected void compute() {
+            if ((to - from) > PARALLEL_CHUNK) {
+                final int middle = ((from + to) >>> 1) & ~63;
+                invokeAll(new FilterTask<>(filters, statistics, data, live, rejected, from, middle), new FilterTask<>(filters, statistics, data, live, rejected, middle, to));
+                return;
+            }
+            final StatelessFilter<V>[] f = filters;
+            final FilterStatistics s = statistics;
+            final int fc = f.length;
+            final V[] d = data;
+            final long[] b = live;
+            final int words = (to + 63) >>> 6;
+            int tested = 0;
+            for (int w = from >>> 6; w < words; w++) {
+                long bits = b[w];
+                long r = 0L;
+                while (bits != 0L) {
+                    final long bit = bits & -bits;
+                    final V v = d[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                    bits ^= bit;
+                    if ((s == null) || ((++tested & FilterStatistics.SAMPLE_MASK) != 0)) {
+                        for (int j = 0; j < fc; j++) {
+                            if (!f[j].test(v)) {
+                                r |= bit;
+                                break;
+                            }
+                        }
+                    }
+                    else if (!s.sample(f, v)) r |= bit;
+                }
+                rejected[w] = r;
+            }
         }
     }
 }
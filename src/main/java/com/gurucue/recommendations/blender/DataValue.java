@@ -26,7 +26,25 @@ package com.gurucue.recommendations.blender;
  *
  * @see DataSet
  */
-public class DataValue {
+public class DataValue implements Cloneable {
     /** Index to the internal array of {@link com.gurucue.recommendations.blender.DataSet}. */
     int arrayIndex;
+
+    /**
+     * Returns a copy of this item that can be modified without affecting
+     * this item, e.g. for handing a cached result to several callers. The
+     * default is a shallow copy, so descendants holding mutable objects,
+     * such as collections or arrays, must override it to copy them too.
+     *
+     * @return the copy of this item
+     * @see DataSet#withCopiedItems()
+     */
+    public DataValue copy() {
+        try {
+            return (DataValue) super.clone();
+        }
+        catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("A DataValue is not cloneable: " + e.toString(), e); // cannot happen, DataValue is Cloneable
+        }
+    }
 }
@@ -0,0 +1,71 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+import com.gurucue.recommendations.recommender.Recommendation;
+
+import java.util.Map;
+
+/**
+ * Provides explanations of recommended items on demand. A recommender
+ * stage gives each {@link VideoData} only a provider and a compact
+ * reference, e.g. the index of the item's {@link Recommendation}, with
+ * {@link VideoData#explainLazily(ExplanationProvider, int)}, and the
+ * explanations are materialised only for the items that make it into
+ * the result, see {@link VideoData#materializeExplanations(DataSet)}.
+ */
+public interface ExplanationProvider {
+    /**
+     * Returns the explanation of the referenced recommendation.
+     *
+     * @param reference the reference given to the item
+     * @return the explanation, or null
+     */
+    String explanation(int reference);
+
+    /**
+     * Returns the formatted explanations of the referenced recommendation,
+     * each mapped to its weight.
+     *
+     * @param reference the reference given to the item
+     * @return the formatted explanations, or null
+     */
+    Map<String, Float> prettyExplanations(int reference);
+
+    /**
+     * Returns the provider of explanations from the given recommendations,
+     * where a reference is an index into the array.
+     *
+     * @param recommendations the recommendations returned by a recommender
+     * @return the provider of explanations
+     */
+    static ExplanationProvider of(final Recommendation[] recommendations) {
+        return new ExplanationProvider() {
+            @Override
+            public String explanation(final int reference) {
+                return recommendations[reference].explanation;
+            }
+
+            @Override
+            public Map<String, Float> prettyExplanations(final int reference) {
+                return recommendations[reference].prettyExplanations;
+            }
+        };
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Measured pass rates and costs of stateless filters, used to evaluate
+ * reorderable filters in the order that rejects items the cheapest. A
+ * blender keeps one instance for its whole lifetime and hands it to
+ * every DataSet or {@link StatelessFilterChain} it creates, so the
+ * statistics accumulate across requests and the order converges.
+ * Statistics are kept per {@link StatelessFilter#statisticsKey() statistics key},
+ * at most {@link #MAX_ENTRIES} of them, and old measurements are
+ * gradually decayed so the order follows changes in the data.
+ * <p>
+ * Only a sample of items is measured: every {@link #SAMPLE_INTERVAL}th
+ * item is tested against all reorderable filters of a run, not just up
+ * to the first rejection, so the pass rates are not skewed by the
+ * current order. The instance is thread-safe.
+ *
+ * @see StatelessFilter#isReorderable()
+ * @see DataSet#adaptiveFiltering(FilterStatistics)
+ */
+public final class FilterStatistics {
+    /** Every this many items is a sample, must be a power of 2. */
+    public static final int SAMPLE_INTERVAL = 64;
+    static final int SAMPLE_MASK = SAMPLE_INTERVAL - 1;
+    /** The minimum number of samples of each filter in a run before the run is reordered. */
+    static final long MIN_SAMPLES = 64L;
+    /** When a filter reaches this many samples, all its measurements are halved. */
+    static final long DECAY_THRESHOLD = 1L << 16;
+    /** The maximum number of statistics keys, the least recently used are forgotten first. */
+    public static final int MAX_ENTRIES = 10000;
+
+    private final ConcurrentMap<Object, Entry> entries = CacheBuilder.newBuilder().maximumSize(MAX_ENTRIES).<Object, Entry>build().asMap();
+
+    /**
+     * Returns the filters in the order in which they should be evaluated.
+     * Each run of consecutive reorderable filters is sorted by the average
+     * time spent per rejected item, ascending, once every filter in the
+     * run has been sampled enough. Other filters keep their positions.
+     *
+     * @param filters the filters in their declared order, the array is not modified
+     * @return the filters in the evaluation order, the given array if no change is required
+     */
+    public <V extends DataValue> StatelessFilter<V>[] order(final StatelessFilter<V>[] filters) {
+        final int n = filters.length;
+        StatelessFilter<V>[] result = filters;
+        int start = 0;
+        while (start < n) {
+            if (!filters[start].isReorderable()) {
+                start++;
+                continue;
+            }
+            int end = start + 1;
+            while ((end < n) && filters[end].isReorderable()) end++;
+            if ((end - start) > 1) {
+                final double[] ranks = new double[end - start];
+                boolean known = true;
+                for (int i = start; i < end; i++) {
+                    final Entry e = entries.get(filters[i].statisticsKey());
+                    final double rank = e == null ? Double.NaN : e.rank();
+                    if (Double.isNaN(rank)) {
+                        known = false;
+                        break;
+                    }
+                    ranks[i - start] = rank;
+                }
+                if (known) {
+                    if (result == filters) result = filters.clone();
+                    // a stable insertion sort, runs are short
+                    for (int i = start + 1; i < end; i++) {
+                        final StatelessFilter<V> f = result[i];
+                        final double r = ranks[i - start];
+                        int j = i - 1;
+                        while ((j >= start) && (ranks[j - start] > r)) {
+                            result[j + 1] = result[j];
+                            ranks[j + 1 - start] = ranks[j - start];
+                            j--;
+                        }
+                        result[j + 1] = f;
+                        ranks[j + 1 - start] = r;
+                    }
+                }
+            }
+            start = end;
+        }
+        return result;
+    }
+
+    /**
+     * Tests the item with the given filters while measuring each
+     * reorderable filter. A rejection by a reorderable filter does not
+     * stop the evaluation of the rest of its run, a rejection by any other
+     * filter does.
+     *
+     * @param filters the filters in the evaluation order
+     * @param v the item to test
+     * @return whether all filters accept the item
+     */
+    <V extends DataValue> boolean sample(final StatelessFilter<V>[] filters, final V v) {
+        final int n = filters.length;
+        boolean passed = true;
+        for (int i = 0; i < n; i++) {
+            final StatelessFilter<V> f = filters[i];
+            if (f.isReorderable()) {
+                final long timeStart = System.nanoTime();
+                final boolean p = f.test(v);
+                final long timeEnd = System.nanoTime();
+                entry(f).record(p, timeEnd - timeStart);
+                passed &= p;
+            }
+            else if (!passed || !f.test(v)) return false;
+        }
+        return passed;
+    }
+
+    /**
+     * Forgets all measurements.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    private Entry entry(final StatelessFilter<?> filter) {
+        final Object key = filter.statisticsKey();
+        final Entry e = entries.get(key);
+        if (e != null) return e;
+        final Entry created = new Entry();
+        final Entry existing = entries.putIfAbsent(key, created);
+        return existing == null ? created : existing;
+    }
+
+    private static final class Entry {
+        private long tests = 0L;
+        private long passes = 0L;
+        private long nanos = 0L;
+
+        synchronized void record(final boolean passed, final long ns) {
+            tests++;
+            if (passed) passes++;
+            nanos += ns;
+            if (tests >= DECAY_THRESHOLD) {
+                tests >>>= 1;
+                passes >>>= 1;
+                nanos >>>= 1;
+            }
+        }
+
+        /**
+         * The average time spent per rejected item, smoothed so a filter
+         * that never rejects anything still ranks by its cost.
+         */
+        synchronized double rank() {
+            if (tests < MIN_SAMPLES) return Double.NaN;
+            return (double) nanos / (double) (tests - passes + 1L);
+        }
+    }
+}
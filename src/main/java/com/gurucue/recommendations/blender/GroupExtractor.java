@@ -0,0 +1,54 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+/**
+ * Extracts the groups of a {@link DataValue} as primitive
+ * <code>long</code> keys, e.g. the series, the TV-channels or the genres
+ * of a video, for {@link DataSet#limitPerGroup(GroupExtractor, int, gnu.trove.map.TLongIntMap)}.
+ * An item may belong to any number of groups, including none.
+ */
+public interface GroupExtractor<V> {
+    /**
+     * Writes the keys of the item's groups into the given buffer. If the
+     * item has more groups than the buffer can hold, it must return their
+     * number without writing them, and is invoked again with a buffer of
+     * at least that size.
+     *
+     * @param value the item
+     * @param groups the buffer for the keys of the groups
+     * @return the number of the item's groups
+     */
+    int groupsOf(V value, long[] groups);
+
+    /**
+     * Returns the group extractor of items belonging to exactly one group,
+     * given by the key extractor.
+     *
+     * @param key the extractor of the group key
+     * @param <V> the type of items
+     * @return the group extractor
+     */
+    static <V> GroupExtractor<V> single(final KeyExtractor<? super V> key) {
+        return (final V value, final long[] groups) -> {
+            groups[0] = key.keyOf(value);
+            return 1;
+        };
+    }
+}
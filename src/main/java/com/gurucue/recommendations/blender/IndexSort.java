@@ -0,0 +1,73 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+/**
+ * A stable merge sort of an array of indices, e.g. of slots, comparing
+ * them by what they index. It sorts primitive <code>int</code>s, so no
+ * boxing occurs, and short runs are sorted by insertion.
+ */
+final class IndexSort {
+    private static final int INSERTION_THRESHOLD = 16;
+
+    private IndexSort() {}
+
+    /**
+     * Sorts the indices in the given range of the array.
+     *
+     * @param a the array of indices to sort
+     * @param tmp the scratch array, at least as long as the sorted range reaches
+     * @param from the start of the range, inclusive
+     * @param to the end of the range, exclusive
+     * @param comparator the comparison of indices
+     */
+    static void mergeSort(final int[] a, final int[] tmp, final int from, final int to, final IndexComparator comparator) {
+        final int n = to - from;
+        if (n < INSERTION_THRESHOLD) {
+            // insertion sort
+            for (int i = from + 1; i < to; i++) {
+                final int v = a[i];
+                int j = i - 1;
+                while ((j >= from) && (comparator.compare(a[j], v) > 0)) {
+                    a[j + 1] = a[j];
+                    j--;
+                }
+                a[j + 1] = v;
+            }
+            return;
+        }
+        final int middle = (from + to) >>> 1;
+        mergeSort(a, tmp, from, middle, comparator);
+        mergeSort(a, tmp, middle, to, comparator);
+        if (comparator.compare(a[middle - 1], a[middle]) <= 0) return; // already in order
+        System.arraycopy(a, from, tmp, from, n);
+        int i = from, j = middle, k = from;
+        while ((i < middle) && (j < to)) a[k++] = comparator.compare(tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++];
+        while (i < middle) a[k++] = tmp[i++];
+        while (j < to) a[k++] = tmp[j++];
+    }
+
+    /**
+     * A comparison of two indices.
+     */
+    @FunctionalInterface
+    interface IndexComparator {
+        int compare(int index1, int index2);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+/**
+ * Extracts the identity of a {@link DataValue} as a primitive
+ * <code>long</code>. {@link DataSet} uses it to index its items without
+ * boxing them into a hash map. Values that are equal must produce the same
+ * key; different values may share a key, in which case they are told apart
+ * using {@link Object#equals(Object)}, so a perfect key (such as
+ * {@link VideoData#KEY_EXTRACTOR}) is faster but not required.
+ *
+ * @see DataSet
+ */
+public interface KeyExtractor<V> {
+    long keyOf(V value);
+
+    /**
+     * Returns the key extractor that uses {@link Object#hashCode()} for the
+     * key. It is the default for datasets that are not given their own key
+     * extractor.
+     *
+     * @param <V> the type of items
+     * @return the key extractor based on hash codes
+     */
+    static <V> KeyExtractor<V> byHashCode() {
+        return Object::hashCode;
+    }
+}
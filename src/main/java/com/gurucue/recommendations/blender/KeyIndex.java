@@ -0,0 +1,267 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing (linear probing) index mapping the <code>long</code>
+ * key of an item, as given by a {@link KeyExtractor}, to the item's slot in
+ * the data array of a {@link DataSet}. Keys and slots are kept in two
+ * parallel primitive arrays, so no per-item objects are allocated. Because
+ * different items may share a key, a lookup compares the candidate item in
+ * the data array using <code>equals()</code>; keys of distinct items are
+ * thus allowed to collide, only at the cost of speed.
+ * Removals use backward-shift deletion, so there are no tombstones.
+ * Not thread-safe.
+ */
+final class KeyIndex {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private int[] slots; // slot + 1, 0 marks an empty entry
+    private int mask;
+    private int count;
+    private int threshold;
+
+    KeyIndex(final int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * The clone constructor.
+     *
+     * @param source the index to copy
+     */
+    KeyIndex(final KeyIndex source) {
+        keys = Arrays.copyOf(source.keys, source.keys.length);
+        slots = Arrays.copyOf(source.slots, source.slots.length);
+        mask = source.mask;
+        count = source.count;
+        threshold = source.threshold;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the slot of the item equal to the given value.
+     *
+     * @param key the key of the value
+     * @param value the value to look up
+     * @param data the data array where slots point to
+     * @return the slot of the equal item, or -1 if there is none
+     */
+    int get(final long key, final Object value, final DataValue[] data) {
+        final long[] k = keys;
+        final int[] s = slots;
+        int i = hash(key) & mask;
+        int slot;
+        while ((slot = s[i]) != 0) {
+            if (k[i] == key) {
+                final DataValue candidate = data[slot - 1];
+                if ((candidate == value) || candidate.equals(value)) return slot - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Inserts the mapping of the given value to the given slot, unless an
+     * equal item is already indexed.
+     *
+     * @param key the key of the value
+     * @param value the value to index
+     * @param slot the slot to map the value to
+     * @param data the data array where slots point to
+     * @return the slot of the existing equal item, or -1 if the value has been inserted
+     */
+    int putIfAbsent(final long key, final Object value, final int slot, final DataValue[] data) {
+        final long[] k = keys;
+        final int[] s = slots;
+        int i = hash(key) & mask;
+        int existing;
+        while ((existing = s[i]) != 0) {
+            if (k[i] == key) {
+                final DataValue candidate = data[existing - 1];
+                if ((candidate == value) || candidate.equals(value)) return existing - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        k[i] = key;
+        s[i] = slot + 1;
+        if (++count > threshold) allocate(keys.length << 1);
+        return -1;
+    }
+
+    /**
+     * Inserts the mapping without checking for an equal item, to be used
+     * when the caller guarantees uniqueness, e.g. when re-indexing.
+     *
+     * @param key the key of the item
+     * @param slot the slot of the item
+     */
+    void putUnique(final long key, final int slot) {
+        final long[] k = keys;
+        final int[] s = slots;
+        int i = hash(key) & mask;
+        while (s[i] != 0) i = (i + 1) & mask;
+        k[i] = key;
+        s[i] = slot + 1;
+        if (++count > threshold) allocate(keys.length << 1);
+    }
+
+    /**
+     * Removes the item equal to the given value.
+     *
+     * @param key the key of the value
+     * @param value the value to remove
+     * @param data the data array where slots point to
+     * @return the slot of the removed item, or -1 if there was no equal item
+     */
+    int remove(final long key, final Object value, final DataValue[] data) {
+        final long[] k = keys;
+        final int[] s = slots;
+        int i = hash(key) & mask;
+        int slot;
+        while ((slot = s[i]) != 0) {
+            if (k[i] == key) {
+                final DataValue candidate = data[slot - 1];
+                if ((candidate == value) || candidate.equals(value)) {
+                    delete(i);
+                    return slot - 1;
+                }
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the mapping of the given key to the given slot. Faster than
+     * {@link #remove(long, Object, DataValue[])}, because the item is
+     * identified by its slot and no <code>equals()</code> is needed.
+     *
+     * @param key the key of the item
+     * @param slot the slot of the item
+     * @return whether the mapping existed
+     */
+    boolean removeSlot(final long key, final int slot) {
+        final int i = find(key, slot);
+        if (i < 0) return false;
+        delete(i);
+        return true;
+    }
+
+    /**
+     * Changes the slot of an item, when the item has been moved in the
+     * data array.
+     *
+     * @param key the key of the item
+     * @param oldSlot the current slot of the item
+     * @param newSlot the new slot of the item
+     */
+    void relocate(final long key, final int oldSlot, final int newSlot) {
+        final int i = find(key, oldSlot);
+        if (i >= 0) slots[i] = newSlot + 1;
+    }
+
+    void clear() {
+        if (count == 0) return;
+        Arrays.fill(slots, 0);
+        count = 0;
+    }
+
+    /**
+     * Re-indexes the first <code>length</code> slots of the given data
+     * array, skipping <code>null</code>s. Used after items have been
+     * reordered, e.g. sorted.
+     *
+     * @param keyExtractor the key extractor for the items
+     * @param data the data array
+     * @param length the number of slots in use
+     * @param <V> the type of items
+     */
+    <V extends DataValue> void rebuild(final KeyExtractor<? super V> keyExtractor, final V[] data, final int length) {
+        clear();
+        for (int i = 0; i < length; i++) {
+            final V v = data[i];
+            if (v != null) putUnique(keyExtractor.keyOf(v), i);
+        }
+    }
+
+    private int find(final long key, final int slot) {
+        final long[] k = keys;
+        final int[] s = slots;
+        final int target = slot + 1;
+        int i = hash(key) & mask;
+        int existing;
+        while ((existing = s[i]) != 0) {
+            if ((existing == target) && (k[i] == key)) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void delete(int gap) {
+        final long[] k = keys;
+        final int[] s = slots;
+        final int m = mask;
+        int i = (gap + 1) & m;
+        while (s[i] != 0) {
+            final int ideal = hash(k[i]) & m;
+            // move the entry into the gap if its ideal position is not cyclically within (gap, i]
+            if (((i - ideal) & m) >= ((i - gap) & m)) {
+                k[gap] = k[i];
+                s[gap] = s[i];
+                gap = i;
+            }
+            i = (i + 1) & m;
+        }
+        s[gap] = 0;
+        count--;
+    }
+
+    private void allocate(final int capacity) {
+        final long[] oldKeys = keys;
+        final int[] oldSlots = slots;
+        keys = new long[capacity];
+        slots = new int[capacity];
+        mask = capacity - 1;
+        threshold = capacity >>> 1;
+        if (oldSlots == null) return;
+        count = 0;
+        for (int i = oldSlots.length - 1; i >= 0; i--) {
+            if (oldSlots[i] != 0) putUnique(oldKeys[i], oldSlots[i] - 1);
+        }
+    }
+
+    private static int capacityFor(final int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while ((capacity >>> 1) < expectedSize) capacity <<= 1;
+        return capacity;
+    }
+
+    private static int hash(final long key) {
+        final long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing, spreads sequential IDs
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+import com.gurucue.recommendations.entity.product.GeneralVideoProduct;
+import com.gurucue.recommendations.entitymanager.ProductManager;
+
+/**
+ * A product-level condition of a blender, e.g. excluding adult content or
+ * genres, evaluated on the product before any {@link VideoData} is built
+ * for it. It is pushed down into {@link ProductManager} scans, so the
+ * rejected products never become items, and a provider may evaluate it
+ * against its own indexes. It must depend only on the product, and
+ * should mirror the corresponding stateless filters, which may stay in
+ * the blend for items that were built without the predicate.
+ */
+public interface ProductPredicate {
+    boolean test(GeneralVideoProduct product);
+
+    /**
+     * Returns the predicate accepting the products that both this and the
+     * other predicate accept.
+     *
+     * @param other the other predicate, may be null to accept everything
+     * @return the conjunction of the predicates
+     */
+    default ProductPredicate and(final ProductPredicate other) {
+        if (other == null) return this;
+        return (final GeneralVideoProduct product) -> test(product) && other.test(product);
+    }
+}
@@ -27,4 +27,41 @@ package com.gurucue.recommendations.blender;
  */
 public interface StatefulFilter<V extends DataValue> extends LoggingSupport {
     DataSet<V> transform(DataSet<V> source);
+
+    /**
+     * Whether this filter is an optional stage of a blend, which may be
+     * degraded when the blend's time budget does not suffice for it, see
+     * {@link DataSet#deadline(BlendEnvironment)}. The default is
+     * <code>false</code>, the filter is always applied.
+     *
+     * @return whether the filter is optional
+     * @see #degrade(DataSet)
+     */
+    default boolean isOptional() {
+        return false;
+    }
+
+    /**
+     * The time that this optional filter needs, in nanoseconds. The filter
+     * is degraded when less than this remains until the deadline. The
+     * default is 0, the filter is degraded only after the deadline.
+     *
+     * @return the time needed by the filter, in nanoseconds
+     */
+    default long requiredNanos() {
+        return 0L;
+    }
+
+    /**
+     * Returns the result of this optional filter when there is no time
+     * left to {@link #transform(DataSet) transform} the source, e.g.
+     * from a cheaper computation. It must not take long. The default
+     * returns the source unchanged, i.e. the filter is skipped.
+     *
+     * @param source the DataSet to filter
+     * @return the degraded result
+     */
+    default DataSet<V> degrade(final DataSet<V> source) {
+        return source;
+    }
 }
@@ -106,5 +106,57 @@ public interface StatelessFilter<V extends DataValue> extends LoggingSupport {
 
     default void onEnd(final DataSet<V> dataSet) {}
 
+    /**
+     * Whether the filter commutes with its neighbouring reorderable
+     * filters, so adaptive filtering may evaluate it earlier or later than
+     * declared. Such a filter must also tolerate being tested on items
+     * that other filters reject, without its result or its log being
+     * affected by the order. The default is <code>false</code>.
+     *
+     * @return whether the filter may be reordered
+     * @see FilterStatistics
+     */
+    default boolean isReorderable() {
+        return false;
+    }
+
+    /**
+     * Returns the key under which {@link FilterStatistics} measures this
+     * filter. Filters with equal keys share their measured pass rate and
+     * cost, so a parametrized filter must include its parameters in the
+     * key, and a filter created anew for each request should return a
+     * value key for its measurements to accumulate across requests. The
+     * default is the {@link #catalogueStaticKey() catalogue-static key}
+     * if there is one, otherwise the filter instance itself.
+     *
+     * @return the key of the filter's statistics, never null
+     * @see #isReorderable()
+     */
+    default Object statisticsKey() {
+        final Object key = catalogueStaticKey();
+        return key == null ? this : key;
+    }
+
+    /**
+     * Returns the key of this filter's results if the filter is
+     * catalogue-static: its result depends only on catalogue (product)
+     * data of an item, not on the consumer, the request, or state set by
+     * other filters. Filters with equal keys must give equal results, so
+     * a parametrized filter must include its parameters in the key. The
+     * results of catalogue-static filters are computed once per catalogue
+     * snapshot and reused by all requests, so such a filter is not
+     * invoked for items from a snapshot: its log and any counters it
+     * keeps cover only the items it was invoked on, while the number of
+     * items served from precomputed results, and of them rejected, is
+     * recorded in the trace after its log. The default is
+     * <code>null</code>, the filter is not catalogue-static.
+     *
+     * @return the key of the filter's results, or null
+     * @see StaticFilterResults
+     */
+    default Object catalogueStaticKey() {
+        return null;
+    }
+
     boolean test(V v);
 }
@@ -26,15 +26,40 @@ import java.util.function.Consumer;
 
 /**
  * A proxy to store stateless filters in a filter chain, to be used by a DataSet or a filter.
+ * When used as a filter with {@link #adaptive(FilterStatistics)}, reorderable filters
+ * are sampled and evaluated in the order that the statistics deem the cheapest.
  */
 public class StatelessFilterChain<V extends DataValue> implements StatelessFilter<V>, Iterable<StatelessFilter<V>> {
     final List<StatelessFilter<V>> filters = new ArrayList<>();
+    private FilterStatistics statistics = null;
+    private volatile StatelessFilter<V>[] order = null; // the evaluation order in adaptive mode, computed lazily
+    private int tested = 0; // sampling counter, only approximate under concurrent testing
 
     public StatelessFilterChain<V> filter(final StatelessFilter<V> filter) {
         filters.add(filter);
+        order = null;
+        return this;
+    }
+
+    /**
+     * Enables or disables adaptive ordering of the filters in this chain,
+     * when the chain is used as a filter.
+     *
+     * @param statistics the statistics to use and update, or null to evaluate filters in the declared order
+     * @return this chain, to support chaining
+     * @see DataSet#adaptiveFiltering(FilterStatistics)
+     */
+    public StatelessFilterChain<V> adaptive(final FilterStatistics statistics) {
+        this.statistics = statistics;
+        order = null;
         return this;
     }
 
+    @Override
+    public void onStart(final DataSet<V> dataSet) {
+        order = null; // pick up what the statistics learned since the last use
+    }
+
     @Override
     public Iterator<StatelessFilter<V>> iterator() {
         return filters.iterator();
@@ -52,9 +77,20 @@ public class StatelessFilterChain<V extends DataValue> implements StatelessFilte
 
     @Override
     public boolean test(final V v) {
-        final int n = filters.size();
+        final FilterStatistics s = statistics;
+        if (s == null) {
+            final int n = filters.size();
+            for (int i = 0; i < n; i++) {
+                if (!filters.get(i).test(v)) return false;
+            }
+            return true;
+        }
+        StatelessFilter<V>[] o = order;
+        if (o == null) order = o = s.order(filters.toArray(DataSet.<V>filterArray(filters.size())));
+        if ((++tested & FilterStatistics.SAMPLE_MASK) == 0) return s.sample(o, v);
+        final int n = o.length;
         for (int i = 0; i < n; i++) {
-            if (!filters.get(i).test(v)) return false;
+            if (!o[i].test(v)) return false;
         }
         return true;
     }
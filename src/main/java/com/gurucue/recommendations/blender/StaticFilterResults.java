@@ -0,0 +1,49 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+/**
+ * Precomputed results of catalogue-static filters, i.e. filters whose
+ * result depends only on catalogue data, for the items of a catalogue.
+ * A DataSet having this set (inherited by derived DataSets) applies
+ * catalogue-static filters by testing a bit per item instead of invoking
+ * the filters.
+ *
+ * @see StatelessFilter#catalogueStaticKey()
+ * @see CatalogueSnapshot
+ */
+public interface StaticFilterResults<V extends DataValue> {
+    /**
+     * Returns the position of the given item in the catalogue.
+     *
+     * @param value the item
+     * @return the position of the item in the catalogue, or -1 if the item is not from the catalogue
+     */
+    int positionOf(V value);
+
+    /**
+     * Returns the bitmap over catalogue positions of items that the given
+     * filter accepts, computing it on the first request for the filter's
+     * key.
+     *
+     * @param filter the catalogue-static filter
+     * @return the bitmap of accepted items
+     */
+    long[] passing(StatelessFilter<V> filter);
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The global dictionary of tags that filters set on {@link VideoData}.
+ * Every tag gets a small int ID, so a set of tags can be kept as a
+ * bitmask. IDs are assigned in the order in which tags are first seen and
+ * are never reused, so the vocabulary should be small and fixed, e.g.
+ * tags given as constants in filters. The instance is thread-safe.
+ */
+public final class TagDictionary {
+    public static final TagDictionary INSTANCE = new TagDictionary();
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] tags = new String[64]; // by ID, replaced when full
+
+    private TagDictionary() {}
+
+    /**
+     * Returns the ID of the given tag, assigning a new ID if the tag is not
+     * yet in the dictionary.
+     *
+     * @param tag the tag
+     * @return the ID of the tag
+     */
+    public int idOf(final String tag) {
+        final Integer id = ids.get(tag);
+        if (id != null) return id;
+        return assign(tag);
+    }
+
+    /**
+     * Returns the ID of the given tag, without adding it to the dictionary.
+     *
+     * @param tag the tag, may be null
+     * @return the ID of the tag, or -1 if the tag is null or not in the dictionary
+     */
+    public int lookup(final Object tag) {
+        if (tag == null) return -1;
+        final Integer id = ids.get(tag);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the tag with the given ID.
+     *
+     * @param id the ID of a tag, as returned by {@link #idOf(String)}
+     * @return the tag
+     */
+    public String tagOf(final int id) {
+        return tags[id];
+    }
+
+    /**
+     * Returns the number of tags in the dictionary.
+     *
+     * @return the number of tags
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    private synchronized int assign(final String tag) {
+        final Integer existing = ids.get(tag);
+        if (existing != null) return existing;
+        final int id = ids.size();
+        String[] t = tags;
+        if (id >= t.length) t = Arrays.copyOf(t, t.length << 1);
+        t[id] = tag;
+        tags = t; // publish the tag before its ID
+        ids.put(tag, id);
+        return id;
+    }
+}
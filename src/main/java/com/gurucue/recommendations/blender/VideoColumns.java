@@ -0,0 +1,304 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.blender;
+
+import com.gurucue.recommendations.entity.product.GeneralVideoProduct;
+
+import java.util.HashMap;
+
+/**
+ * A columnar companion to a <code>DataSet&lt;VideoData&gt;</code>: the
+ * fields that filters and sorting use most, copied into primitive arrays
+ * indexed by the slot of each item in the DataSet. Scanning a column is
+ * cache-friendly, whereas testing the items themselves chases several
+ * pointers per item. Filtering with {@link #retain(SlotPredicate)} and
+ * sorting with {@link #sort(SlotComparator)} modify the DataSet and keep
+ * the columns in sync, any other modification of the DataSet makes the
+ * columns stale, in which case they are rebuilt on next use.
+ * <p>
+ * Genres are encoded as bitsets over the genres that occur in the
+ * DataSet. The {@link #prediction} column is a copy, use
+ * {@link #refreshPredictions()} after a recommender sets predictions.
+ * The columns are not thread-safe.
+ */
+public final class VideoColumns {
+    private final DataSet<VideoData> dataSet;
+    private DataValue[] data; // the storage of the DataSet when the columns were built, a DataValue[] at runtime
+    private int modificationCount; // of the DataSet when the columns were last in sync
+
+    /** {@link VideoData#prediction} of each slot. */
+    public double[] prediction;
+    /** {@link GeneralVideoProduct#parentalRating} of each slot. */
+    public int[] parentalRating;
+    /** {@link GeneralVideoProduct#airDate} of each slot. */
+    public long[] airDate;
+    private long[] adult; // bitmap of slots with adult content
+    private long[] genres; // genreWords longs per slot
+    private int genreWords;
+    private HashMap<String, Integer> genreIds;
+
+    private VideoColumns(final DataSet<VideoData> dataSet) {
+        this.dataSet = dataSet;
+        build();
+    }
+
+    /**
+     * Builds the columns for the given DataSet, applying its pending
+     * filters first.
+     *
+     * @param dataSet the DataSet whose items to put in columns
+     * @return the columns of the given DataSet
+     */
+    public static VideoColumns of(final DataSet<VideoData> dataSet) {
+        return new VideoColumns(dataSet);
+    }
+
+    private void build() {
+        final DataSet<VideoData> ds = dataSet;
+        ds.applyFilters();
+        final DataValue[] d = ds.data;
+        final int l = ds.length;
+        final HashMap<String, Integer> ids = new HashMap<>();
+        for (int i = ds.nextLive(0); i >= 0; i = ds.nextLive(i + 1)) {
+            final String[] g = ((VideoData) d[i]).video.genres;
+            if (g == null) continue;
+            for (final String genre : g) {
+                if (!ids.containsKey(genre)) ids.put(genre, ids.size());
+            }
+        }
+        final int gw = Math.max(1, (ids.size() + 63) >>> 6);
+        final double[] p = new double[l];
+        final int[] pr = new int[l];
+        final long[] ad = new long[l];
+        final long[] a = new long[(l + 63) >>> 6];
+        final long[] gs = new long[l * gw];
+        for (int i = ds.nextLive(0); i >= 0; i = ds.nextLive(i + 1)) {
+            final VideoData vd = (VideoData) d[i];
+            final GeneralVideoProduct video = vd.video;
+            p[i] = vd.prediction;
+            pr[i] = video.parentalRating;
+            ad[i] = video.airDate;
+            if (video.isAdult) a[i >>> 6] |= 1L << i;
+            final String[] g = video.genres;
+            if (g == null) continue;
+            final int base = i * gw;
+            for (final String genre : g) {
+                final int id = ids.get(genre);
+                gs[base + (id >>> 6)] |= 1L << id;
+            }
+        }
+        data = d;
+        modificationCount = ds.modificationCount;
+        prediction = p;
+        parentalRating = pr;
+        airDate = ad;
+        adult = a;
+        genres = gs;
+        genreWords = gw;
+        genreIds = ids;
+    }
+
+    /**
+     * Rebuilds the columns if the DataSet was modified other than through
+     * these columns.
+     *
+     * @return these columns, to support chaining
+     */
+    public VideoColumns refresh() {
+        final DataSet<VideoData> ds = dataSet;
+        if (!ds.filters.isEmpty() || (ds.data != data) || (ds.modificationCount != modificationCount)) build();
+        return this;
+    }
+
+    /**
+     * Copies the current predictions of the items into the
+     * {@link #prediction} column.
+     *
+     * @return these columns, to support chaining
+     */
+    public VideoColumns refreshPredictions() {
+        refresh();
+        final DataSet<VideoData> ds = dataSet;
+        final DataValue[] d = data;
+        final double[] p = prediction;
+        for (int i = ds.nextLive(0); i >= 0; i = ds.nextLive(i + 1)) p[i] = ((VideoData) d[i]).prediction;
+        return this;
+    }
+
+    /**
+     * The DataSet of these columns.
+     *
+     * @return the DataSet
+     */
+    public DataSet<VideoData> dataSet() {
+        return dataSet;
+    }
+
+    /**
+     * Whether the item in the given slot is adult content.
+     *
+     * @param slot the slot of the item
+     * @return whether the item is adult content
+     */
+    public boolean isAdult(final int slot) {
+        return (adult[slot >>> 6] & (1L << slot)) != 0L;
+    }
+
+    /**
+     * Returns the mask of the given genres, to be used with
+     * {@link #hasAnyGenre(int, long[])}. Genres not occurring in the
+     * DataSet are ignored. The mask is valid until the columns are rebuilt.
+     *
+     * @param genres the genres to put in the mask
+     * @return the mask of the given genres
+     */
+    public long[] genreMask(final String... genres) {
+        final long[] mask = new long[genreWords];
+        for (final String genre : genres) {
+            final Integer id = genreIds.get(genre);
+            if (id != null) mask[id >>> 6] |= 1L << id;
+        }
+        return mask;
+    }
+
+    /**
+     * Whether the item in the given slot has any of the genres in the mask.
+     *
+     * @param slot the slot of the item
+     * @param mask the mask of genres, as returned by {@link #genreMask(String...)}
+     * @return whether the item has any of the genres
+     */
+    public boolean hasAnyGenre(final int slot, final long[] mask) {
+        final long[] g = genres;
+        final int gw = genreWords;
+        final int base = slot * gw;
+        for (int w = 0; w < gw; w++) {
+            if ((g[base + w] & mask[w]) != 0L) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes from the DataSet the items whose slots the given predicate
+     * rejects. The slots of the remaining items don't change, so the
+     * columns remain valid.
+     *
+     * @param predicate the test of a slot, reading the columns
+     * @return the DataSet, to support chaining
+     */
+    public DataSet<VideoData> retain(final SlotPredicate predicate) {
+        refresh();
+        final DataSet<VideoData> ds = dataSet;
+        final long[] b = ds.live;
+        final int words = (ds.length + 63) >>> 6;
+        final long[] rejected = new long[words];
+        boolean any = false;
+        for (int w = 0; w < words; w++) {
+            long bits = b[w];
+            long r = 0L;
+            while (bits != 0L) {
+                final long bit = bits & -bits;
+                bits ^= bit;
+                if (!predicate.test((w << 6) + Long.numberOfTrailingZeros(bit))) r |= bit;
+            }
+            if (r != 0L) {
+                rejected[w] = r;
+                any = true;
+            }
+        }
+        if (any) {
+            ds.removeSlots(rejected);
+            data = ds.data; // may have been unshared
+            modificationCount = ds.modificationCount;
+        }
+        return ds;
+    }
+
+    /**
+     * Sorts the DataSet in the order of slots defined by the given
+     * comparator, which compares the columns. The sort is stable. The
+     * columns are rearranged together with the DataSet, so they remain
+     * valid.
+     *
+     * @param comparator the order of slots, reading the columns
+     * @return the DataSet, to support chaining
+     */
+    public DataSet<VideoData> sort(final SlotComparator comparator) {
+        refresh();
+        final DataSet<VideoData> ds = dataSet;
+        final int n = ds.size;
+        final int[] slots = new int[n];
+        int j = 0;
+        for (int i = ds.nextLive(0); i >= 0; i = ds.nextLive(i + 1)) slots[j++] = i;
+        IndexSort.mergeSort(slots, new int[n], 0, n, comparator::compare);
+        // rearrange columns the same way as the DataSet
+        final int gw = genreWords;
+        final double[] p = new double[n];
+        final int[] pr = new int[n];
+        final long[] ad = new long[n];
+        final long[] a = new long[(n + 63) >>> 6];
+        final long[] gs = new long[n * gw];
+        for (int i = 0; i < n; i++) {
+            final int s = slots[i];
+            p[i] = prediction[s];
+            pr[i] = parentalRating[s];
+            ad[i] = airDate[s];
+            if (isAdult(s)) a[i >>> 6] |= 1L << i;
+            System.arraycopy(genres, s * gw, gs, i * gw, gw);
+        }
+        ds.reorder(slots);
+        prediction = p;
+        parentalRating = pr;
+        airDate = ad;
+        adult = a;
+        genres = gs;
+        data = ds.data;
+        modificationCount = ds.modificationCount;
+        return ds;
+    }
+
+    /**
+     * Sorts the DataSet by descending prediction.
+     *
+     * @return the DataSet, to support chaining
+     * @see #sort(SlotComparator)
+     */
+    public DataSet<VideoData> sortByPrediction() {
+        return sort((final int slot1, final int slot2) -> {
+            final double[] column = prediction;
+            return Double.compare(column[slot2], column[slot1]);
+        });
+    }
+
+    /**
+     * A test of an item, given by its slot in the columns.
+     */
+    @FunctionalInterface
+    public interface SlotPredicate {
+        boolean test(int slot);
+    }
+
+    /**
+     * A comparison of items, given by their slots in the columns.
+     */
+    @FunctionalInterface
+    public interface SlotComparator {
+        int compare(int slot1, int slot2);
+    }
+}
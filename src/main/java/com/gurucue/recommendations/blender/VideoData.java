@@ -18,7 +18,10 @@
  */
 package com.gurucue.recommendations.blender;
 
+import com.gurucue.recommendations.ProcessingException;
 import com.gurucue.recommendations.Transaction;
+import com.gurucue.recommendations.data.DataLink;
+import com.gurucue.recommendations.data.DataProvider;
 import com.gurucue.recommendations.dto.ConsumerEntity;
 import com.gurucue.recommendations.entity.Partner;
 import com.gurucue.recommendations.entity.product.GeneralVideoProduct;
@@ -27,14 +30,24 @@ import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
 import com.gurucue.recommendations.entity.product.VideoProduct;
 import com.gurucue.recommendations.entity.product.VodProduct;
 import com.gurucue.recommendations.entitymanager.ProductManager;
+import com.gurucue.recommendations.recommender.RecommendProduct;
+import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.set.TLongSet;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.HashSet;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.ToDoubleFunction;
 
 /**
  * Contains data required and optimized for video and tv-programme filtering.
@@ -45,6 +58,10 @@ import java.util.Set;
 public final class VideoData extends DataValue {
     private static final Logger log = LogManager.getLogger(VideoData.class);
 
+    /** The key of a video or a tv-programme is its video match ID, the same as used by {@link #equals(Object)}. */
+    public static final KeyExtractor<VideoData> KEY_EXTRACTOR = (final VideoData vd) -> vd.video.videoMatchId;
+    private static final ToDoubleFunction<VideoData> PREDICTION = (final VideoData vd) -> vd.prediction;
+
     /** The actual video item being processed. */
     public final GeneralVideoProduct video;
     /**
@@ -84,17 +101,33 @@ public final class VideoData extends DataValue {
      * representing TV-channels that this TV-programme (<code>video</code>)
      * is broadcast on and that are allowed to be used further down the
      * filter pipeline, and included in recommendations at the end;
-     * <code>null</code> otherwise. It must be a subset of
-     * {@link #availableTvChannels}.
+     * <code>null</code> otherwise. It is a view of a bitmask over the
+     * positions in {@link #availableTvChannels}, so it can only be a subset
+     * of it; see also {@link #isChosen(int)} and
+     * {@link #setChosen(int, boolean)}.
      */
     public final Set<TvChannelData> chosenTvChannels;
+    // chosenTvChannels is a view of these: bits over positions in availableTvChannels, chosenSpill replaces chosenBits for more than 64 channels
+    private long chosenBits = 0L;
+    private long[] chosenSpill = null;
 
     // ===== the rest of the attributes =====
 
     /** Whether the consumer is subscribed to a package that contains this content. */
     public final boolean isSubscribed;
-    /** Tags to include with this item for a recommender. Tags are set by filters. */
-    public final Set<String> tags = new HashSet<>();
+    /*
+     * Tags to include with this item for a recommender. Tags are set by filters.
+     * Kept as a bitmask over tag IDs from the TagDictionary, IDs from 64 on spill
+     * into tagSpill. See tags().
+     */
+    private long tagBits = 0L;
+    private long[] tagSpill = null;
+    /*
+     * The catalogue snapshot that this item was overlaid from, and the position of
+     * its template in the snapshot, for precomputed catalogue-static filter results.
+     */
+    CatalogueSnapshot catalogueSnapshot = null;
+    int cataloguePosition = -1;
 
     // ===== attributes set by recommender =====
 
@@ -102,14 +135,25 @@ public final class VideoData extends DataValue {
     public int gridLine = -1;
     /** Filled by a recommender: the prediction. */
     public double prediction = -1;
-    /** Filled by a recommender: explanation, */
+    /**
+     * Filled by a recommender: explanation. When the recommender explains
+     * lazily, it is only set by {@link #materializeExplanation()}, see
+     * {@link #explanation()}.
+     */
     public String explanation = null;
     /**
      * Filled by a recommender: formatted explanation that can be displayed to
      * the user. Every explanation maps to its weight (relevancy), so the explanations
-     * can be sorted.
+     * can be sorted. When the recommender explains lazily, this field stays
+     * <code>null</code> until {@link #materializeExplanation()} is invoked, so
+     * read it through {@link #prettyExplanations()}, or invoke
+     * {@link #materializeExplanations(DataSet)} on the result of blending
+     * before reading the field.
      */
     public Map<String, Float> prettyExplanations;
+    // set by a recommender that explains lazily: where to obtain the explanations on materialisation
+    private ExplanationProvider explanationProvider = null;
+    private int explanationReference = -1;
 
     // ===== attributes set by processing, such as filters, blenders =====
 
@@ -130,15 +174,408 @@ public final class VideoData extends DataValue {
         this.availableTvChannels = availableTvChannels;
         this.isSubscribed = isSubscribed;
         if (isTvProgramme) {
-            this.chosenTvChannels = new HashSet<>(availableTvChannels.size());
-            if (isSubscribed) {
-                availableTvChannels.forEach((final TvChannelData cd) -> { if (cd.isSubscribed) chosenTvChannels.add(cd); });
+            final int n = availableTvChannels.size();
+            if (n > 64) chosenSpill = new long[(n + 63) >>> 6];
+            for (int i = 0; i < n; i++) {
+                if (!isSubscribed || availableTvChannels.get(i).isSubscribed) setChosen(i, true);
             }
-            else this.chosenTvChannels.addAll(availableTvChannels);
+            this.chosenTvChannels = new ChosenTvChannels();
         }
         else this.chosenTvChannels = null;
     }
 
+    /**
+     * The copy constructor, see {@link #copy()}.
+     *
+     * @param source the item to copy
+     */
+    private VideoData(final VideoData source) {
+        this.video = source.video;
+        this.isTvProgramme = source.isTvProgramme;
+        this.vod = source.vod;
+        this.productPackages = source.productPackages;
+        this.availableTvChannels = source.availableTvChannels;
+        this.isSubscribed = source.isSubscribed;
+        this.chosenBits = source.chosenBits;
+        this.chosenSpill = source.chosenSpill == null ? null : source.chosenSpill.clone();
+        this.chosenTvChannels = source.isTvProgramme ? new ChosenTvChannels() : null;
+        this.tagBits = source.tagBits;
+        this.tagSpill = source.tagSpill == null ? null : source.tagSpill.clone();
+        this.catalogueSnapshot = source.catalogueSnapshot;
+        this.cataloguePosition = source.cataloguePosition;
+        this.gridLine = source.gridLine;
+        this.prediction = source.prediction;
+        this.explanation = source.explanation;
+        this.prettyExplanations = source.prettyExplanations == null ? null : new LinkedHashMap<>(source.prettyExplanations);
+        this.explanationProvider = source.explanationProvider;
+        this.explanationReference = source.explanationReference;
+        this.rank = source.rank;
+        this.arrayIndex = source.arrayIndex;
+    }
+
+    /**
+     * Returns a copy of this item, with its own chosen TV-channels, tags,
+     * prediction and explanations. The products and the lists of packages
+     * and of available TV-channels are not modified by processing, so they
+     * are shared.
+     *
+     * @return the copy of this item
+     */
+    @Override
+    public VideoData copy() {
+        return new VideoData(this);
+    }
+
+    /**
+     * Returns whether the TV-channel at the given position in
+     * {@link #availableTvChannels} is chosen, i.e. is in
+     * {@link #chosenTvChannels}.
+     *
+     * @param position the position of the TV-channel in <code>availableTvChannels</code>
+     * @return whether the TV-channel is chosen
+     * @throws IndexOutOfBoundsException if there is no TV-channel at the given position
+     */
+    public boolean isChosen(final int position) {
+        checkChannelPosition(position);
+        final long[] spill = chosenSpill;
+        if (spill == null) return (chosenBits & (1L << position)) != 0L;
+        return (spill[position >>> 6] & (1L << position)) != 0L;
+    }
+
+    /**
+     * Adds the TV-channel at the given position in
+     * {@link #availableTvChannels} to {@link #chosenTvChannels}, or
+     * removes it from there.
+     *
+     * @param position the position of the TV-channel in <code>availableTvChannels</code>
+     * @param chosen whether the TV-channel is chosen
+     * @throws IndexOutOfBoundsException if there is no TV-channel at the given position
+     */
+    public void setChosen(final int position, final boolean chosen) {
+        checkChannelPosition(position);
+        final long[] spill = chosenSpill;
+        if (spill == null) {
+            if (chosen) chosenBits |= 1L << position;
+            else chosenBits &= ~(1L << position);
+        }
+        else if (chosen) spill[position >>> 6] |= 1L << position;
+        else spill[position >>> 6] &= ~(1L << position);
+    }
+
+    // the bits only cover the available TV-channels, a shift would silently wrap around beyond them
+    private void checkChannelPosition(final int position) {
+        final int n = availableTvChannels == null ? 0 : availableTvChannels.size();
+        if ((position < 0) || (position >= n)) throw new IndexOutOfBoundsException("TV-channel position " + position + " out of " + n + " available TV-channels");
+    }
+
+    /**
+     * Returns the number of chosen TV-channels, the size of
+     * {@link #chosenTvChannels}.
+     *
+     * @return the number of chosen TV-channels
+     */
+    public int chosenCount() {
+        final long[] spill = chosenSpill;
+        if (spill == null) return Long.bitCount(chosenBits);
+        int n = 0;
+        for (final long bits : spill) n += Long.bitCount(bits);
+        return n;
+    }
+
+    /**
+     * Adds the given tag to include with this item for a recommender.
+     *
+     * @param tag the tag to add
+     * @return whether the tag was added, <code>false</code> if the item already had it
+     */
+    public boolean addTag(final String tag) {
+        return addTag(TagDictionary.INSTANCE.idOf(tag));
+    }
+
+    /**
+     * Adds the tag with the given ID, a filter may obtain the ID of its tag
+     * once with {@link TagDictionary#idOf(String)}.
+     *
+     * @param tagId the ID of the tag to add
+     * @return whether the tag was added, <code>false</code> if the item already had it
+     */
+    public boolean addTag(final int tagId) {
+        if (tagId < 64) {
+            final long bits = tagBits;
+            return bits != (tagBits = bits | (1L << tagId));
+        }
+        final int w = (tagId >>> 6) - 1;
+        long[] spill = tagSpill;
+        if (spill == null) tagSpill = spill = new long[w + 1];
+        else if (w >= spill.length) tagSpill = spill = Arrays.copyOf(spill, w + 1);
+        final long bits = spill[w];
+        return bits != (spill[w] = bits | (1L << tagId));
+    }
+
+    /**
+     * Removes the given tag.
+     *
+     * @param tag the tag to remove
+     * @return whether the tag was removed, <code>false</code> if the item didn't have it
+     */
+    public boolean removeTag(final Object tag) {
+        final int tagId = TagDictionary.INSTANCE.lookup(tag);
+        if (!hasTag(tagId)) return false;
+        if (tagId < 64) tagBits &= ~(1L << tagId);
+        else tagSpill[(tagId >>> 6) - 1] &= ~(1L << tagId);
+        return true;
+    }
+
+    /**
+     * Returns whether the item has the given tag.
+     *
+     * @param tag the tag
+     * @return whether the item has the tag
+     */
+    public boolean hasTag(final Object tag) {
+        return hasTag(TagDictionary.INSTANCE.lookup(tag));
+    }
+
+    /**
+     * Returns whether the item has the tag with the given ID.
+     *
+     * @param tagId the ID of the tag, negative IDs are never present
+     * @return whether the item has the tag
+     */
+    public boolean hasTag(final int tagId) {
+        if (tagId < 0) return false;
+        if (tagId < 64) return (tagBits & (1L << tagId)) != 0L;
+        final long[] spill = tagSpill;
+        final int w = (tagId >>> 6) - 1;
+        return (spill != null) && (w < spill.length) && ((spill[w] & (1L << tagId)) != 0L);
+    }
+
+    /**
+     * Returns the tags of the item as a <code>Set</code>, backed by the
+     * item, so it reflects later changes and changes to it are reflected in
+     * the item. It is meant for the recommender boundary, e.g. for
+     * {@link RecommendProduct#productTag}; filters should use
+     * {@link #addTag(String)} and {@link #hasTag(Object)}, which allocate
+     * nothing.
+     *
+     * @return the tags of the item
+     */
+    public Set<String> tags() {
+        return new TagSet();
+    }
+
+    /**
+     * Creates the candidate for a recommender from this item, with the
+     * item's tags.
+     *
+     * @return the candidate for a recommender
+     */
+    public RecommendProduct toRecommendProduct() {
+        return new RecommendProduct(video.id, tags());
+    }
+
+    /**
+     * Sets where to obtain the explanations of this item, instead of
+     * setting {@link #explanation} and {@link #prettyExplanations} on every
+     * candidate. The explanations are obtained when materialised.
+     *
+     * @param provider the provider of explanations
+     * @param reference the reference of this item's explanations within the provider
+     */
+    public void explainLazily(final ExplanationProvider provider, final int reference) {
+        explanationProvider = provider;
+        explanationReference = reference;
+    }
+
+    /**
+     * Obtains the explanations of this item from its provider, if it was
+     * explained lazily and not yet materialised.
+     */
+    public void materializeExplanation() {
+        final ExplanationProvider provider = explanationProvider;
+        if (provider == null) return;
+        explanation = provider.explanation(explanationReference);
+        prettyExplanations = provider.prettyExplanations(explanationReference);
+        explanationProvider = null;
+    }
+
+    /**
+     * Returns the explanation of this item, materialising it first.
+     *
+     * @return the explanation, or null
+     */
+    public String explanation() {
+        materializeExplanation();
+        return explanation;
+    }
+
+    /**
+     * Returns the formatted explanations of this item, materialising them
+     * first.
+     *
+     * @return the formatted explanations, or null
+     */
+    public Map<String, Float> prettyExplanations() {
+        materializeExplanation();
+        return prettyExplanations;
+    }
+
+    /**
+     * The {@link Set} view of chosen TV-channels of a VideoData. Only
+     * TV-channels from {@link #availableTvChannels} can be added.
+     */
+    private final class ChosenTvChannels extends AbstractSet<TvChannelData> {
+        @Override
+        public boolean add(final TvChannelData channel) {
+            final int position = availableTvChannels.indexOf(channel);
+            if (position < 0) throw new IllegalArgumentException("The TV-channel is not available for the TV-programme");
+            if (isChosen(position)) return false;
+            setChosen(position, true);
+            return true;
+        }
+
+        @Override
+        public boolean remove(final Object channel) {
+            final int position = availableTvChannels.indexOf(channel);
+            if ((position < 0) || !isChosen(position)) return false;
+            setChosen(position, false);
+            return true;
+        }
+
+        @Override
+        public boolean contains(final Object channel) {
+            final int position = availableTvChannels.indexOf(channel);
+            return (position >= 0) && isChosen(position);
+        }
+
+        @Override
+        public void clear() {
+            chosenBits = 0L;
+            final long[] spill = chosenSpill;
+            if (spill != null) Arrays.fill(spill, 0L);
+        }
+
+        @Override
+        public int size() {
+            return chosenCount();
+        }
+
+        @Override
+        public Iterator<TvChannelData> iterator() {
+            return new Iterator<TvChannelData>() {
+                private final int n = availableTvChannels.size();
+                private int next = nextChosen(0);
+                private int last = -1;
+
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+
+                @Override
+                public TvChannelData next() {
+                    if (next < 0) throw new NoSuchElementException();
+                    last = next;
+                    next = nextChosen(next + 1);
+                    return availableTvChannels.get(last);
+                }
+
+                @Override
+                public void remove() {
+                    if (last < 0) throw new IllegalStateException();
+                    setChosen(last, false);
+                    last = -1;
+                }
+
+                private int nextChosen(int from) {
+                    while ((from < n) && !isChosen(from)) from++;
+                    return from < n ? from : -1;
+                }
+            };
+        }
+    }
+
+    /**
+     * The {@link Set} view of tags of a VideoData.
+     */
+    private final class TagSet extends AbstractSet<String> {
+        @Override
+        public boolean add(final String tag) {
+            return addTag(tag);
+        }
+
+        @Override
+        public boolean remove(final Object tag) {
+            return removeTag(tag);
+        }
+
+        @Override
+        public boolean contains(final Object tag) {
+            return hasTag(tag);
+        }
+
+        @Override
+        public void clear() {
+            tagBits = 0L;
+            tagSpill = null;
+        }
+
+        @Override
+        public int size() {
+            int n = Long.bitCount(tagBits);
+            final long[] spill = tagSpill;
+            if (spill != null) {
+                for (final long bits : spill) n += Long.bitCount(bits);
+            }
+            return n;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int next = nextTag(0);
+                private int last = -1;
+
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+
+                @Override
+                public String next() {
+                    if (next < 0) throw new NoSuchElementException();
+                    last = next;
+                    next = nextTag(next + 1);
+                    return TagDictionary.INSTANCE.tagOf(last);
+                }
+
+                @Override
+                public void remove() {
+                    if (last < 0) throw new IllegalStateException();
+                    removeTag(TagDictionary.INSTANCE.tagOf(last));
+                    last = -1;
+                }
+            };
+        }
+
+        /**
+         * Returns the first ID at or after the given ID of a tag that the
+         * item has, or -1.
+         */
+        private int nextTag(final int from) {
+            int w = from >>> 6;
+            final long[] spill = tagSpill;
+            final int words = spill == null ? 1 : spill.length + 1;
+            if (w >= words) return -1;
+            long bits = (w == 0 ? tagBits : spill[w - 1]) & (-1L << from);
+            while (bits == 0L) {
+                if (++w >= words) return -1;
+                bits = spill[w - 1];
+            }
+            return (w << 6) + Long.numberOfTrailingZeros(bits);
+        }
+    }
+
     @Override
     public boolean equals(final Object other) {
         if (other == null) return false;
@@ -186,6 +623,71 @@ public final class VideoData extends DataValue {
         return new VideoData(tvProgramme, true, null, null, availableTvChannels, isSubscribed);
     }
 
+    /**
+     * Selects the <code>k</code> items with the highest {@link #prediction},
+     * without sorting the whole dataset.
+     *
+     * @param dataSet the dataset from which to select
+     * @param k the maximum number of items to select
+     * @return a new dataset with at most <code>k</code> items, sorted by descending prediction
+     * @see DataSet#topByScore(int, ToDoubleFunction)
+     */
+    public static DataSet<VideoData> topByPrediction(final DataSet<VideoData> dataSet, final int k) {
+        return dataSet.topByScore(k, PREDICTION);
+    }
+
+    /**
+     * Applies the tag limits of the dataset, set with
+     * {@link DataSet#setLimit(String, Integer)}: of the items having a
+     * limited tag, only the given number of first items is kept. Items
+     * without limited tags are not affected.
+     *
+     * @param dataSet the dataset whose limits to apply, in its order
+     * @return the same dataset, to support chaining
+     * @see DataSet#limitPerGroup(GroupExtractor, int, gnu.trove.map.TLongIntMap)
+     */
+    public static DataSet<VideoData> limitByTags(final DataSet<VideoData> dataSet) {
+        final Map<String, Integer> limits = dataSet.getLimitTags();
+        if (limits.isEmpty()) return dataSet;
+        final int n = limits.size();
+        final int[] tagIds = new int[n];
+        final TLongIntHashMap caps = new TLongIntHashMap(n);
+        int count = 0;
+        for (final Map.Entry<String, Integer> entry : limits.entrySet()) {
+            final Integer limit = entry.getValue();
+            if (limit == null) continue;
+            final int tagId = TagDictionary.INSTANCE.idOf(entry.getKey());
+            tagIds[count++] = tagId;
+            caps.put(tagId, limit);
+        }
+        final int tagCount = count;
+        return dataSet.limitPerGroup((final VideoData vd, final long[] groups) -> {
+            int g = 0;
+            for (int i = 0; i < tagCount; i++) {
+                final int tagId = tagIds[i];
+                if (vd.hasTag(tagId)) {
+                    if (g < groups.length) groups[g] = tagId;
+                    g++;
+                }
+            }
+            return g;
+        }, Integer.MAX_VALUE, caps);
+    }
+
+    /**
+     * Materialises the explanations of the items of the given dataset, to
+     * be invoked on the result of blending, before the explanations are
+     * read from the fields.
+     *
+     * @param dataSet the dataset whose items to explain
+     * @return the same dataset, to support chaining
+     * @see #explainLazily(ExplanationProvider, int)
+     */
+    public static DataSet<VideoData> materializeExplanations(final DataSet<VideoData> dataSet) {
+        for (final VideoData vd : dataSet) vd.materializeExplanation();
+        return dataSet;
+    }
+
     public static DataSet<VideoData> buildDataSetOfVideosAndTvProgrammes(
             final Transaction transaction,
             final Partner partner,
@@ -194,23 +696,194 @@ public final class VideoData extends DataValue {
             final long requestTimestampMillis,
             final long maxCatchupMillis,
             final long maxLiveMillis
+    ) {
+        return buildDataSetOfVideosAndTvProgrammes(transaction, partner, consumer, duplicateResolver, requestTimestampMillis, maxCatchupMillis, maxLiveMillis, null, null);
+    }
+
+    /**
+     * Creates the DataSet of tv-programmes and videos like
+     * {@link #buildDataSetOfVideosAndTvProgrammes(Transaction, Partner, ConsumerEntity, DuplicateResolver, long, long, long)},
+     * but only of products that the given predicate accepts, and optionally
+     * scanning tv-programmes concurrently with videos.
+     * <p>
+     * The predicate is pushed down into the {@link ProductManager} scans,
+     * so no items are built for rejected products.
+     * <p>
+     * With an executor, tv-programmes are scanned on the executor while
+     * videos are scanned in the calling thread, so the latency is the
+     * longer of the two scans instead of their sum. The tv-programme scan
+     * uses its own {@link DataLink} and transaction, so the executor must
+     * not run it in a thread that owns a transaction. Duplicates between
+     * tv-programmes and videos are resolved after both scans, in the same
+     * order as in a sequential build, which gives the same result for
+     * resolvers whose choice does not depend on the order of resolving.
+     *
+     * @param transaction the transaction to use in the calling thread
+     * @param partner the partner whose catalogue to use
+     * @param consumer the consumer whose subscriptions to apply
+     * @param duplicateResolver the resolver for duplicate items
+     * @param requestTimestampMillis the time of the request
+     * @param maxCatchupMillis maximum offset into the past for catch-up tv-programmes
+     * @param maxLiveMillis maximum offset into the future for tv-programmes
+     * @param predicate the condition that products must satisfy, or null to include all
+     * @param executor where to scan tv-programmes, or null to scan them in the calling thread before videos
+     * @return the DataSet of the consumer's catalogue
+     */
+    public static DataSet<VideoData> buildDataSetOfVideosAndTvProgrammes(
+            final Transaction transaction,
+            final Partner partner,
+            final ConsumerEntity consumer,
+            final DuplicateResolver<VideoData> duplicateResolver,
+            final long requestTimestampMillis,
+            final long maxCatchupMillis,
+            final long maxLiveMillis,
+            final ProductPredicate predicate,
+            final Executor executor
+    ) {
+        return buildDataSetOfVideosAndTvProgrammes(transaction, partner, consumer, duplicateResolver, requestTimestampMillis, maxCatchupMillis, maxLiveMillis, predicate, executor, null);
+    }
+
+    /**
+     * Creates the DataSet of tv-programmes and videos of the given blend's
+     * consumer like
+     * {@link #buildDataSetOfVideosAndTvProgrammes(Transaction, Partner, ConsumerEntity, DuplicateResolver, long, long, long, ProductPredicate, Executor)},
+     * with the settings of the blend applied, see
+     * {@link DataSet#environment(BlendEnvironment)}.
+     *
+     * @param environment the environment of the blend
+     * @param duplicateResolver the resolver for duplicate items
+     * @param maxCatchupMillis maximum offset into the past for catch-up tv-programmes
+     * @param maxLiveMillis maximum offset into the future for tv-programmes
+     * @param predicate the condition that products must satisfy, or null to include all
+     * @param executor where to scan tv-programmes, or null to scan them in the calling thread before videos
+     * @return the DataSet of the consumer's catalogue
+     */
+    public static DataSet<VideoData> buildDataSetOfVideosAndTvProgrammes(
+            final BlendEnvironment environment,
+            final DuplicateResolver<VideoData> duplicateResolver,
+            final long maxCatchupMillis,
+            final long maxLiveMillis,
+            final ProductPredicate predicate,
+            final Executor executor
+    ) {
+        return buildDataSetOfVideosAndTvProgrammes(environment.transaction, environment.partner, environment.consumer, duplicateResolver, environment.requestTimestampMillis, maxCatchupMillis, maxLiveMillis, predicate, executor, environment);
+    }
+
+    private static DataSet<VideoData> buildDataSetOfVideosAndTvProgrammes(
+            final Transaction transaction,
+            final Partner partner,
+            final ConsumerEntity consumer,
+            final DuplicateResolver<VideoData> duplicateResolver,
+            final long requestTimestampMillis,
+            final long maxCatchupMillis,
+            final long maxLiveMillis,
+            final ProductPredicate predicate,
+            final Executor executor,
+            final BlendEnvironment environment
     ) {
         final TLongSet activeSubscriptionPackages = consumer.activeRelationProductIds(requestTimestampMillis);
-        final ProductManager pm = transaction.getLink().getProductManager();
-        final DataSet.Builder<VideoData> dataBuilder = new DataSet.Builder<>(duplicateResolver, null);
-        final int zeroSize = dataBuilder.size();
-        final long timeTvProgramme = System.nanoTime();
-        pm.tvProgrammesInIntervalForPartner(transaction, partner, requestTimestampMillis, maxCatchupMillis, maxLiveMillis, activeSubscriptionPackages, dataBuilder);
-        final long timeVod = System.nanoTime();
+        if (executor == null) {
+            final ProductManager pm = transaction.getLink().getProductManager();
+            final DataSet.Builder<VideoData> dataBuilder = new DataSet.Builder<>(duplicateResolver, KEY_EXTRACTOR, null).environment(environment);
+            final int zeroSize = dataBuilder.size();
+            final long timeTvProgramme = System.nanoTime();
+            pm.tvProgrammesInIntervalForPartner(transaction, partner, requestTimestampMillis, maxCatchupMillis, maxLiveMillis, activeSubscriptionPackages, predicate, dataBuilder);
+            final long timeVod = System.nanoTime();
+            final int middleSize = dataBuilder.size();
+            pm.vodForPartner(transaction, partner, requestTimestampMillis, activeSubscriptionPackages, predicate, dataBuilder);
+            final long timeEnd = System.nanoTime();
+            final int finalSize = dataBuilder.size();
+            final DataSet<VideoData> ds = dataBuilder.build();
+            ds.record(BlendTrace.BUILT_TV_AND_VIDEO, null, middleSize - zeroSize, finalSize - middleSize, timeVod - timeTvProgramme, timeEnd - timeVod);
+            return ds;
+        }
+        final long timeStart = System.nanoTime();
+        final DataProvider provider = transaction.getLink().getProvider();
+        final long[] tvProgrammeNanos = new long[1];
+        final CompletableFuture<DataSet.Builder<VideoData>> tvProgrammes = CompletableFuture.supplyAsync(() -> {
+            if (Transaction.get() != null) throw new ProcessingException("Cannot scan tv-programmes concurrently: the executor's thread already owns a transaction");
+            final long timeTvProgramme = System.nanoTime();
+            final DataSet.Builder<VideoData> builder = new DataSet.Builder<>(duplicateResolver, KEY_EXTRACTOR, null);
+            try (final DataLink link = provider.newDataLink(); final Transaction workerTransaction = Transaction.newTransaction(link)) {
+                link.getProductManager().tvProgrammesInIntervalForPartner(workerTransaction, partner, requestTimestampMillis, maxCatchupMillis, maxLiveMillis, activeSubscriptionPackages, predicate, builder);
+            }
+            tvProgrammeNanos[0] = System.nanoTime() - timeTvProgramme;
+            return builder;
+        }, executor);
+        final DataSet.Builder<VideoData> videos = new DataSet.Builder<>(duplicateResolver, KEY_EXTRACTOR, null);
+        boolean scannedVideos = false;
+        try {
+            transaction.getLink().getProductManager().vodForPartner(transaction, partner, requestTimestampMillis, activeSubscriptionPackages, predicate, videos);
+            scannedVideos = true;
+        }
+        finally {
+            // a scan of tv-programmes that has not started yet is skipped, one that is running closes its own transaction
+            if (!scannedVideos) tvProgrammes.cancel(false);
+        }
+        final DataSet.Builder<VideoData> dataBuilder;
+        try {
+            dataBuilder = tvProgrammes.join();
+        }
+        catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new ProcessingException("Concurrent scan of tv-programmes failed: " + cause.toString(), cause);
+        }
         final int middleSize = dataBuilder.size();
-        pm.vodForPartner(transaction, partner, requestTimestampMillis, activeSubscriptionPackages, dataBuilder);
-        final long timeEnd = System.nanoTime();
+        dataBuilder.addAll(videos);
+        dataBuilder.environment(environment);
         final int finalSize = dataBuilder.size();
         final DataSet<VideoData> ds = dataBuilder.build();
-        ds.log(new DataSet.InfoLogStringBuilder(new StringBuilder(128).append("----- Building tv-programme data from ").append(middleSize - zeroSize).append(" items: ").append(timeVod - timeTvProgramme).append(" ns, building video data from ").append(finalSize - middleSize).append(" items: ").append(timeEnd - timeVod).append(" ns\n")));
+        final long timeEnd = System.nanoTime();
+        ds.record(BlendTrace.BUILT_TV_AND_VIDEO_CONCURRENTLY, null, middleSize, finalSize - middleSize, tvProgrammeNanos[0], timeEnd - timeStart);
         return ds;
     }
 
+    /**
+     * Creates the DataSet of tv-programmes and videos from the partner's
+     * cached catalogue snapshot instead of querying the catalogue, with the
+     * time window of the given snapshot cache.
+     *
+     * @param transaction the transaction to use, if the snapshot must be (re)built
+     * @param partner the partner whose catalogue to use
+     * @param consumer the consumer whose subscriptions to apply
+     * @param duplicateResolver the resolver for duplicate items
+     * @param requestTimestampMillis the time of the request
+     * @param snapshots the cache of catalogue snapshots, kept by the blender
+     * @return the DataSet of the consumer's catalogue
+     * @see CatalogueSnapshot
+     */
+    public static DataSet<VideoData> buildDataSetOfVideosAndTvProgrammes(
+            final Transaction transaction,
+            final Partner partner,
+            final ConsumerEntity consumer,
+            final DuplicateResolver<VideoData> duplicateResolver,
+            final long requestTimestampMillis,
+            final CatalogueSnapshots snapshots
+    ) {
+        return snapshots.dataSetOfVideosAndTvProgrammes(transaction, partner, consumer, duplicateResolver, requestTimestampMillis);
+    }
+
+    /**
+     * Creates the DataSet of tv-programmes and videos of the given blend's
+     * consumer from the partner's cached catalogue snapshot, with the
+     * settings of the blend applied, see
+     * {@link DataSet#environment(BlendEnvironment)}.
+     *
+     * @param environment the environment of the blend
+     * @param duplicateResolver the resolver for duplicate items
+     * @param snapshots the cache of catalogue snapshots, kept by the blender
+     * @return the DataSet of the consumer's catalogue
+     * @see CatalogueSnapshot
+     */
+    public static DataSet<VideoData> buildDataSetOfVideosAndTvProgrammes(
+            final BlendEnvironment environment,
+            final DuplicateResolver<VideoData> duplicateResolver,
+            final CatalogueSnapshots snapshots
+    ) {
+        return snapshots.dataSetOfVideosAndTvProgrammes(environment, duplicateResolver);
+    }
+
     public static DataSet<VideoData> buildDataSetOfVideos(
             final Transaction transaction,
             final Partner partner,
@@ -218,12 +891,38 @@ public final class VideoData extends DataValue {
             final DuplicateResolver<VideoData> duplicateResolver,
             final long requestTimestampMillis
     ) {
-        final DataSet.Builder<VideoData> dataBuilder = new DataSet.Builder<>(duplicateResolver, null);
+        return buildDataSetOfVideos(transaction, partner, consumer, duplicateResolver, requestTimestampMillis, null);
+    }
+
+    /**
+     * Creates the DataSet of videos of the given blend's consumer, with the
+     * settings of the blend applied, see {@link DataSet#environment(BlendEnvironment)}.
+     *
+     * @param environment the environment of the blend
+     * @param duplicateResolver the resolver for duplicate items
+     * @return the DataSet of the consumer's videos
+     */
+    public static DataSet<VideoData> buildDataSetOfVideos(
+            final BlendEnvironment environment,
+            final DuplicateResolver<VideoData> duplicateResolver
+    ) {
+        return buildDataSetOfVideos(environment.transaction, environment.partner, environment.consumer, duplicateResolver, environment.requestTimestampMillis, environment);
+    }
+
+    private static DataSet<VideoData> buildDataSetOfVideos(
+            final Transaction transaction,
+            final Partner partner,
+            final ConsumerEntity consumer,
+            final DuplicateResolver<VideoData> duplicateResolver,
+            final long requestTimestampMillis,
+            final BlendEnvironment environment
+    ) {
+        final DataSet.Builder<VideoData> dataBuilder = new DataSet.Builder<>(duplicateResolver, KEY_EXTRACTOR, null).environment(environment);
         final long timeStart = System.nanoTime();
         transaction.getLink().getProductManager().vodForPartner(transaction, partner, requestTimestampMillis, consumer.activeRelationProductIds(requestTimestampMillis), dataBuilder);
         final long timeEnd = System.nanoTime();
         final DataSet<VideoData> ds = dataBuilder.build();
-        ds.log(new DataSet.InfoLogStringBuilder(new StringBuilder(128).append("----- Building video data from ").append(ds.size()).append(" items: ").append(timeEnd - timeStart).append(" ns\n")));
+        ds.record(BlendTrace.BUILT_VIDEO, null, ds.size(), 0, timeEnd - timeStart, 0L);
         return ds;
     }
 
@@ -236,12 +935,44 @@ public final class VideoData extends DataValue {
             final long maxCatchupMillis,
             final long maxLiveMillis
     ) {
-        final DataSet.Builder<VideoData> dataBuilder = new DataSet.Builder<>(duplicateResolver, null);
+        return buildDataSetOfTvProgrammes(transaction, partner, consumer, duplicateResolver, requestTimestampMillis, maxCatchupMillis, maxLiveMillis, null);
+    }
+
+    /**
+     * Creates the DataSet of tv-programmes of the given blend's consumer,
+     * with the settings of the blend applied, see {@link DataSet#environment(BlendEnvironment)}.
+     *
+     * @param environment the environment of the blend
+     * @param duplicateResolver the resolver for duplicate items
+     * @param maxCatchupMillis maximum offset into the past for catch-up tv-programmes
+     * @param maxLiveMillis maximum offset into the future for tv-programmes
+     * @return the DataSet of the consumer's tv-programmes
+     */
+    public static DataSet<VideoData> buildDataSetOfTvProgrammes(
+            final BlendEnvironment environment,
+            final DuplicateResolver<VideoData> duplicateResolver,
+            final long maxCatchupMillis,
+            final long maxLiveMillis
+    ) {
+        return buildDataSetOfTvProgrammes(environment.transaction, environment.partner, environment.consumer, duplicateResolver, environment.requestTimestampMillis, maxCatchupMillis, maxLiveMillis, environment);
+    }
+
+    private static DataSet<VideoData> buildDataSetOfTvProgrammes(
+            final Transaction transaction,
+            final Partner partner,
+            final ConsumerEntity consumer,
+            final DuplicateResolver<VideoData> duplicateResolver,
+            final long requestTimestampMillis,
+            final long maxCatchupMillis,
+            final long maxLiveMillis,
+            final BlendEnvironment environment
+    ) {
+        final DataSet.Builder<VideoData> dataBuilder = new DataSet.Builder<>(duplicateResolver, KEY_EXTRACTOR, null).environment(environment);
         final long timeStart = System.nanoTime();
         transaction.getLink().getProductManager().tvProgrammesInIntervalForPartner(transaction, partner, requestTimestampMillis, maxCatchupMillis, maxLiveMillis, consumer.activeRelationProductIds(requestTimestampMillis), dataBuilder);
         final long timeEnd = System.nanoTime();
         final DataSet<VideoData> ds = dataBuilder.build();
-        ds.log(new DataSet.InfoLogStringBuilder(new StringBuilder(128).append("----- Building tv-programme data from ").append(ds.size()).append(" items: ").append(timeEnd - timeStart).append(" ns\n")));
+        ds.record(BlendTrace.BUILT_TV, null, ds.size(), 0, timeEnd - timeStart, 0L);
         return ds;
     }
 
@@ -252,12 +983,41 @@ public final class VideoData extends DataValue {
             final long requestTimestampMillis,
             final Iterable<? extends GeneralVideoProduct> products
     ) {
-        final DataSet.Builder<VideoData> dataBuilder = new DataSet.Builder<>(duplicateResolver, null);
+        return buildDataSet(transaction, consumer, duplicateResolver, requestTimestampMillis, products, null);
+    }
+
+    /**
+     * Creates the DataSet of the given products for the given blend's
+     * consumer, with the settings of the blend applied, see
+     * {@link DataSet#environment(BlendEnvironment)}.
+     *
+     * @param environment the environment of the blend
+     * @param duplicateResolver the resolver for duplicate items
+     * @param products the products to include
+     * @return the DataSet of the products
+     */
+    public static DataSet<VideoData> buildDataSet(
+            final BlendEnvironment environment,
+            final DuplicateResolver<VideoData> duplicateResolver,
+            final Iterable<? extends GeneralVideoProduct> products
+    ) {
+        return buildDataSet(environment.transaction, environment.consumer, duplicateResolver, environment.requestTimestampMillis, products, environment);
+    }
+
+    private static DataSet<VideoData> buildDataSet(
+            final Transaction transaction,
+            final ConsumerEntity consumer,
+            final DuplicateResolver<VideoData> duplicateResolver,
+            final long requestTimestampMillis,
+            final Iterable<? extends GeneralVideoProduct> products,
+            final BlendEnvironment environment
+    ) {
+        final DataSet.Builder<VideoData> dataBuilder = new DataSet.Builder<>(duplicateResolver, KEY_EXTRACTOR, null).environment(environment);
         final long timeStart = System.nanoTime();
         transaction.getLink().getProductManager().buildDatasetFromVideos(transaction, products, consumer.activeRelationProductIds(requestTimestampMillis), dataBuilder);
         final long timeEnd = System.nanoTime();
         final DataSet<VideoData> ds = dataBuilder.build();
-        ds.log(new DataSet.InfoLogStringBuilder(new StringBuilder(128).append("----- Building data from provided products into a dataset of ").append(ds.size()).append(" items: ").append(timeEnd - timeStart).append(" ns\n")));
+        ds.record(BlendTrace.BUILT_PROVIDED, null, ds.size(), 0, timeEnd - timeStart, 0L);
         return ds;
     }
 }
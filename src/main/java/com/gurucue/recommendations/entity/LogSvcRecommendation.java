@@ -72,7 +72,7 @@ public class LogSvcRecommendation implements Serializable {
                 } else {
                     v.toJson(result);
                 }
-                result.append(",\"explanation\":\"").append(vd.explanation).append("\",\"product_id\":").append(vd.video.id).append("}");
+                result.append(",\"explanation\":\"").append(vd.explanation()).append("\",\"product_id\":").append(vd.video.id).append("}");
             };
             final Spliterator<VideoData> s = response.spliterator();
             result.append("[");
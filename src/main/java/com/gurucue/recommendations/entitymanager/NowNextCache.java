@@ -0,0 +1,237 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.entitymanager;
+
+import com.gurucue.recommendations.Timer;
+import com.gurucue.recommendations.TimerListener;
+import com.gurucue.recommendations.Transaction;
+import com.gurucue.recommendations.data.DataLink;
+import com.gurucue.recommendations.data.DataProvider;
+import com.gurucue.recommendations.entity.Partner;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import gnu.trove.map.hash.TLongIntHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A partner's current and next TV-programme for each of the given
+ * TV-channels, so that zapping-style lookups are array accesses instead of
+ * {@link ProductManager#tvProgrammeAtTimeForTvChannelAndPartner(Transaction, Partner, TvChannelProduct, long)}
+ * and {@link ProductManager#firstTvProgrammeAfterTimeForTvChannelAndPartner(Transaction, Partner, TvChannelProduct, long)}
+ * queries. The cache rolls over at programme boundaries: it is scheduled
+ * on {@link Timer#INSTANCE} for the earliest boundary among the channels,
+ * and then refreshes only the channels whose boundary has passed, where
+ * the next TV-programme usually becomes the current one without a query.
+ * Between the boundary and the refresh, lookups already answer from the
+ * next TV-programme. Every channel is re-checked at least every
+ * <code>recheckMillis</code>, so channels without a known boundary, e.g.
+ * with no scheduled TV-programmes, or with a long current TV-programme
+ * and no next one yet, pick up TV-programmes added meanwhile.
+ * <p>
+ * Refreshes run in the timer's threads, with a transaction of their own.
+ * A change of the partner's EPG must be reported with {@link #invalidate()},
+ * and a cache no longer needed must be {@link #close() closed}, to stop
+ * the scheduling. Instances are obtained with
+ * {@link #start(DataProvider, Partner, List, long)}. The instance is
+ * thread-safe.
+ */
+public final class NowNextCache implements TimerListener, AutoCloseable {
+    private static final Logger log = LogManager.getLogger(NowNextCache.class);
+
+    private final DataProvider provider;
+    private final Partner partner;
+    private final TvChannelProduct[] tvChannels;
+    private final TLongIntHashMap positions; // TV-channel ID -> position in the arrays
+    private final long recheckMillis;
+    private volatile State state;
+    private long scheduledMillis = -1L; // guarded by this
+    private boolean closed = false; // guarded by this
+
+    private NowNextCache(final DataProvider provider, final Partner partner, final List<TvChannelProduct> tvChannels, final long recheckMillis) {
+        this.provider = provider;
+        this.partner = partner;
+        this.recheckMillis = recheckMillis;
+        this.tvChannels = tvChannels.toArray(new TvChannelProduct[tvChannels.size()]);
+        final int n = this.tvChannels.length;
+        positions = new TLongIntHashMap(n, 0.5f, -1L, -1);
+        for (int i = 0; i < n; i++) positions.put(this.tvChannels[i].id, i);
+    }
+
+    /**
+     * Constructs the cache, loads the current and next TV-programmes, and
+     * schedules the first refresh. The cache is only handed to the timer
+     * once fully constructed.
+     *
+     * @param provider the provider for the transactions of refreshes
+     * @param partner the partner whose TV-programmes to cache
+     * @param tvChannels the TV-channels to cache, e.g. from {@link ProductManager#getTvChannelsForPartner(Transaction, Partner)}
+     * @param recheckMillis the longest interval between refreshes of a TV-channel, in milliseconds
+     * @return the started cache, to be {@link #close() closed} when no longer needed
+     */
+    public static NowNextCache start(final DataProvider provider, final Partner partner, final List<TvChannelProduct> tvChannels, final long recheckMillis) {
+        if (recheckMillis <= 0L) throw new IllegalArgumentException("The re-check interval must be positive: " + recheckMillis);
+        final NowNextCache cache = new NowNextCache(provider, partner, tvChannels, recheckMillis);
+        synchronized (cache) {
+            cache.refresh(Timer.currentTimeMillis(), true);
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the TV-programme currently running on the given TV-channel.
+     *
+     * @param tvChannel the TV-channel
+     * @return the current TV-programme, or null if there is none or the TV-channel is not cached
+     */
+    public TvProgrammeProduct now(final TvChannelProduct tvChannel) {
+        final int i = positions.get(tvChannel.id);
+        if (i < 0) return null;
+        final State s = state;
+        final long timeMillis = Timer.currentTimeMillis();
+        final TvProgrammeProduct current = s.now[i];
+        if ((current == null) || (current.endTimeMillis <= timeMillis)) {
+            // the boundary has passed, but the refresh has not happened yet
+            final TvProgrammeProduct next = s.next[i];
+            return (next != null) && (next.beginTimeMillis <= timeMillis) && (next.endTimeMillis > timeMillis) ? next : null;
+        }
+        return current;
+    }
+
+    /**
+     * Returns the TV-programme that begins next on the given TV-channel.
+     *
+     * @param tvChannel the TV-channel
+     * @return the next TV-programme, or null if it is not known or the TV-channel is not cached
+     */
+    public TvProgrammeProduct next(final TvChannelProduct tvChannel) {
+        final int i = positions.get(tvChannel.id);
+        if (i < 0) return null;
+        final TvProgrammeProduct next = state.next[i];
+        return (next != null) && (next.beginTimeMillis > Timer.currentTimeMillis()) ? next : null;
+    }
+
+    /**
+     * Reloads the TV-programmes of all TV-channels, to be invoked when the
+     * partner's EPG changes.
+     */
+    public synchronized void invalidate() {
+        if (closed) return;
+        refresh(Timer.currentTimeMillis(), true);
+    }
+
+    /**
+     * Stops refreshing the cache. Lookups still answer from the last
+     * refresh.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (scheduledMillis >= 0L) Timer.INSTANCE.unschedule(scheduledMillis, this);
+        scheduledMillis = -1L;
+    }
+
+    @Override
+    public synchronized void onTimerExpired(final long expiryTime) {
+        if (closed || (expiryTime != scheduledMillis)) return; // closed or rescheduled meanwhile
+        scheduledMillis = -1L;
+        final long timeMillis = Timer.currentTimeMillis();
+        try {
+            refresh(timeMillis, false);
+        }
+        catch (RuntimeException e) {
+            log.error("Failed to refresh the current and next TV-programmes of partner " + partner.getUsername() + ", retrying in " + recheckMillis + " ms: " + e.toString(), e);
+            schedule(timeMillis + recheckMillis);
+        }
+    }
+
+    /**
+     * Refreshes the TV-channels whose boundary has passed, or all of them,
+     * then schedules the next refresh. Must be invoked while holding the
+     * monitor.
+     */
+    private void refresh(final long timeMillis, final boolean all) {
+        final State s = state;
+        final int n = tvChannels.length;
+        final TvProgrammeProduct[] now = s == null ? new TvProgrammeProduct[n] : s.now.clone();
+        final TvProgrammeProduct[] next = s == null ? new TvProgrammeProduct[n] : s.next.clone();
+        final long[] boundaries = s == null ? new long[n] : s.boundaries.clone();
+        final Transaction existing = Transaction.get();
+        if (existing != null) reload(existing, timeMillis, all, now, next, boundaries);
+        else {
+            try (final DataLink link = provider.newDataLink(); final Transaction transaction = Transaction.newTransaction(link)) {
+                reload(transaction, timeMillis, all, now, next, boundaries);
+            }
+        }
+        state = new State(now, next, boundaries);
+        long earliest = timeMillis + recheckMillis;
+        for (int i = 0; i < n; i++) {
+            if (boundaries[i] < earliest) earliest = boundaries[i];
+        }
+        schedule(earliest);
+    }
+
+    private void reload(final Transaction transaction, final long timeMillis, final boolean all, final TvProgrammeProduct[] now, final TvProgrammeProduct[] next, final long[] boundaries) {
+        final ProductManager pm = transaction.getLink().getProductManager();
+        final int n = tvChannels.length;
+        for (int i = 0; i < n; i++) {
+            if (!all && (boundaries[i] > timeMillis)) continue;
+            final TvChannelProduct tvChannel = tvChannels[i];
+            final TvProgrammeProduct previousNext = next[i];
+            if (!all && (previousNext != null) && (previousNext.beginTimeMillis <= timeMillis) && (previousNext.endTimeMillis > timeMillis)) now[i] = previousNext; // roll over
+            else now[i] = pm.tvProgrammeAtTimeForTvChannelAndPartner(transaction, partner, tvChannel, timeMillis);
+            final TvProgrammeProduct current = now[i];
+            next[i] = pm.firstTvProgrammeAfterTimeForTvChannelAndPartner(transaction, partner, tvChannel, timeMillis);
+            long boundary = timeMillis + recheckMillis;
+            if ((current != null) && (current.endTimeMillis < boundary)) boundary = current.endTimeMillis;
+            if ((next[i] != null) && (next[i].beginTimeMillis < boundary)) boundary = next[i].beginTimeMillis;
+            boundaries[i] = boundary;
+        }
+    }
+
+    private void schedule(final long timeMillis) {
+        if (closed) return;
+        if (scheduledMillis >= 0L) Timer.INSTANCE.unschedule(scheduledMillis, this);
+        scheduledMillis = timeMillis;
+        Timer.INSTANCE.schedule(timeMillis, this);
+    }
+
+    /**
+     * The cached TV-programmes by TV-channel position, immutable once published.
+     */
+    private static final class State {
+        final TvProgrammeProduct[] now;
+        final TvProgrammeProduct[] next;
+        final long[] boundaries; // when each TV-channel must be refreshed
+
+        State(final TvProgrammeProduct[] now, final TvProgrammeProduct[] next, final long[] boundaries) {
+            this.now = now;
+            this.next = next;
+            this.boundaries = boundaries;
+        }
+
+        @Override
+        public String toString() {
+            return "State(now=" + Arrays.toString(now) + ", next=" + Arrays.toString(next) + ")";
+        }
+    }
+}
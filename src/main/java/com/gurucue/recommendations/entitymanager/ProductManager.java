@@ -20,6 +20,7 @@ package com.gurucue.recommendations.entitymanager;
 
 import com.gurucue.recommendations.Transaction;
 import com.gurucue.recommendations.blender.DataSet;
+import com.gurucue.recommendations.blender.ProductPredicate;
 import com.gurucue.recommendations.blender.VideoData;
 import com.gurucue.recommendations.entity.Attribute;
 import com.gurucue.recommendations.entity.Partner;
@@ -32,6 +33,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * {@link com.gurucue.recommendations.entity.Product} management methods.
@@ -276,6 +278,64 @@ public interface ProductManager {
      */
     void vodForPartner(Transaction transaction, Partner partner, long recommendTimeMillis, TLongSet subscriptionPackageIds, DataSet.Builder<VideoData> outputBuilder);
 
+    /**
+     * Selects TV-programmes like {@link #tvProgrammesInIntervalForPartner(Transaction, Partner, long, long, long, TLongSet, DataSet.Builder)},
+     * but only those whose products the given predicate accepts, so that
+     * no {@link VideoData} needs to be built for the rejected ones. The
+     * default implementation drops the rejected items at the builder,
+     * implementations should test products before building items.
+     *
+     * @param transaction the transaction to use
+     * @param partner the partner for which to retrieve tv-programmes
+     * @param recommendTimeMillis timestamp in milliseconds from the epoch, for which to find active tv-programmes
+     * @param negativeOffsetMillis maximum offset into the past relative to recommendTimeMillis, in milliseconds
+     * @param positiveOffsetMillis maximum offset into the future relative to recommendTimeMillis, in milliseconds
+     * @param subscriptionPackageIds set of IDs of products of type package, identifying active subscription packages of a consumer, to be used in determining the {@link VideoData#isSubscribed} flag of a content
+     * @param predicate the condition that products must satisfy, or null to select all
+     * @param outputBuilder the builder to use for storing TV-programmes
+     */
+    default void tvProgrammesInIntervalForPartner(Transaction transaction, Partner partner, long recommendTimeMillis, long negativeOffsetMillis, long positiveOffsetMillis, TLongSet subscriptionPackageIds, ProductPredicate predicate, DataSet.Builder<VideoData> outputBuilder) {
+        if (predicate == null) {
+            tvProgrammesInIntervalForPartner(transaction, partner, recommendTimeMillis, negativeOffsetMillis, positiveOffsetMillis, subscriptionPackageIds, outputBuilder);
+            return;
+        }
+        final Predicate<? super VideoData> previous = outputBuilder.admit((final VideoData vd) -> predicate.test(vd.video));
+        try {
+            tvProgrammesInIntervalForPartner(transaction, partner, recommendTimeMillis, negativeOffsetMillis, positiveOffsetMillis, subscriptionPackageIds, outputBuilder);
+        }
+        finally {
+            outputBuilder.admit(previous);
+        }
+    }
+
+    /**
+     * Selects video products like {@link #vodForPartner(Transaction, Partner, long, TLongSet, DataSet.Builder)},
+     * but only those that the given predicate accepts, so that no
+     * {@link VideoData} needs to be built for the rejected ones. The
+     * default implementation drops the rejected items at the builder,
+     * implementations should test products before building items.
+     *
+     * @param transaction the transaction to use
+     * @param partner the partner for which to retrieve videos
+     * @param recommendTimeMillis timestamp in milliseconds from the epoch, for which to find active video products
+     * @param subscriptionPackageIds set of IDs of products of type package, identifying active subscription packages of a consumer, to be used in determining the {@link VideoData#isSubscribed} flag of a content
+     * @param predicate the condition that products must satisfy, or null to select all
+     * @param outputBuilder the builder to use for storing video products
+     */
+    default void vodForPartner(Transaction transaction, Partner partner, long recommendTimeMillis, TLongSet subscriptionPackageIds, ProductPredicate predicate, DataSet.Builder<VideoData> outputBuilder) {
+        if (predicate == null) {
+            vodForPartner(transaction, partner, recommendTimeMillis, subscriptionPackageIds, outputBuilder);
+            return;
+        }
+        final Predicate<? super VideoData> previous = outputBuilder.admit((final VideoData vd) -> predicate.test(vd.video));
+        try {
+            vodForPartner(transaction, partner, recommendTimeMillis, subscriptionPackageIds, outputBuilder);
+        }
+        finally {
+            outputBuilder.admit(previous);
+        }
+    }
+
     /**
      * Equips the given video and/or tv-programme products with additional data required
      * for filtering, and adds it to the provided dataset builder. This is usefule in
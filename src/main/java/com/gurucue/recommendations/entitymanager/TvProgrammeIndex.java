@@ -0,0 +1,305 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.entitymanager;
+
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * An in-memory index of a partner's TV-programmes by TV-channel and time,
+ * for {@link ProductManager} implementations to answer time-window queries
+ * without a database round-trip, such as
+ * {@link ProductManager#tvProgrammeAtTimeForTvChannelAndPartner(com.gurucue.recommendations.Transaction, com.gurucue.recommendations.entity.Partner, com.gurucue.recommendations.entity.product.TvChannelProduct, long)}
+ * and {@link ProductManager#forEachOverlappingTvProgramme(com.gurucue.recommendations.Transaction, com.gurucue.recommendations.entity.Partner, String, Long, Long, Consumer)}.
+ * <p>
+ * Each TV-channel has a timeline of its TV-programmes sorted by begin
+ * time, as primitive arrays of begin times, end times and the running
+ * maximum of end times, so a query is a binary search followed by a
+ * backward scan that stops as soon as no earlier TV-programme can reach
+ * into the queried interval: O(log n + k) for k results on a schedule
+ * without overlaps. Timelines are immutable and replaced on each update,
+ * so queries take no locks and see either the old or the new timeline.
+ * Updates are serialized; they are O(n) in the size of the affected
+ * timelines, which suits the rate of catalogue changes, while a bulk
+ * load with {@link #putAll(Iterable)} sorts each timeline only once.
+ */
+public final class TvProgrammeIndex {
+    private static final String[] NO_CHANNELS = new String[0];
+    private static final Timeline EMPTY = new Timeline(new TvProgrammeProduct[0]);
+    private static final Comparator<TvProgrammeProduct> BY_BEGIN = (final TvProgrammeProduct a, final TvProgrammeProduct b) -> {
+        final int c = Long.compare(a.beginTimeMillis, b.beginTimeMillis);
+        return c != 0 ? c : Long.compare(a.id, b.id);
+    };
+
+    private final ConcurrentHashMap<String, Timeline> timelines = new ConcurrentHashMap<>();
+    private final TLongObjectMap<TvProgrammeProduct> byId = new TLongObjectHashMap<>(); // guarded by this
+
+    /**
+     * Adds the given TV-programme to the timelines of its TV-channels, or
+     * updates it, to be invoked when a TV-programme is saved. A
+     * TV-programme marked as deleted is removed.
+     *
+     * @param tvProgramme the saved TV-programme
+     */
+    public synchronized void put(final TvProgrammeProduct tvProgramme) {
+        final Map<String, Timeline> updated = new HashMap<>(); // published at the end, so a query never misses a TV-programme that stays
+        final TvProgrammeProduct previous = byId.remove(tvProgramme.id);
+        if (previous != null) {
+            for (final String channelCode : channelCodesOf(previous)) {
+                updated.put(channelCode, timeline(channelCode).without(previous.id));
+            }
+        }
+        if (tvProgramme.deleted == null) {
+            byId.put(tvProgramme.id, tvProgramme);
+            for (final String channelCode : channelCodesOf(tvProgramme)) {
+                final Timeline timeline = updated.get(channelCode);
+                updated.put(channelCode, (timeline == null ? timeline(channelCode) : timeline).with(tvProgramme));
+            }
+        }
+        updated.forEach(this::replace);
+    }
+
+    /**
+     * Removes the TV-programme with the given ID, to be invoked when a
+     * TV-programme is deleted.
+     *
+     * @param tvProgrammeId the ID of the deleted TV-programme
+     */
+    public synchronized void remove(final long tvProgrammeId) {
+        final TvProgrammeProduct previous = byId.remove(tvProgrammeId);
+        if (previous == null) return;
+        for (final String channelCode : channelCodesOf(previous)) {
+            replace(channelCode, timeline(channelCode).without(tvProgrammeId));
+        }
+    }
+
+    /**
+     * Adds or updates the given TV-programmes in bulk, e.g. when the index
+     * is first loaded, rebuilding each affected timeline only once.
+     *
+     * @param tvProgrammes the TV-programmes to add
+     */
+    public synchronized void putAll(final Iterable<TvProgrammeProduct> tvProgrammes) {
+        final Map<String, List<TvProgrammeProduct>> added = new HashMap<>();
+        final Map<String, TLongObjectMap<TvProgrammeProduct>> removed = new HashMap<>();
+        for (final TvProgrammeProduct tvProgramme : tvProgrammes) {
+            final TvProgrammeProduct previous = byId.remove(tvProgramme.id);
+            if (previous != null) {
+                for (final String channelCode : channelCodesOf(previous)) {
+                    removed.computeIfAbsent(channelCode, (final String code) -> new TLongObjectHashMap<>()).put(previous.id, previous);
+                }
+            }
+            if (tvProgramme.deleted != null) continue;
+            byId.put(tvProgramme.id, tvProgramme);
+            for (final String channelCode : channelCodesOf(tvProgramme)) {
+                added.computeIfAbsent(channelCode, (final String code) -> new ArrayList<>()).add(tvProgramme);
+            }
+        }
+        for (final String channelCode : removed.keySet()) {
+            if (!added.containsKey(channelCode)) added.put(channelCode, new ArrayList<>());
+        }
+        added.forEach((final String channelCode, final List<TvProgrammeProduct> channelAdded) -> {
+            final TLongObjectMap<TvProgrammeProduct> channelRemoved = removed.get(channelCode);
+            final Timeline timeline = timelines.get(channelCode);
+            final List<TvProgrammeProduct> all = new ArrayList<>(channelAdded.size() + (timeline == null ? 0 : timeline.programmes.length));
+            if (timeline != null) {
+                for (final TvProgrammeProduct p : timeline.programmes) {
+                    if ((channelRemoved == null) || !channelRemoved.containsKey(p.id)) all.add(p);
+                }
+            }
+            // a TV-programme added and then updated within the same bulk is only in the index by its last version
+            for (final TvProgrammeProduct p : channelAdded) {
+                if (byId.get(p.id) == p) all.add(p);
+            }
+            final TvProgrammeProduct[] programmes = all.toArray(new TvProgrammeProduct[all.size()]);
+            Arrays.sort(programmes, BY_BEGIN);
+            replace(channelCode, new Timeline(programmes));
+        });
+    }
+
+    /** A TV-programme without TV-channel codes is kept by its ID, but is on no timeline. */
+    private static String[] channelCodesOf(final TvProgrammeProduct tvProgramme) {
+        final String[] codes = tvProgramme.tvChannelCodes;
+        return codes == null ? NO_CHANNELS : codes;
+    }
+
+    private Timeline timeline(final String channelCode) {
+        final Timeline timeline = timelines.get(channelCode);
+        return timeline == null ? EMPTY : timeline;
+    }
+
+    private void replace(final String channelCode, final Timeline timeline) {
+        if (timeline.programmes.length == 0) timelines.remove(channelCode);
+        else timelines.put(channelCode, timeline);
+    }
+
+    /**
+     * Returns the TV-programme running at the given time on the given
+     * TV-channel. If TV-programmes overlap, the one that began last wins.
+     *
+     * @param tvChannelCode the code of the TV-channel
+     * @param timeMillis the time, in milliseconds
+     * @return the running TV-programme, or null if there is none
+     */
+    public TvProgrammeProduct atTime(final String tvChannelCode, final long timeMillis) {
+        final Timeline timeline = timelines.get(tvChannelCode);
+        if (timeline == null) return null;
+        final long[] ends = timeline.ends;
+        final long[] maxEnds = timeline.maxEnds;
+        for (int i = timeline.firstBeginAfter(timeMillis) - 1; (i >= 0) && (maxEnds[i] > timeMillis); i--) {
+            if (ends[i] > timeMillis) return timeline.programmes[i];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first TV-programme that begins after the given time on
+     * the given TV-channel.
+     *
+     * @param tvChannelCode the code of the TV-channel
+     * @param timeMillis the time, in milliseconds
+     * @return the first TV-programme beginning after the given time, or null if there is none
+     */
+    public TvProgrammeProduct firstAfter(final String tvChannelCode, final long timeMillis) {
+        final Timeline timeline = timelines.get(tvChannelCode);
+        if (timeline == null) return null;
+        final int i = timeline.firstBeginAfter(timeMillis);
+        return i < timeline.programmes.length ? timeline.programmes[i] : null;
+    }
+
+    /**
+     * Invokes the given consumer with every TV-programme on the given
+     * TV-channel that intersects the given interval, in the order of
+     * begin times.
+     *
+     * @param tvChannelCode the code of the TV-channel
+     * @param beginTimeMillis the beginning of the interval (inclusive), in milliseconds
+     * @param endTimeMillis the end of the interval (exclusive), in milliseconds
+     * @param consumer the consumer of TV-programmes
+     */
+    public void forEachOverlapping(final String tvChannelCode, final long beginTimeMillis, final long endTimeMillis, final Consumer<TvProgrammeProduct> consumer) {
+        final Timeline timeline = timelines.get(tvChannelCode);
+        if (timeline == null) return;
+        final long[] ends = timeline.ends;
+        final long[] maxEnds = timeline.maxEnds;
+        final int last = timeline.firstBeginAfter(endTimeMillis - 1L); // the first TV-programme beginning at or after the end
+        int first = last;
+        while ((first > 0) && (maxEnds[first - 1] > beginTimeMillis)) first--;
+        final TvProgrammeProduct[] programmes = timeline.programmes;
+        for (int i = first; i < last; i++) {
+            if (ends[i] > beginTimeMillis) consumer.accept(programmes[i]);
+        }
+    }
+
+    /**
+     * Returns the codes of TV-channels having TV-programmes in the index,
+     * as a read-only view that reflects later updates.
+     *
+     * @return the codes of TV-channels
+     */
+    public Set<String> tvChannelCodes() {
+        return Collections.unmodifiableSet(timelines.keySet());
+    }
+
+    /**
+     * The number of TV-programmes in the index.
+     *
+     * @return the number of TV-programmes
+     */
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    /**
+     * The TV-programmes of a TV-channel sorted by begin time, immutable.
+     */
+    private static final class Timeline {
+        final TvProgrammeProduct[] programmes;
+        final long[] begins;
+        final long[] ends;
+        final long[] maxEnds; // maxEnds[i] is the latest end of programmes[0..i]
+
+        Timeline(final TvProgrammeProduct[] programmes) {
+            final int n = programmes.length;
+            this.programmes = programmes;
+            begins = new long[n];
+            ends = new long[n];
+            maxEnds = new long[n];
+            long maxEnd = Long.MIN_VALUE;
+            for (int i = 0; i < n; i++) {
+                final TvProgrammeProduct p = programmes[i];
+                begins[i] = p.beginTimeMillis;
+                ends[i] = p.endTimeMillis;
+                if (p.endTimeMillis > maxEnd) maxEnd = p.endTimeMillis;
+                maxEnds[i] = maxEnd;
+            }
+        }
+
+        /** Returns the index of the first TV-programme beginning after the given time. */
+        int firstBeginAfter(final long timeMillis) {
+            final long[] b = begins;
+            int low = 0;
+            int high = b.length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (b[mid] <= timeMillis) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        Timeline with(final TvProgrammeProduct tvProgramme) {
+            final TvProgrammeProduct[] p = programmes;
+            final int n = p.length;
+            int i = Arrays.binarySearch(p, tvProgramme, BY_BEGIN);
+            if (i < 0) i = -i - 1;
+            final TvProgrammeProduct[] result = new TvProgrammeProduct[n + 1];
+            System.arraycopy(p, 0, result, 0, i);
+            result[i] = tvProgramme;
+            System.arraycopy(p, i, result, i + 1, n - i);
+            return new Timeline(result);
+        }
+
+        Timeline without(final long tvProgrammeId) {
+            final TvProgrammeProduct[] p = programmes;
+            final int n = p.length;
+            for (int i = 0; i < n; i++) {
+                if (p[i].id == tvProgrammeId) {
+                    final TvProgrammeProduct[] result = new TvProgrammeProduct[n - 1];
+                    System.arraycopy(p, 0, result, 0, i);
+                    System.arraycopy(p, i + 1, result, i, n - i - 1);
+                    return new Timeline(result);
+                }
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test.blender;
+
+import com.gurucue.recommendations.ResponseException;
+import com.gurucue.recommendations.blender.BlendEnvironment;
+import com.gurucue.recommendations.blender.BlendParameters;
+import com.gurucue.recommendations.blender.BlenderResult;
+import com.gurucue.recommendations.blender.CachingTopBlender;
+import com.gurucue.recommendations.blender.VideoData;
+import com.gurucue.recommendations.dto.ConsumerEntity;
+import com.gurucue.recommendations.test.entitymanager.InMemoryCatalogue;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests that the cache serves repeated blends without sharing items among
+ * callers, and discards results by consumer.
+ */
+public class CachingTopBlenderTests {
+    private static final long BUCKET = 60000L;
+    private static final long T0 = 1000L * BUCKET;
+
+    private final InMemoryCatalogue catalogue = new InMemoryCatalogue();
+    private final StubTopBlender delegate = new StubTopBlender(catalogue, 20);
+    private final CachingTopBlender blender = new CachingTopBlender(delegate, (partner) -> 0L, BUCKET, 100L);
+
+    private BlenderResult<VideoData> blend(final ConsumerEntity consumer, final long timeMillis) throws ResponseException {
+        final BlendEnvironment environment = new BlendEnvironment(catalogue.provider, null, null, catalogue.partner, consumer, timeMillis, false);
+        return blender.blend(VideoData.class, environment, new BlendParameters("test", consumer.username, Collections.emptyMap()));
+    }
+
+    @Test
+    public void testItemsAreNotShared() throws ResponseException {
+        final ConsumerEntity consumer = catalogue.consumer();
+        final BlenderResult<VideoData> first = blend(consumer, T0);
+        for (final VideoData vd : first.dataSet) vd.prediction = -1.0;
+        final BlenderResult<VideoData> second = blend(consumer, T0 + BUCKET - 1L);
+        Assert.assertEquals("The result was not served from the cache", 1, delegate.blends.get());
+        double expected = 0.0;
+        for (final VideoData vd : second.dataSet) {
+            Assert.assertEquals("The cached item was modified by the first caller", expected, vd.prediction, 0.0);
+            vd.prediction = -2.0;
+            expected += 1.0;
+        }
+        Assert.assertEquals("A cached item is missing", 20.0, expected, 0.0);
+        for (final VideoData vd : blend(consumer, T0).dataSet) {
+            Assert.assertTrue("The cached item was modified by the second caller", vd.prediction >= 0.0);
+        }
+        Assert.assertFalse("A served result is read-only", second.dataSet.isReadOnly());
+        blend(consumer, T0 + BUCKET);
+        Assert.assertEquals("The result was reused in another time bucket", 2, delegate.blends.get());
+    }
+
+    @Test
+    public void testInvalidateConsumer() throws ResponseException {
+        final ConsumerEntity first = catalogue.consumer();
+        final ConsumerEntity second = catalogue.consumer();
+        blend(first, T0);
+        blend(first, T0 + BUCKET);
+        blend(second, T0);
+        Assert.assertEquals("Results were not cached", 3L, blender.size());
+        blender.invalidateConsumer(first.id);
+        Assert.assertEquals("The results of the consumer were not discarded", 1L, blender.size());
+        blend(second, T0);
+        Assert.assertEquals("The result of another consumer was discarded", 3, delegate.blends.get());
+        blend(first, T0);
+        Assert.assertEquals("A discarded result was served", 4, delegate.blends.get());
+        blender.invalidateConsumer(first.id);
+        blender.invalidateConsumer(second.id);
+        Assert.assertEquals("Results remain after discarding the results of all consumers", 0L, blender.size());
+        blender.invalidateConsumer(second.id); // nothing left to discard
+    }
+
+    @Test
+    public void testInvalidateWhileBlending() throws Exception {
+        final ConsumerEntity consumer = catalogue.consumer();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int round = 0; round < 2; round++) {
+                final CountDownLatch gate = new CountDownLatch(1);
+                delegate.gate = gate;
+                final int blends = delegate.blends.get();
+                final Future<BlenderResult<VideoData>> future = executor.submit(() -> blend(consumer, T0));
+                while (delegate.blends.get() == blends) Thread.sleep(1L);
+                // the consumer changes while its blend is in progress
+                if (round == 0) blender.invalidateConsumer(consumer.id);
+                else blender.invalidateAll();
+                gate.countDown();
+                Assert.assertEquals("The blend in progress failed", 20, future.get().dataSet.size());
+                Assert.assertEquals("The result of a blend predating the invalidation was cached", 0L, blender.size());
+            }
+            delegate.gate = null;
+            blend(consumer, T0);
+            blend(consumer, T0);
+            Assert.assertEquals("A blend after the invalidation was not cached", 3, delegate.blends.get());
+            blender.invalidateConsumer(consumer.id);
+            Assert.assertEquals("A result cached after an invalidation was not discarded by the next one", 0L, blender.size());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDebugBlendIsTraced() throws ResponseException {
+        final ConsumerEntity consumer = catalogue.consumer();
+        final BlendEnvironment environment = new BlendEnvironment(catalogue.provider, null, null, catalogue.partner, consumer, T0, true);
+        final BlenderResult<VideoData> result = blender.blend(VideoData.class, environment, new BlendParameters("test", consumer.username, Collections.emptyMap()));
+        Assert.assertEquals("A debugged blend was not traced", "----- DataSet created from 20 items in ", DataSetTests.log(result.dataSet).replaceAll("[0-9]+ ns\n$", ""));
+        Assert.assertEquals("A debugged blend was cached", 0L, blender.size());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test.blender;
+
+import com.gurucue.recommendations.Transaction;
+import com.gurucue.recommendations.blender.CatalogueSnapshot;
+import com.gurucue.recommendations.blender.CatalogueSnapshots;
+import com.gurucue.recommendations.blender.DataSet;
+import com.gurucue.recommendations.blender.DuplicateResolver;
+import com.gurucue.recommendations.blender.TvChannelData;
+import com.gurucue.recommendations.blender.VideoData;
+import com.gurucue.recommendations.dto.ConsumerEntity;
+import com.gurucue.recommendations.entity.product.PackageProduct;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.test.entitymanager.InMemoryCatalogue;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that catalogue snapshots serve the same DataSets as direct
+ * {@link com.gurucue.recommendations.entitymanager.ProductManager} queries.
+ */
+public class CatalogueSnapshotTests {
+    private static final long HOUR = 3600000L;
+    private static final long T0 = 1000L * HOUR;
+    private static final long MAX_CATCHUP = 12L * HOUR;
+    private static final long MAX_LIVE = 6L * HOUR;
+    private static final long ROLL = HOUR;
+    private static final DuplicateResolver<VideoData> PREFER_SUBSCRIBED = (final VideoData value, final VideoData existing) -> value.isSubscribed && !existing.isSubscribed ? value : existing;
+
+    private final InMemoryCatalogue catalogue = new InMemoryCatalogue();
+    private final List<ConsumerEntity> consumers = new ArrayList<>();
+
+    public CatalogueSnapshotTests() {
+        final TvChannelProduct a = catalogue.tvChannel("a", 2); // short catch-up
+        final TvChannelProduct b = catalogue.tvChannel("b", 0); // no catch-up
+        final TvChannelProduct c = catalogue.tvChannel("c", 24); // catch-up beyond the maximum
+        final PackageProduct basic = catalogue.subscriptionPackage(a);
+        final PackageProduct premium = catalogue.subscriptionPackage(b, c);
+        long matchId = 1L;
+        // around each request time of the roll interval, on every combination of channels
+        final TvChannelProduct[][] playedOn = { { a }, { b }, { c }, { a, b }, { a, c }, { b, c }, { a, b, c } };
+        final long[] begins = { -14L * HOUR, -11L * HOUR, -3L * HOUR, -2L * HOUR - 1L, -2L * HOUR + 20L * 60000L, -HOUR, -30L * 60000L, 0L, 30L * 60000L, 5L * HOUR, 6L * HOUR + 30L * 60000L, 7L * HOUR, 8L * HOUR };
+        for (final TvChannelProduct[] channels : playedOn) {
+            for (final long begin : begins) catalogue.tvProgramme(matchId++, T0 + begin, T0 + begin + 45L * 60000L, channels);
+        }
+        catalogue.video(matchId++, basic);
+        catalogue.video(matchId++, premium);
+        catalogue.video(matchId++);
+        catalogue.video(5L, premium); // a duplicate of a tv-programme
+        consumers.add(catalogue.consumer());
+        consumers.add(catalogue.consumer(basic));
+        consumers.add(catalogue.consumer(premium));
+        consumers.add(catalogue.consumer(basic, premium));
+    }
+
+    @Test
+    public void testOverlayMatchesDirectQuery() {
+        try (final Transaction transaction = catalogue.newTransaction()) {
+            final CatalogueSnapshot snapshot = CatalogueSnapshot.build(transaction, catalogue.partner, 0L, T0, MAX_CATCHUP, MAX_LIVE, ROLL);
+            for (final long offset : new long[] { 0L, 1L, 20L * 60000L, 30L * 60000L, 45L * 60000L, ROLL - 1L }) {
+                final long t = T0 + offset;
+                Assert.assertTrue("The snapshot is not valid within its roll interval", snapshot.isValidAt(t));
+                for (final ConsumerEntity consumer : consumers) {
+                    final DataSet<VideoData> direct = VideoData.buildDataSetOfVideosAndTvProgrammes(transaction, catalogue.partner, consumer, PREFER_SUBSCRIBED, t, MAX_CATCHUP, MAX_LIVE);
+                    final DataSet<VideoData> overlaid = snapshot.overlay(consumer, PREFER_SUBSCRIBED, t);
+                    Assert.assertEquals("The overlay differs from the direct query at offset " + offset + " for " + consumer.username, describe(direct), describe(overlaid));
+                }
+            }
+            Assert.assertFalse("The snapshot is valid after its roll interval", snapshot.isValidAt(T0 + ROLL));
+        }
+    }
+
+    @Test
+    public void testSnapshotsAreReusedAndRebuilt() {
+        final CatalogueSnapshots snapshots = new CatalogueSnapshots(MAX_CATCHUP, MAX_LIVE, ROLL);
+        try (final Transaction transaction = catalogue.newTransaction()) {
+            final CatalogueSnapshot first = snapshots.get(transaction, catalogue.partner, T0);
+            Assert.assertSame("The snapshot was not reused within its roll interval", first, snapshots.get(transaction, catalogue.partner, T0 + ROLL - 1L));
+            Assert.assertEquals("The catalogue was queried more than once for a snapshot", 1, catalogue.queries.get("vodForPartner").get());
+            final CatalogueSnapshot rolled = snapshots.get(transaction, catalogue.partner, T0 + ROLL);
+            Assert.assertNotSame("The snapshot was not rebuilt after its roll interval", first, rolled);
+            Assert.assertEquals("A rebuilt snapshot has a new version without an invalidation", first.version, rolled.version);
+            snapshots.invalidate(catalogue.partner);
+            Assert.assertEquals("The version did not change with an invalidation", first.version + 1L, snapshots.version(catalogue.partner));
+            final CatalogueSnapshot invalidated = snapshots.get(transaction, catalogue.partner, T0 + ROLL);
+            Assert.assertNotSame("The snapshot was not rebuilt after an invalidation", rolled, invalidated);
+            Assert.assertEquals("The rebuilt snapshot has a stale version", first.version + 1L, invalidated.version);
+            final DataSet<VideoData> direct = VideoData.buildDataSetOfVideosAndTvProgrammes(transaction, catalogue.partner, consumers.get(3), PREFER_SUBSCRIBED, T0 + ROLL, MAX_CATCHUP, MAX_LIVE);
+            final DataSet<VideoData> cached = snapshots.dataSetOfVideosAndTvProgrammes(transaction, catalogue.partner, consumers.get(3), PREFER_SUBSCRIBED, T0 + ROLL);
+            Assert.assertEquals("The cached DataSet differs from the direct query", describe(direct), describe(cached));
+        }
+    }
+
+    /**
+     * Lists the items in their order, with everything that the overlay
+     * computes per consumer and per request.
+     */
+    private static List<String> describe(final DataSet<VideoData> dataSet) {
+        final List<String> result = new ArrayList<>();
+        for (final VideoData vd : dataSet) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(vd.video.id).append(vd.isSubscribed ? " subscribed" : " not subscribed");
+            if (vd.isTvProgramme) {
+                for (final TvChannelData channel : vd.availableTvChannels) {
+                    sb.append(' ').append(channel.tvChannel.partnerProductCode).append(channel.isSubscribed ? "+" : "-");
+                    sb.append(channel.productPackages.size());
+                    if (vd.chosenTvChannels.contains(channel)) sb.append('*');
+                }
+            }
+            else sb.append(" in ").append(vd.productPackages.size()).append(" packages");
+            result.add(sb.toString());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test.blender;
+
+import com.gurucue.recommendations.blender.BlendEnvironment;
+import com.gurucue.recommendations.blender.BlendParameters;
+import com.gurucue.recommendations.blender.BlenderResult;
+import com.gurucue.recommendations.blender.CoalescingTopBlender;
+import com.gurucue.recommendations.blender.VideoData;
+import com.gurucue.recommendations.dto.ConsumerEntity;
+import com.gurucue.recommendations.test.entitymanager.InMemoryCatalogue;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that identical concurrent blends are coalesced into one, with
+ * each caller getting its own items or the leader's failure, and that
+ * nothing remains in flight afterwards.
+ */
+public class CoalescingTopBlenderTests {
+    private static final int FOLLOWERS = 3;
+
+    private final InMemoryCatalogue catalogue = new InMemoryCatalogue();
+    private final ConsumerEntity consumer = catalogue.consumer();
+    private final StubTopBlender delegate = new StubTopBlender(catalogue, 20);
+
+    private BlenderResult<VideoData> blend(final CoalescingTopBlender blender, final long budgetMillis) throws Exception {
+        final BlendEnvironment environment = budgetMillis < 0L
+                ? new BlendEnvironment(catalogue.provider, null, null, catalogue.partner, consumer, 0L, false)
+                : new BlendEnvironment(catalogue.provider, null, null, catalogue.partner, consumer, 0L, false, budgetMillis);
+        return blender.blend(VideoData.class, environment, new BlendParameters("test", consumer.username, Collections.emptyMap()));
+    }
+
+    /**
+     * Starts the leader and the followers, and returns once the followers
+     * are waiting for the leader, which is held back by the gate.
+     */
+    private List<Future<BlenderResult<VideoData>>> start(final CoalescingTopBlender blender, final ExecutorService executor, final CountDownLatch gate) throws Exception {
+        delegate.gate = gate;
+        final List<Future<BlenderResult<VideoData>>> results = new ArrayList<>();
+        results.add(executor.submit(() -> blend(blender, -1L)));
+        while (delegate.blends.get() == 0) Thread.sleep(1L);
+        final List<Thread> followers = new ArrayList<>();
+        for (int i = 0; i < FOLLOWERS; i++) {
+            results.add(executor.submit(() -> {
+                synchronized (followers) {
+                    followers.add(Thread.currentThread());
+                }
+                return blend(blender, -1L);
+            }));
+        }
+        for (;;) {
+            int waiting = 0;
+            synchronized (followers) {
+                for (final Thread follower : followers) {
+                    if (follower.getState() == Thread.State.TIMED_WAITING) waiting++;
+                }
+            }
+            if (waiting == FOLLOWERS) break;
+            Thread.sleep(1L);
+        }
+        Assert.assertEquals("A follower blended itself", 1, delegate.blends.get());
+        Assert.assertEquals("The blend is not in flight", 1, blender.inFlightCount());
+        return results;
+    }
+
+    @Test
+    public void testFollowersGetCopiesOfTheLeadersResult() throws Exception {
+        final CoalescingTopBlender blender = new CoalescingTopBlender(delegate);
+        final ExecutorService executor = Executors.newFixedThreadPool(FOLLOWERS + 1);
+        try {
+            final CountDownLatch gate = new CountDownLatch(1);
+            final List<Future<BlenderResult<VideoData>>> futures = start(blender, executor, gate);
+            gate.countDown();
+            final Map<VideoData, Boolean> seen = new IdentityHashMap<>();
+            for (final Future<BlenderResult<VideoData>> future : futures) {
+                final BlenderResult<VideoData> result = future.get();
+                Assert.assertEquals("A result is missing items", 20, result.dataSet.size());
+                Assert.assertFalse("A result is read-only", result.dataSet.isReadOnly());
+                double expected = 0.0;
+                for (final VideoData vd : result.dataSet) {
+                    Assert.assertEquals("An item was modified by another caller", expected, vd.prediction, 0.0);
+                    Assert.assertNull("An item is shared among callers", seen.put(vd, Boolean.TRUE));
+                    vd.prediction = -1.0;
+                    expected += 1.0;
+                }
+            }
+            Assert.assertEquals("The followers did not coalesce with the leader", 1, delegate.blends.get());
+            Assert.assertEquals("The finished blend is still in flight", 0, blender.inFlightCount());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFollowersGetTheLeadersFailure() throws Exception {
+        final CoalescingTopBlender blender = new CoalescingTopBlender(delegate);
+        final ExecutorService executor = Executors.newFixedThreadPool(FOLLOWERS + 1);
+        try {
+            final IllegalStateException failure = new IllegalStateException("leader");
+            delegate.failure = failure;
+            final CountDownLatch gate = new CountDownLatch(1);
+            final List<Future<BlenderResult<VideoData>>> futures = start(blender, executor, gate);
+            gate.countDown();
+            for (final Future<BlenderResult<VideoData>> future : futures) {
+                try {
+                    future.get();
+                    Assert.fail("The leader's failure was not propagated");
+                }
+                catch (ExecutionException e) {
+                    Assert.assertSame("The leader's failure was not propagated as is", failure, e.getCause());
+                }
+            }
+            Assert.assertEquals("The failed blend is still in flight", 0, blender.inFlightCount());
+            delegate.failure = null;
+            delegate.gate = null;
+            Assert.assertEquals("A blend after the failure did not succeed", 20, blend(blender, -1L).dataSet.size());
+            Assert.assertEquals("A blend after the failure was coalesced with the failed one", 2, delegate.blends.get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFollowerBlendsItselfPastItsDeadline() throws Exception {
+        final CoalescingTopBlender blender = new CoalescingTopBlender(delegate);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final CountDownLatch gate = new CountDownLatch(1);
+            delegate.gate = gate;
+            final Future<BlenderResult<VideoData>> leader = executor.submit(() -> blend(blender, -1L));
+            while (delegate.blends.get() == 0) Thread.sleep(1L);
+            final Future<BlenderResult<VideoData>> follower = executor.submit(() -> blend(blender, 20L));
+            final long timeout = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+            while ((delegate.blends.get() < 2) && (System.nanoTime() < timeout)) Thread.sleep(1L);
+            Assert.assertEquals("The follower kept waiting past its deadline", 2, delegate.blends.get());
+            gate.countDown();
+            Assert.assertEquals("The leader's result is missing items", 20, leader.get().dataSet.size());
+            Assert.assertEquals("The follower's own result is missing items", 20, follower.get().dataSet.size());
+            Assert.assertEquals("The finished blend is still in flight", 0, blender.inFlightCount());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
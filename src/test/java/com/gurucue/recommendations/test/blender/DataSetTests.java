@@ -0,0 +1,547 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test.blender;
+
+import com.gurucue.recommendations.blender.BlendTrace;
+import com.gurucue.recommendations.blender.BlenderResult;
+import com.gurucue.recommendations.blender.BlenderResultStore;
+import com.gurucue.recommendations.blender.DataSet;
+import com.gurucue.recommendations.blender.DataValue;
+import com.gurucue.recommendations.blender.DuplicateResolver;
+import com.gurucue.recommendations.blender.FilterStatistics;
+import com.gurucue.recommendations.blender.GroupExtractor;
+import com.gurucue.recommendations.blender.KeyExtractor;
+import com.gurucue.recommendations.blender.StatefulFilter;
+import com.gurucue.recommendations.blender.StatelessFilter;
+import com.gurucue.recommendations.blender.StaticFilterResults;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.LongStream;
+
+/**
+ * Tests the DataSet implementation.
+ */
+public class DataSetTests {
+    private static final DuplicateResolver<Item> HIGHER_WEIGHT = (final Item a, final Item b) -> a.weight >= b.weight ? a : b;
+    private static final KeyExtractor<Item> BY_ID = (final Item item) -> item.id;
+    private static final KeyExtractor<Item> COLLIDING = (final Item item) -> item.id & 3L; // many distinct items share a key
+
+    @Test
+    public void testAddResolvesDuplicates() {
+        final DataSet<Item> ds = new DataSet<>(HIGHER_WEIGHT, BY_ID, null);
+        Assert.assertTrue("A new item was not added", ds.add(new Item(1L, 1)));
+        Assert.assertTrue("A heavier duplicate did not replace the existing item", ds.add(new Item(1L, 5)));
+        Assert.assertFalse("A lighter duplicate replaced the existing item", ds.add(new Item(1L, 2)));
+        Assert.assertEquals("Duplicates changed the size", 1, ds.size());
+        Assert.assertEquals("The wrong duplicate was retained", 5, ds.iterator().next().weight);
+    }
+
+    @Test
+    public void testCollidingKeys() {
+        final DataSet.Builder<Item> builder = new DataSet.Builder<>(HIGHER_WEIGHT, COLLIDING, null);
+        for (long id = 0L; id < 1000L; id++) builder.add(new Item(id, 0));
+        builder.add(new Item(500L, 1));
+        final DataSet<Item> ds = builder.build();
+        Assert.assertEquals("Items with colliding keys were lost or duplicated", 1000, ds.size());
+        for (long id = 0L; id < 1000L; id += 3L) {
+            Assert.assertTrue("An item was removed that should have been present: " + id, ds.remove(new Item(id, 0)));
+        }
+        for (long id = 0L; id < 1000L; id++) {
+            Assert.assertEquals("Wrong membership after removal of items with colliding keys: " + id, (id % 3L) != 0L, ds.contains(new Item(id, 0)));
+        }
+    }
+
+    @Test
+    public void testItemsConstructorIndexesItems() {
+        final Item[] items = new Item[] { new Item(1L, 0), null, new Item(2L, 0), new Item(1L, 3) };
+        final DataSet<Item> ds = new DataSet<>(HIGHER_WEIGHT, BY_ID, items, null);
+        Assert.assertEquals("Nulls or duplicates were not skipped", 2, ds.size());
+        Assert.assertTrue("An item given in the constructor cannot be found", ds.contains(new Item(2L, 0)));
+    }
+
+    @Test
+    public void testStatelessFilterAndSort() {
+        final DataSet<Item> ds = dataSet(100);
+        ds.filter((final Item item) -> (item.id % 2L) == 0L);
+        ds.sort((final Item a, final Item b) -> Long.compare(b.id, a.id));
+        Assert.assertEquals("Stateless filter did not remove odd items", 50, ds.size());
+        Assert.assertEquals("Sorting did not order items", 98L, ds.iterator().next().id);
+        Assert.assertTrue("An item cannot be removed after sorting", ds.remove(new Item(50L, 0)));
+        Assert.assertFalse("A removed item is still present after sorting", ds.contains(new Item(50L, 0)));
+        Assert.assertEquals("Wrong size after removal", 49, ds.size());
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        final DataSet<Item> ds = dataSet(100);
+        ds.removeIf((final Item item) -> item.id < 60L); // leaves a sparse array
+        final List<Long> seen = new ArrayList<>();
+        final java.util.Iterator<Item> iterator = ds.iterator();
+        while (iterator.hasNext()) {
+            final Item item = iterator.next();
+            seen.add(item.id);
+            if ((item.id % 2L) == 1L) iterator.remove();
+        }
+        Assert.assertEquals("The iterator skipped or repeated items", 40, seen.size());
+        Assert.assertEquals("Iterator removal did not remove odd items", 20, ds.size());
+        Assert.assertFalse("An item removed by the iterator is still present", ds.contains(new Item(61L, 0)));
+    }
+
+    @Test
+    public void testParallelFiltering() {
+        final DataSet<Item> ds = dataSet(50000).parallelFiltering();
+        ds.remove(new Item(7L, 0)); // a hole before any rejection
+        ds.filter((final Item item) -> (item.id % 3L) != 0L);
+        ds.filter((final Item item) -> item.id < 40000L);
+        Assert.assertEquals("Parallel filtering removed a wrong number of items", 26665, ds.size());
+        long previous = -1L;
+        for (final Item item : ds) {
+            Assert.assertTrue("Parallel filtering did not preserve the order of items", item.id > previous);
+            Assert.assertTrue("An item rejected by parallel filtering is present: " + item.id, ((item.id % 3L) != 0L) && (item.id < 40000L) && (item.id != 7L));
+            previous = item.id;
+        }
+        Assert.assertTrue("An item accepted by parallel filtering is not indexed", ds.contains(new Item(39998L, 0)));
+        Assert.assertFalse("An item rejected by parallel filtering is still indexed", ds.contains(new Item(39999L, 0)));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testAdaptiveFiltering() {
+        final FilterStatistics statistics = new FilterStatistics();
+        final StatelessFilter<Item> expensive = new ExpensiveFilter();
+        final StatelessFilter<Item> selective = new SelectiveFilter();
+        for (int request = 0; request < 2; request++) {
+            final DataSet<Item> ds = dataSet(20000).adaptiveFiltering(statistics);
+            ds.filter(expensive);
+            ds.filter(selective);
+            Assert.assertEquals("Adaptive filtering removed a wrong number of items", 2000, ds.size());
+        }
+        final StatelessFilter<Item>[] order = statistics.order(new StatelessFilter[] { expensive, selective });
+        Assert.assertSame("The selective filter was not moved in front of the expensive one", selective, order[0]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testAdaptiveFilteringByStatisticsKey() {
+        final FilterStatistics statistics = new FilterStatistics();
+        for (int request = 0; request < 2; request++) {
+            // new instances of the same class for each request, distinguished only by their parameters
+            final DataSet<Item> ds = dataSet(20000).adaptiveFiltering(statistics);
+            ds.filter(new ModuloFilter(2L, 200));
+            ds.filter(new ModuloFilter(10L, 0));
+            Assert.assertEquals("Adaptive filtering removed a wrong number of items", 2000, ds.size());
+        }
+        final StatelessFilter<Item> expensive = new ModuloFilter(2L, 200);
+        final StatelessFilter<Item> selective = new ModuloFilter(10L, 0);
+        final StatelessFilter<Item>[] order = statistics.order(new StatelessFilter[] { expensive, selective });
+        Assert.assertSame("Differently parametrized filters of one class were not measured separately", selective, order[0]);
+    }
+
+    @Test
+    public void testStaticFilterResults() {
+        // the "precomputed" results for the first 100 items deliberately differ from the filter
+        final StaticFilterResults<Item> results = new StaticFilterResults<Item>() {
+            @Override
+            public int positionOf(final Item value) {
+                return value.id < 100L ? (int) value.id : -1;
+            }
+
+            @Override
+            public long[] passing(final StatelessFilter<Item> filter) {
+                final long[] bitmap = new long[2];
+                for (int i = 0; i < 100; i += 4) bitmap[i >>> 6] |= 1L << i;
+                return bitmap;
+            }
+        };
+        try (final BlendTrace trace = BlendTrace.begin(true)) {
+            final DataSet<Item> ds = dataSet(200).staticFilterResults(results);
+            ds.filter(new StatelessFilter<Item>() {
+                @Override
+                public Object catalogueStaticKey() {
+                    return "even";
+                }
+
+                @Override
+                public boolean test(final Item item) {
+                    return (item.id % 2L) == 0L;
+                }
+            });
+            ds.filter((final Item item) -> item.id != 4L);
+            Assert.assertEquals("Static filter results were not applied", 74, ds.size());
+            Assert.assertFalse("An item rejected by static filter results is present", ds.contains(new Item(2L, 0)));
+            Assert.assertTrue("An item outside static filter results was not filtered directly", ds.contains(new Item(102L, 0)));
+            Assert.assertFalse("A dynamic filter was not applied after static filter results", ds.contains(new Item(4L, 0)));
+            final StringBuilder log = new StringBuilder();
+            ds.writeLog(log);
+            Assert.assertTrue("The items served from static filter results were not logged", log.indexOf("applied from precomputed results to 100 items, rejecting 75") >= 0);
+        }
+    }
+
+    @Test
+    public void testTraceIsRenderedOnDemand() {
+        final DataSet<Item> top;
+        try (final BlendTrace trace = BlendTrace.begin(true)) {
+            final DataSet<Item> ds = dataSet(100);
+            ds.filter((final Item item) -> item.id < 50L);
+            ds.size();
+            final DataSet<Item> sorted = new DataSet<>(ds).sort((final Item a, final Item b) -> Long.compare(b.id, a.id));
+            top = ds.top(3, (final Item a, final Item b) -> Long.compare(a.id, b.id)).log("custom line\n");
+            final StringBuilder sortedLog = new StringBuilder();
+            sorted.writeLog(sortedLog);
+            final StringBuilder topLog = new StringBuilder();
+            top.writeLog(topLog);
+            Assert.assertTrue("The shared part of the log is missing", sortedLog.toString().startsWith("----- DataSet created from 100 items in "));
+            Assert.assertTrue("The shared part of the log differs between branches", topLog.toString().startsWith(sortedLog.substring(0, sortedLog.indexOf("----- Sorting done"))));
+            Assert.assertTrue("The log of one branch contains events of the other", !topLog.toString().contains("Sorting done") && !sortedLog.toString().contains("Top 3"));
+            Assert.assertTrue("The explicit log line is missing", topLog.toString().endsWith(" ns\ncustom line\n"));
+        }
+        final StringBuilder retained = new StringBuilder();
+        try (final BlendTrace trace = BlendTrace.begin(false)) {
+            top.writeLog(retained);
+            Assert.assertTrue("The log of an earlier blend was discarded by a later blend", retained.toString().endsWith(" ns\ncustom line\n"));
+            final StringBuilder silent = new StringBuilder();
+            dataSet(10).sort((final Item a, final Item b) -> Long.compare(a.id, b.id)).writeLog(silent);
+            Assert.assertEquals("Events were recorded without debugging", 0, silent.length());
+        }
+        final StringBuilder outside = new StringBuilder();
+        dataSet(10).sort((final Item a, final Item b) -> Long.compare(a.id, b.id)).writeLog(outside);
+        Assert.assertEquals("Events were recorded outside of a blend", 0, outside.length());
+        try (final BlendTrace outer = BlendTrace.begin(true)) {
+            try (final BlendTrace inner = BlendTrace.begin(false)) {
+                Assert.assertSame("The inner blend's trace is not current", inner, BlendTrace.current());
+            }
+            Assert.assertSame("The outer blend's trace is not current again after the inner blend", outer, BlendTrace.current());
+        }
+        Assert.assertFalse("A trace remains current after the blend", BlendTrace.current().isEnabled());
+    }
+
+    @Test
+    public void testExplicitLogOutsideOfTrace() throws Exception {
+        final DataSet<Item> ds = dataSet(10).log("first\n");
+        ds.filter((final Item item) -> item.id < 5L);
+        final DataSet<Item> top = ds.top(3, (final Item a, final Item b) -> Long.compare(a.id, b.id)).log("second\n");
+        Assert.assertEquals("An explicit log was dropped outside of a blend", "first\n", log(ds));
+        Assert.assertEquals("Events were recorded outside of a blend, or explicit logs dropped", "first\nsecond\n", log(top));
+        Assert.assertEquals("An explicit log was not continued in another thread", "first\nsecond\nthird\n", ForkJoinPool.commonPool().submit(() -> log(new DataSet<>(top).log("third\n"))).get());
+        Assert.assertEquals("A branch got the log of another branch", "first\nsecond\n", log(top));
+        try (final BlendTrace trace = BlendTrace.begin(false)) {
+            Assert.assertEquals("An explicit log was dropped in a blend that is not debugged", "first\nsecond\nfourth\n", log(new DataSet<>(top).sort((final Item a, final Item b) -> Long.compare(b.id, a.id)).log("fourth\n")));
+        }
+    }
+
+    @Test
+    public void testOptionalFilterDegradedPastDeadline() throws Exception {
+        final StatefulFilter<Item> optional = new StatefulFilter<Item>() {
+            @Override
+            public DataSet<Item> transform(final DataSet<Item> source) {
+                return source.top(1, (final Item a, final Item b) -> Long.compare(a.id, b.id));
+            }
+
+            @Override
+            public boolean isOptional() {
+                return true;
+            }
+        };
+        Assert.assertEquals("An optional filter was not applied without a deadline", 1, dataSet(10).filter(optional).size());
+        try (final BlendTrace trace = BlendTrace.begin(true)) {
+            final DataSet<Item> degraded = dataSet(10).deadline(System.nanoTime() - 1L).filter(optional);
+            Assert.assertEquals("An optional filter was applied past the deadline", 10, degraded.size());
+            final StringBuilder log = new StringBuilder();
+            degraded.writeLog(log);
+            Assert.assertTrue("The degraded filter is not in the log", log.toString().contains(" degraded with -"));
+            Assert.assertEquals("A mandatory filter was not applied past the deadline", 1, dataSet(10).deadline(System.nanoTime() - 1L).filter((final DataSet<Item> source) -> source.top(1, (final Item a, final Item b) -> Long.compare(a.id, b.id))).size());
+            Assert.assertEquals("Another DataSet got the deadline", 1, dataSet(10).filter(optional).size());
+        }
+        final DataSet<Item> late = dataSet(10).deadline(System.nanoTime() - 1L);
+        Assert.assertEquals("A derived DataSet did not inherit the deadline", 5, late.top(5, (final Item a, final Item b) -> Long.compare(a.id, b.id)).filter(optional).size());
+        Assert.assertEquals("A clone did not inherit the deadline", 10, ForkJoinPool.commonPool().submit(() -> new DataSet<>(late).filter(optional).size()).get().intValue());
+        Assert.assertEquals("An optional filter was not applied before the deadline", 1, dataSet(10).deadline(System.nanoTime() + 60000000000L).filter(optional).size());
+    }
+
+    @Test
+    public void testSetAlgebra() {
+        final DataSet<Item> evens = dataSet(20);
+        evens.filter((final Item item) -> (item.id % 2L) == 0L);
+        final DataSet<Item> small = dataSet(10);
+        Assert.assertEquals("Intersection is wrong", 5, new DataSet<>(small).intersect(evens).size());
+        Assert.assertEquals("Subtraction is wrong", 5, new DataSet<>(small).subtract(evens).size());
+        Assert.assertFalse("Subtraction retained an item of the other DataSet", new DataSet<>(small).subtract(evens).contains(new Item(4L, 0)));
+        Assert.assertEquals("Union is wrong", 15, new DataSet<>(small).union(evens).size());
+        final DataSet<Item> clone = new DataSet<>(small);
+        Assert.assertEquals("Intersection with shared storage is wrong", 10, clone.intersect(small).size());
+        Assert.assertEquals("Subtraction of shared storage is wrong", 0, clone.subtract(small).size());
+        Assert.assertEquals("Subtraction of shared storage modified the other DataSet", 10, small.size());
+        Assert.assertEquals("Intersection with keys is wrong", 2, new DataSet<>(small).intersect(new TLongHashSet(new long[] { 1L, 3L, 30L })).size());
+        Assert.assertEquals("Subtraction of keys is wrong", 8, new DataSet<>(small).subtract(new TLongHashSet(new long[] { 1L, 3L, 30L })).size());
+        Assert.assertTrue("Retaining a DataSet did not report a change", new DataSet<>(small).retainAll(evens));
+    }
+
+    @Test
+    public void testLimitPerGroup() {
+        final TLongIntHashMap caps = new TLongIntHashMap();
+        caps.put(0L, 1);
+        final DataSet<Item> ds = dataSet(10).limitPerGroup(GroupExtractor.single((final Item item) -> item.id % 3L), 2, caps);
+        final StringBuilder ids = new StringBuilder();
+        for (final Item item : ds) ids.append(item.id);
+        Assert.assertEquals("Group limits were not applied in order", "01245", ids.toString());
+    }
+
+    @Test
+    public void testMergeAndInterleave() {
+        final DataSet<Item> a = new DataSet<>(HIGHER_WEIGHT, BY_ID, new Item[] { new Item(1L, 9), new Item(2L, 5), new Item(3L, 1) }, null);
+        final DataSet<Item> b = new DataSet<>(HIGHER_WEIGHT, BY_ID, new Item[] { new Item(4L, 8), new Item(2L, 6), new Item(5L, 2) }, null);
+        final StringBuilder merged = new StringBuilder();
+        for (final Item item : DataSet.mergeByScore(4, (final Item item) -> item.weight, a, b)) merged.append(item.id).append(':').append(item.weight).append(' ');
+        Assert.assertEquals("The merge by score is wrong", "1:9 4:8 2:6 5:2 ", merged.toString());
+        final StringBuilder interleaved = new StringBuilder();
+        for (final Item item : DataSet.interleave(4, a, b)) interleaved.append(item.id).append(':').append(item.weight).append(' ');
+        Assert.assertEquals("The round-robin interleave is wrong", "1:9 4:8 2:6 3:1 ", interleaved.toString());
+        final StringBuilder weighted = new StringBuilder();
+        for (final Item item : DataSet.interleave(10, new int[] { 2, 1 }, a, b)) weighted.append(item.id).append(' ');
+        Assert.assertEquals("The weighted interleave is wrong", "1 2 4 3 5 ", weighted.toString());
+        try {
+            DataSet.interleave(10, new int[] { 2 }, a, b);
+            Assert.fail("An interleave with fewer weights than DataSets succeeded");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPagedResults() {
+        final DataSet<Item> ds = dataSet(30);
+        ds.filter((final Item item) -> item.id >= 5L);
+        final BlenderResultStore store = new BlenderResultStore(60000L, 100L);
+        final BlenderResult<Item> first = store.firstPage(ds.result("test"), 10);
+        Assert.assertEquals("The first page has a wrong size", 10, first.dataSet.size());
+        Assert.assertNotNull("The first page has no cursor", first.nextCursor);
+        final BlenderResult<Item> second = store.page(first.nextCursor, 10);
+        Assert.assertEquals("The second page starts at a wrong item", 15L, second.dataSet.iterator().next().id);
+        final BlenderResult<Item> last = store.page(second.nextCursor, 10);
+        Assert.assertEquals("The last page has a wrong size", 5, last.dataSet.size());
+        Assert.assertNull("The last page has a cursor", last.nextCursor);
+        Assert.assertNull("An unknown cursor returned a page", store.page("unknown:10", 10));
+        Assert.assertEquals("A slice beyond the end is not empty", 0, ds.slice(100, 10).size());
+    }
+
+    @Test
+    public void testConcurrentBuilder() {
+        final List<Long> firstOrder = new ArrayList<>();
+        for (int run = 0; run < 3; run++) {
+            final DataSet.ConcurrentBuilder<Item> builder = new DataSet.ConcurrentBuilder<>(HIGHER_WEIGHT, BY_ID, (final Item a, final Item b) -> Integer.compare(a.weight, b.weight), null);
+            LongStream.range(0L, 60000L).parallel().forEach((final long i) -> builder.add(new Item((i * 7919L) % 20000L, (int) (i / 20000L))));
+            final DataSet<Item> ds = builder.build();
+            Assert.assertEquals("Duplicates were not resolved", 20000, ds.size());
+            final List<Long> order = new ArrayList<>();
+            for (final Item item : ds) {
+                Assert.assertEquals("The wrong duplicate was retained", 2, item.weight);
+                order.add(item.id);
+            }
+            if (run == 0) firstOrder.addAll(order);
+            else Assert.assertEquals("The order depends on how items were distributed among threads", firstOrder, order);
+            try {
+                builder.add(new Item(0L, 3));
+                Assert.fail("An item was added after the shards were merged");
+            }
+            catch (IllegalStateException expected) {}
+        }
+    }
+
+    @Test
+    public void testRemovalsWithoutCompaction() {
+        final DataSet<Item> ds = dataSet(1000);
+        for (long id = 0L; id < 1000L; id++) {
+            if ((id % 10L) != 0L) ds.remove(new Item(id, 0));
+        }
+        final Object[] items = ds.toArray();
+        Assert.assertEquals("toArray() returned a wrong number of items", 100, items.length);
+        for (int i = 0; i < items.length; i++) {
+            Assert.assertEquals("toArray() did not skip removed items in order", i * 10L, ((Item) items[i]).id);
+        }
+        for (long id = 1000L; id < 25000L; id++) ds.add(new Item(id, 0)); // reuses slots of removed items when the array is full
+        Assert.assertEquals("Wrong size after adding to a sparse DataSet", 24100, ds.size());
+        Assert.assertTrue("An item is not found after adding to a sparse DataSet", ds.contains(new Item(990L, 0)));
+        final List<Long> spliterated = new ArrayList<>();
+        ds.spliterator().forEachRemaining((final Item item) -> spliterated.add(item.id));
+        Assert.assertEquals("The spliterator of a sparse DataSet returned a wrong number of items", 24100, spliterated.size());
+        Assert.assertEquals("The spliterator did not preserve the order of items", Long.valueOf(24999L), spliterated.get(24099));
+    }
+
+    @Test
+    public void testTopMatchesSort() {
+        final java.util.Random random = new java.util.Random(42L);
+        final DataSet.Builder<Item> builder = new DataSet.Builder<>(HIGHER_WEIGHT, BY_ID, null);
+        for (long id = 0L; id < 5000L; id++) builder.add(new Item(id, random.nextInt(100))); // many ties
+        final DataSet<Item> ds = builder.build();
+        ds.filter((final Item item) -> (item.id % 7L) != 0L);
+        final java.util.Comparator<Item> byWeight = (final Item a, final Item b) -> Integer.compare(b.weight, a.weight);
+        final DataSet<Item> top = ds.top(25, byWeight);
+        final DataSet<Item> topByScore = ds.topByScore(25, (final Item item) -> item.weight);
+        final Object[] expected = new DataSet<>(ds).sort(byWeight).toArray();
+        Assert.assertEquals("top() selected a wrong number of items", 25, top.size());
+        Assert.assertEquals("topByScore() selected a wrong number of items", 25, topByScore.size());
+        final Object[] actual = top.toArray();
+        final Object[] actualByScore = topByScore.toArray();
+        for (int i = 0; i < 25; i++) {
+            Assert.assertSame("top() differs from a stable sort at position " + i, expected[i], actual[i]);
+            Assert.assertSame("topByScore() differs from a stable sort at position " + i, expected[i], actualByScore[i]);
+        }
+        Assert.assertEquals("top() modified the source DataSet", 4285, ds.size());
+        Assert.assertTrue("An item in the top DataSet is not indexed", top.contains(actual[24]));
+        Assert.assertEquals("top() of more items than available did not return all items", 4285, ds.top(10000, byWeight).size());
+        Assert.assertTrue("top(0) is not empty", ds.topByScore(0, (final Item item) -> item.weight).isEmpty());
+    }
+
+    @Test
+    public void testCopyOnWriteClones() {
+        final DataSet<Item> source = dataSet(100);
+        final DataSet<Item> evens = new DataSet<>(source);
+        final DataSet<Item> odds = new DataSet<>(source);
+        evens.filter((final Item item) -> (item.id % 2L) == 0L);
+        odds.removeIf((final Item item) -> (item.id % 2L) == 0L);
+        source.add(new Item(100L, 0));
+        Assert.assertEquals("Filtering a clone changed its size incorrectly", 50, evens.size());
+        Assert.assertEquals("Removing from a clone changed its size incorrectly", 50, odds.size());
+        Assert.assertEquals("Modifying clones changed the source", 101, source.size());
+        Assert.assertFalse("Removal from a clone is visible in another clone", evens.contains(new Item(1L, 0)));
+        Assert.assertTrue("Removal from a clone is visible in the source", source.contains(new Item(1L, 0)));
+        Assert.assertFalse("Adding to the source is visible in a clone", odds.contains(new Item(100L, 0)));
+        source.clear();
+        Assert.assertEquals("Clearing the source emptied a clone", 50, odds.size());
+    }
+
+    @Test
+    public void testReadOnlyView() {
+        final DataSet<Item> source = dataSet(10);
+        source.filter((final Item item) -> item.id < 5L);
+        final DataSet<Item> view = source.readOnlyView();
+        Assert.assertTrue("The view is not marked as read-only", view.isReadOnly());
+        Assert.assertEquals("The view does not reflect applied filters", 5, view.size());
+        try {
+            view.add(new Item(20L, 0));
+            Assert.fail("Adding to a read-only view succeeded");
+        }
+        catch (UnsupportedOperationException expected) {}
+        try {
+            final java.util.Iterator<Item> iterator = view.iterator();
+            iterator.next();
+            iterator.remove();
+            Assert.fail("Removing from a read-only view with an iterator succeeded");
+        }
+        catch (UnsupportedOperationException expected) {}
+        source.remove(new Item(0L, 0));
+        Assert.assertEquals("Modifying the source changed the view", 5, view.size());
+        Assert.assertEquals("Selection from a read-only view failed", 2, view.top(2, (final Item a, final Item b) -> Long.compare(a.id, b.id)).size());
+    }
+
+    static DataSet<Item> dataSet(final int n) {
+        final DataSet.Builder<Item> builder = new DataSet.Builder<>(HIGHER_WEIGHT, BY_ID, null);
+        for (long id = 0L; id < n; id++) builder.add(new Item(id, 0));
+        return builder.build();
+    }
+
+    static String log(final DataSet<?> ds) {
+        final StringBuilder output = new StringBuilder();
+        ds.writeLog(output);
+        return output.toString();
+    }
+
+    static final class Item extends DataValue {
+        final long id;
+        final int weight;
+
+        Item(final long id, final int weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return (other instanceof Item) && (((Item) other).id == id);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (id ^ (id >>> 32));
+        }
+    }
+
+    /** Accepts everything, but takes a while to decide. */
+    static final class ExpensiveFilter implements StatelessFilter<Item> {
+        @Override
+        public boolean test(final Item item) {
+            double x = item.id;
+            for (int i = 0; i < 200; i++) x = Math.sqrt(x + i);
+            return x >= 0.0;
+        }
+
+        @Override
+        public boolean isReorderable() {
+            return true;
+        }
+    }
+
+    /** Accepts items whose ID is divisible by the modulo, after the given amount of work. */
+    static final class ModuloFilter implements StatelessFilter<Item> {
+        private final long modulo;
+        private final int work;
+
+        ModuloFilter(final long modulo, final int work) {
+            this.modulo = modulo;
+            this.work = work;
+        }
+
+        @Override
+        public boolean test(final Item item) {
+            double x = item.id;
+            for (int i = 0; i < work; i++) x = Math.sqrt(x + i);
+            return (x >= 0.0) && ((item.id % modulo) == 0L);
+        }
+
+        @Override
+        public boolean isReorderable() {
+            return true;
+        }
+
+        @Override
+        public Object statisticsKey() {
+            return "modulo " + modulo + " after " + work;
+        }
+    }
+
+    /** Cheaply rejects 9 out of 10 items. */
+    static final class SelectiveFilter implements StatelessFilter<Item> {
+        @Override
+        public boolean test(final Item item) {
+            return (item.id % 10L) == 0L;
+        }
+
+        @Override
+        public boolean isReorderable() {
+            return true;
+        }
+    }
+}
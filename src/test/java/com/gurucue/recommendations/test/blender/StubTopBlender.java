@@ -0,0 +1,81 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test.blender;
+
+import com.gurucue.recommendations.ResponseException;
+import com.gurucue.recommendations.blender.BlendEnvironment;
+import com.gurucue.recommendations.blender.BlendParameters;
+import com.gurucue.recommendations.blender.BlenderResult;
+import com.gurucue.recommendations.blender.DataSet;
+import com.gurucue.recommendations.blender.DataValue;
+import com.gurucue.recommendations.blender.TopBlender;
+import com.gurucue.recommendations.blender.VideoData;
+import com.gurucue.recommendations.entity.product.VideoProduct;
+import com.gurucue.recommendations.test.entitymanager.InMemoryCatalogue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link TopBlender} for testing blenders that wrap another one. Each
+ * blend returns new items of the same videos, with predictions by
+ * position, and can be held back or made to fail.
+ */
+final class StubTopBlender implements TopBlender {
+    /** The number of blends begun. */
+    final AtomicInteger blends = new AtomicInteger();
+    /** When set, blends wait for it to open. */
+    volatile CountDownLatch gate = null;
+    /** When set, blends throw it. */
+    volatile RuntimeException failure = null;
+    private final List<VideoProduct> videos = new ArrayList<>();
+
+    StubTopBlender(final InMemoryCatalogue catalogue, final int size) {
+        for (int i = 0; i < size; i++) videos.add(catalogue.video(i + 1L));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends DataValue> BlenderResult<V> blend(final Class<V> dataClass, final BlendEnvironment environment, final BlendParameters parameters) throws ResponseException {
+        blends.incrementAndGet();
+        final CountDownLatch g = gate;
+        if (g != null) {
+            try {
+                g.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the gate", e);
+            }
+        }
+        final RuntimeException f = failure;
+        if (f != null) throw f;
+        final DataSet.Builder<VideoData> builder = new DataSet.Builder<>((final VideoData value, final VideoData existing) -> existing, VideoData.KEY_EXTRACTOR, null);
+        final int n = videos.size();
+        for (int i = 0; i < n; i++) {
+            final VideoData vd = VideoData.forVideo(videos.get(i), null, Collections.emptyList(), false);
+            vd.prediction = i;
+            builder.add(vd);
+        }
+        return (BlenderResult<V>) new BlenderResult<>(builder.build(), "stub");
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test.blender;
+
+import com.gurucue.recommendations.Transaction;
+import com.gurucue.recommendations.blender.BlendEnvironment;
+import com.gurucue.recommendations.blender.DataSet;
+import com.gurucue.recommendations.blender.DuplicateResolver;
+import com.gurucue.recommendations.blender.ExplanationProvider;
+import com.gurucue.recommendations.blender.ProductPredicate;
+import com.gurucue.recommendations.blender.TagDictionary;
+import com.gurucue.recommendations.blender.TvChannelData;
+import com.gurucue.recommendations.blender.VideoColumns;
+import com.gurucue.recommendations.blender.VideoData;
+import com.gurucue.recommendations.data.AttributeCodes;
+import com.gurucue.recommendations.dto.ConsumerEntity;
+import com.gurucue.recommendations.entity.Attribute;
+import com.gurucue.recommendations.entity.product.GeneralVideoProduct;
+import com.gurucue.recommendations.entity.product.PackageProduct;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import com.gurucue.recommendations.entity.value.BooleanValue;
+import com.gurucue.recommendations.entity.value.LongValue;
+import com.gurucue.recommendations.entity.value.Value;
+import com.gurucue.recommendations.recommender.Recommendation;
+import com.gurucue.recommendations.test.entitymanager.InMemoryCatalogue;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests the VideoData implementation.
+ */
+public class VideoDataTests {
+    private static final long HOUR = 3600000L;
+    private static final long T0 = 1000L * HOUR;
+    private static final long MAX_CATCHUP = 12L * HOUR;
+    private static final long MAX_LIVE = 6L * HOUR;
+    private static final DuplicateResolver<VideoData> PREFER_SUBSCRIBED = (final VideoData value, final VideoData existing) -> value.isSubscribed && !existing.isSubscribed ? value : existing;
+
+    private static VideoData tvProgramme() {
+        return VideoData.forTvProgramme(new TvProgrammeProduct(), Collections.emptyList(), false);
+    }
+
+    @Test
+    public void testTags() {
+        final VideoData vd = tvProgramme();
+        Assert.assertTrue("A new item has tags", vd.tags().isEmpty());
+        final Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 150; i++) expected.add("test-tag-" + i); // spills beyond 64 tag IDs
+        for (final String tag : expected) Assert.assertTrue("A tag was not added: " + tag, vd.addTag(tag));
+        Assert.assertFalse("A duplicate tag was added", vd.addTag("test-tag-0"));
+        Assert.assertTrue("The dictionary has not assigned IDs beyond the first word", TagDictionary.INSTANCE.size() >= 150);
+        Assert.assertEquals("The tags differ from the added ones", expected, vd.tags());
+        Assert.assertFalse("An unknown tag is present", vd.hasTag("test-tag-unknown"));
+        Assert.assertFalse("A null tag is present", vd.hasTag(null));
+        Assert.assertFalse("The tags contain null", vd.tags().contains(null));
+        Assert.assertFalse("A null tag was removed", vd.tags().remove(null));
+        Assert.assertTrue("A tag was not removed", vd.tags().remove("test-tag-100"));
+        expected.remove("test-tag-100");
+        final Iterator<String> i = vd.tags().iterator();
+        while (i.hasNext()) {
+            if (i.next().equals("test-tag-3")) i.remove();
+        }
+        expected.remove("test-tag-3");
+        Assert.assertEquals("The tags differ after removals", expected, new HashSet<>(vd.tags()));
+        Assert.assertEquals("The recommender candidate has the wrong tags", expected, vd.toRecommendProduct().productTag);
+    }
+
+    @Test
+    public void testLazyExplanation() {
+        final Recommendation[] recommendations = {
+                new Recommendation(1L, null, 0.5, "first", null),
+                new Recommendation(2L, null, 0.4, "second", Collections.singletonMap("Because", 1f))
+        };
+        final VideoData vd = tvProgramme();
+        vd.explainLazily(ExplanationProvider.of(recommendations), 1);
+        Assert.assertNull("The explanation was materialised eagerly", vd.explanation);
+        Assert.assertEquals("The explanation was not materialised", "second", vd.explanation());
+        Assert.assertEquals("The formatted explanations were not materialised", Float.valueOf(1f), vd.prettyExplanations.get("Because"));
+        final VideoData other = tvProgramme();
+        other.explainLazily(ExplanationProvider.of(recommendations), 1);
+        Assert.assertNull("The formatted explanations were materialised eagerly", other.prettyExplanations);
+        Assert.assertEquals("The formatted explanations were not materialised on access", Float.valueOf(1f), other.prettyExplanations().get("Because"));
+    }
+
+    @Test
+    public void testChosenTvChannels() {
+        final List<TvChannelData> channels = new ArrayList<>();
+        for (int i = 0; i < 70; i++) channels.add(new TvChannelData(null, null, (i % 3) == 0));
+        final VideoData subscribed = VideoData.forTvProgramme(new TvProgrammeProduct(), channels, true);
+        Assert.assertEquals("Only subscribed channels should be chosen", 24, subscribed.chosenTvChannels.size());
+        for (final TvChannelData channel : subscribed.chosenTvChannels) Assert.assertTrue("An unsubscribed channel was chosen", channel.isSubscribed);
+        Assert.assertTrue("A subscribed channel was not chosen", subscribed.chosenTvChannels.contains(channels.get(69)));
+        Assert.assertTrue("A chosen channel was not removed", subscribed.chosenTvChannels.remove(channels.get(69)));
+        Assert.assertFalse("A removed channel is still chosen", subscribed.isChosen(69));
+        Assert.assertTrue("An available channel was not added", subscribed.chosenTvChannels.add(channels.get(1)));
+        Assert.assertEquals("Wrong number of chosen channels", 24, subscribed.chosenCount());
+        try {
+            subscribed.chosenTvChannels.add(new TvChannelData(null, null, true));
+            Assert.fail("A channel that is not available was chosen");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        final VideoData unsubscribed = VideoData.forTvProgramme(new TvProgrammeProduct(), channels.subList(0, 10), false);
+        Assert.assertEquals("All channels should be chosen", new HashSet<>(channels.subList(0, 10)), unsubscribed.chosenTvChannels);
+    }
+
+    @Test
+    public void testChosenTvChannelPositionOutOfBounds() {
+        for (final int n : new int[] {64, 70}) {
+            final List<TvChannelData> channels = new ArrayList<>();
+            for (int i = 0; i < n; i++) channels.add(new TvChannelData(null, null, true));
+            final VideoData vd = VideoData.forTvProgramme(new TvProgrammeProduct(), channels, true);
+            vd.setChosen(n - 1, false);
+            Assert.assertFalse("The last channel was not removed", vd.isChosen(n - 1));
+            Assert.assertTrue("Removing the last channel removed the first one", vd.isChosen(0));
+            for (final int position : new int[] {-1, n, 128}) {
+                try {
+                    vd.setChosen(position, false);
+                    Assert.fail("A channel at position " + position + " out of " + n + " was removed");
+                }
+                catch (IndexOutOfBoundsException e) {
+                    // expected
+                }
+                try {
+                    vd.isChosen(position);
+                    Assert.fail("A channel at position " + position + " out of " + n + " was looked up");
+                }
+                catch (IndexOutOfBoundsException e) {
+                    // expected
+                }
+            }
+            Assert.assertEquals("A position out of bounds changed the chosen channels", n - 1, vd.chosenCount()); // e.g. by wrapping around to position 0
+        }
+    }
+
+    @Test
+    public void testCopy() {
+        final List<TvChannelData> channels = new ArrayList<>();
+        for (int i = 0; i < 70; i++) channels.add(new TvChannelData(null, null, true));
+        final VideoData vd = VideoData.forTvProgramme(new TvProgrammeProduct(), channels, true);
+        vd.addTag("test-copy-tag");
+        vd.prediction = 0.5;
+        final VideoData copy = vd.copy();
+        Assert.assertEquals("The copy is not equal to the original", vd, copy);
+        Assert.assertEquals("The copy has different chosen tv-channels", vd.chosenTvChannels, copy.chosenTvChannels);
+        Assert.assertEquals("The copy has different tags", vd.tags(), copy.tags());
+        copy.setChosen(69, false);
+        copy.tags().clear();
+        copy.addTag("test-copy-other");
+        copy.prediction = 0.25;
+        Assert.assertTrue("Choosing in the copy affected the original", vd.isChosen(69));
+        Assert.assertEquals("Tagging the copy affected the original", Collections.singleton("test-copy-tag"), vd.tags());
+        Assert.assertEquals("The copy shares the prediction", 0.5, vd.prediction, 0.0);
+        Assert.assertEquals("The copy does not view its own chosen tv-channels", 69, copy.chosenTvChannels.size());
+    }
+
+    @Test
+    public void testColumns() {
+        final InMemoryCatalogue catalogue = new InMemoryCatalogue();
+        final AttributeCodes codes = catalogue.attributeCodes;
+        final DataSet.Builder<VideoData> builder = new DataSet.Builder<>((final VideoData value, final VideoData existing) -> existing, VideoData.KEY_EXTRACTOR, null);
+        for (int i = 0; i < 100; i++) {
+            final Map<Attribute, Value> values = new HashMap<>();
+            values.put(codes.genre, InMemoryCatalogue.strings("genre-" + (i % 70), "genre-" + ((i * 7) % 70))); // spills beyond 64 genre IDs
+            values.put(codes.parentalRating, new LongValue(i % 18, false));
+            values.put(codes.airDate, new LongValue(1000L + i, false));
+            values.put(codes.isAdult, new BooleanValue((i % 10) == 0));
+            final VideoData vd = VideoData.forVideo(catalogue.video(i + 1L, values), null, Collections.emptyList(), false);
+            vd.prediction = (i % 5) / 10.0; // many equal predictions, to check that sorting is stable
+            builder.add(vd);
+        }
+        final DataSet<VideoData> ds = builder.build();
+        final VideoColumns columns = VideoColumns.of(ds);
+        assertColumns(columns);
+        final long[] mask = columns.genreMask("genre-69", "genre-unknown");
+        final List<VideoData> expected = new ArrayList<>();
+        for (final VideoData vd : ds) {
+            if (!vd.video.isAdult && !Arrays.asList(vd.video.genres).contains("genre-69")) expected.add(vd);
+        }
+        final double[] predictions = columns.prediction;
+        columns.retain((final int slot) -> !columns.isAdult(slot) && !columns.hasAnyGenre(slot, mask));
+        Assert.assertEquals("Retaining by columns kept the wrong items", ids(expected), ids(ds));
+        Assert.assertSame("The columns were rebuilt after retaining through them", predictions, columns.refresh().prediction);
+        columns.sortByPrediction();
+        expected.sort(Comparator.comparingDouble((final VideoData vd) -> vd.prediction).reversed());
+        Assert.assertEquals("Sorting by the prediction column is wrong or unstable", ids(expected), ids(ds));
+        assertColumns(columns);
+        // a modification of the DataSet that bypasses the columns makes them stale
+        ds.remove(expected.remove(0));
+        expected.get(expected.size() - 1).prediction = 1.0;
+        columns.refreshPredictions().sortByPrediction();
+        expected.add(0, expected.remove(expected.size() - 1));
+        Assert.assertEquals("Stale columns were not rebuilt", ids(expected), ids(ds));
+        assertColumns(columns);
+    }
+
+    /**
+     * Checks the columns against the items of a compact DataSet, where the
+     * slot of each item is its position.
+     */
+    private static void assertColumns(final VideoColumns columns) {
+        int slot = 0;
+        for (final VideoData vd : columns.dataSet()) {
+            Assert.assertEquals("Wrong prediction in slot " + slot, vd.prediction, columns.prediction[slot], 0.0);
+            Assert.assertEquals("Wrong parental rating in slot " + slot, vd.video.parentalRating, columns.parentalRating[slot]);
+            Assert.assertEquals("Wrong air date in slot " + slot, vd.video.airDate, columns.airDate[slot]);
+            Assert.assertEquals("Wrong adult flag in slot " + slot, vd.video.isAdult, columns.isAdult(slot));
+            for (final String genre : vd.video.genres) Assert.assertTrue("A genre is missing in slot " + slot, columns.hasAnyGenre(slot, columns.genreMask(genre)));
+            Assert.assertFalse("An unknown genre is present in slot " + slot, columns.hasAnyGenre(slot, columns.genreMask("genre-unknown")));
+            slot++;
+        }
+    }
+
+    @Test
+    public void testConcurrentBuild() {
+        final InMemoryCatalogue catalogue = new InMemoryCatalogue();
+        final ConsumerEntity consumer = catalogue(catalogue);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (final Transaction transaction = catalogue.newTransaction()) {
+            final DataSet<VideoData> sequential = VideoData.buildDataSetOfVideosAndTvProgrammes(transaction, catalogue.partner, consumer, PREFER_SUBSCRIBED, T0, MAX_CATCHUP, MAX_LIVE);
+            final DataSet<VideoData> concurrent = VideoData.buildDataSetOfVideosAndTvProgrammes(transaction, catalogue.partner, consumer, PREFER_SUBSCRIBED, T0, MAX_CATCHUP, MAX_LIVE, null, executor);
+            Assert.assertEquals("The concurrent build differs from the sequential one", describe(sequential), describe(concurrent));
+            final IllegalStateException failure = new IllegalStateException("tv-programmes");
+            catalogue.failures.put("tvProgrammesInIntervalForPartner", failure);
+            try {
+                VideoData.buildDataSetOfVideosAndTvProgrammes(transaction, catalogue.partner, consumer, PREFER_SUBSCRIBED, T0, MAX_CATCHUP, MAX_LIVE, null, executor);
+                Assert.fail("The failure of the concurrent scan was not propagated");
+            }
+            catch (IllegalStateException e) {
+                Assert.assertSame("The failure of the concurrent scan was not propagated as is", failure, e);
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDebugBlendWithoutTrace() {
+        final InMemoryCatalogue catalogue = new InMemoryCatalogue();
+        final ConsumerEntity consumer = catalogue(catalogue);
+        final Comparator<VideoData> byId = (final VideoData a, final VideoData b) -> Long.compare(a.video.id, b.video.id);
+        try (final Transaction transaction = catalogue.newTransaction()) {
+            final BlendEnvironment debugged = new BlendEnvironment(catalogue.provider, null, transaction, catalogue.partner, consumer, T0, true);
+            final DataSet<VideoData> ds = VideoData.buildDataSetOfVideosAndTvProgrammes(debugged, PREFER_SUBSCRIBED, MAX_CATCHUP, MAX_LIVE, null, null);
+            ds.filter((final VideoData vd) -> vd.isSubscribed);
+            final String log = DataSetTests.log(ds.log("custom line\n").top(5, byId));
+            Assert.assertTrue("The creation was not recorded: " + log, log.startsWith("----- DataSet created from "));
+            Assert.assertTrue("The build was not recorded: " + log, log.contains("----- Building tv-programme data from "));
+            Assert.assertTrue("The filtering was not recorded: " + log, log.contains("----- Stateless filtering chain done"));
+            Assert.assertTrue("The explicit log is missing: " + log, log.contains("custom line\n"));
+            Assert.assertTrue("The selection was not recorded after the explicit log: " + log, log.indexOf("----- Top 5 of ") > log.indexOf("custom line\n"));
+
+            final BlendEnvironment plain = new BlendEnvironment(catalogue.provider, null, transaction, catalogue.partner, consumer, T0, false);
+            final DataSet<VideoData> silent = VideoData.buildDataSetOfVideosAndTvProgrammes(plain, PREFER_SUBSCRIBED, MAX_CATCHUP, MAX_LIVE, null, null);
+            silent.filter((final VideoData vd) -> vd.isSubscribed);
+            Assert.assertEquals("Events were recorded without debugging, or the explicit log dropped", "custom line\n", DataSetTests.log(silent.log("custom line\n").top(5, byId)));
+        }
+    }
+
+    @Test
+    public void testBlendDeadlineIsApplied() {
+        final InMemoryCatalogue catalogue = new InMemoryCatalogue();
+        final ConsumerEntity consumer = catalogue(catalogue);
+        final Comparator<VideoData> byId = (final VideoData a, final VideoData b) -> Long.compare(a.video.id, b.video.id);
+        try (final Transaction transaction = catalogue.newTransaction()) {
+            final BlendEnvironment exhausted = new BlendEnvironment(catalogue.provider, null, transaction, catalogue.partner, consumer, T0, false, 0L);
+            final DataSet<VideoData> late = VideoData.buildDataSetOfVideosAndTvProgrammes(exhausted, PREFER_SUBSCRIBED, MAX_CATCHUP, MAX_LIVE, null, null);
+            Assert.assertTrue("The deadline of the blend was not applied", late.remainingNanos() <= 0L);
+            Assert.assertTrue("The deadline of the blend was not inherited", late.top(5, byId).remainingNanos() <= 0L);
+            Assert.assertTrue("The deadline of the blend was not applied to videos", VideoData.buildDataSetOfVideos(exhausted, PREFER_SUBSCRIBED).remainingNanos() <= 0L);
+
+            final BlendEnvironment unbounded = new BlendEnvironment(catalogue.provider, null, transaction, catalogue.partner, consumer, T0, false);
+            Assert.assertEquals("A deadline was set without one", Long.MAX_VALUE, VideoData.buildDataSetOfVideos(unbounded, PREFER_SUBSCRIBED).remainingNanos());
+        }
+        try {
+            new BlendEnvironment(catalogue.provider, null, null, catalogue.partner, consumer, T0, false, -1L);
+            Assert.fail("A negative time budget was accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPredicateIsPushedDown() {
+        final InMemoryCatalogue catalogue = new InMemoryCatalogue();
+        final ConsumerEntity consumer = catalogue(catalogue);
+        final ProductPredicate odd = (final GeneralVideoProduct product) -> (product.videoMatchId % 2L) != 0L;
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (final Transaction transaction = catalogue.newTransaction()) {
+            final List<String> expected = new ArrayList<>();
+            for (final VideoData vd : VideoData.buildDataSetOfVideosAndTvProgrammes(transaction, catalogue.partner, consumer, PREFER_SUBSCRIBED, T0, MAX_CATCHUP, MAX_LIVE)) {
+                if ((vd.video.videoMatchId % 2L) != 0L) expected.add(describe(vd));
+            }
+            Assert.assertFalse("There is nothing to reject", expected.isEmpty());
+            for (final Executor e : new Executor[] { null, executor }) {
+                final List<String> actual = new ArrayList<>();
+                for (final VideoData vd : VideoData.buildDataSetOfVideosAndTvProgrammes(transaction, catalogue.partner, consumer, PREFER_SUBSCRIBED, T0, MAX_CATCHUP, MAX_LIVE, odd, e)) {
+                    Assert.assertTrue("A rejected product became an item, with executor " + e, odd.test(vd.video));
+                    actual.add(describe(vd));
+                }
+                Assert.assertEquals("The accepted products differ from the unrestricted build, with executor " + e, expected, actual);
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentBuildCancelsTvProgrammesWhenVideosFail() {
+        final InMemoryCatalogue catalogue = new InMemoryCatalogue();
+        final ConsumerEntity consumer = catalogue(catalogue);
+        final List<Runnable> queued = new ArrayList<>();
+        final IllegalStateException failure = new IllegalStateException("videos");
+        catalogue.failures.put("vodForPartner", failure);
+        try (final Transaction transaction = catalogue.newTransaction()) {
+            VideoData.buildDataSetOfVideosAndTvProgrammes(transaction, catalogue.partner, consumer, PREFER_SUBSCRIBED, T0, MAX_CATCHUP, MAX_LIVE, null, queued::add);
+            Assert.fail("The failure of the video scan was not propagated");
+        }
+        catch (IllegalStateException e) {
+            Assert.assertSame("The failure of the video scan was not propagated as is", failure, e);
+        }
+        Assert.assertEquals("The scan of tv-programmes was not submitted", 1, queued.size());
+        for (final Runnable task : queued) task.run(); // outside of any transaction
+        Assert.assertNull("The scan of tv-programmes ran after the build had failed", catalogue.queries.get("tvProgrammesInIntervalForPartner"));
+    }
+
+    /**
+     * Fills the given catalogue with tv-programmes and videos, some of them
+     * duplicates, and returns a consumer subscribed to a part of it.
+     */
+    private static ConsumerEntity catalogue(final InMemoryCatalogue catalogue) {
+        final TvChannelProduct a = catalogue.tvChannel("a", 24);
+        final TvChannelProduct b = catalogue.tvChannel("b", 0);
+        final PackageProduct basic = catalogue.subscriptionPackage(a);
+        final PackageProduct premium = catalogue.subscriptionPackage(b);
+        for (int i = 0; i < 20; i++) {
+            final long begin = T0 + (i - 10) * HOUR;
+            catalogue.tvProgramme(i + 1L, begin, begin + HOUR, (i % 2) == 0 ? a : b);
+        }
+        for (int i = 0; i < 10; i++) catalogue.video(i + 15L, (i % 2) == 0 ? basic : premium); // the first five duplicate tv-programmes
+        return catalogue.consumer(basic);
+    }
+
+    private static List<String> describe(final DataSet<VideoData> dataSet) {
+        final List<String> result = new ArrayList<>();
+        for (final VideoData vd : dataSet) result.add(describe(vd));
+        return result;
+    }
+
+    private static String describe(final VideoData vd) {
+        return vd.video.id + (vd.isTvProgramme ? " tv-programme" : " video") + (vd.isSubscribed ? " subscribed" : "");
+    }
+
+    private static List<Long> ids(final Iterable<VideoData> items) {
+        final List<Long> result = new ArrayList<>();
+        for (final VideoData vd : items) result.add(vd.video.id);
+        return result;
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test.entitymanager;
+
+import com.gurucue.recommendations.Transaction;
+import com.gurucue.recommendations.blender.DataSet;
+import com.gurucue.recommendations.blender.TvChannelData;
+import com.gurucue.recommendations.blender.VideoData;
+import com.gurucue.recommendations.data.AttributeCodes;
+import com.gurucue.recommendations.data.DataLink;
+import com.gurucue.recommendations.data.DataProvider;
+import com.gurucue.recommendations.dto.ConsumerEntity;
+import com.gurucue.recommendations.dto.RelationConsumerProductEntity;
+import com.gurucue.recommendations.entity.Attribute;
+import com.gurucue.recommendations.entity.Partner;
+import com.gurucue.recommendations.entity.ProductType;
+import com.gurucue.recommendations.entity.product.GeneralVideoProduct;
+import com.gurucue.recommendations.entity.product.Matcher;
+import com.gurucue.recommendations.entity.product.MatcherKey;
+import com.gurucue.recommendations.entity.product.PackageProduct;
+import com.gurucue.recommendations.entity.product.Product;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import com.gurucue.recommendations.entity.product.VideoProduct;
+import com.gurucue.recommendations.entity.product.VodProduct;
+import com.gurucue.recommendations.entity.value.AttributeValues;
+import com.gurucue.recommendations.entity.value.LongValue;
+import com.gurucue.recommendations.entity.value.MultiValue;
+import com.gurucue.recommendations.entity.value.StringValue;
+import com.gurucue.recommendations.entity.value.Value;
+import com.gurucue.recommendations.entitymanager.AttributeManager;
+import com.gurucue.recommendations.entitymanager.ProductManager;
+import com.gurucue.recommendations.entitymanager.TvProgrammeInfo;
+import com.gurucue.recommendations.entitymanager.VideoInfo;
+import com.gurucue.recommendations.type.ValueType;
+import gnu.trove.set.TLongSet;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * An in-memory catalogue of a single partner, for tests: it creates
+ * products without a database and serves them through a
+ * {@link ProductManager} that implements the documented selection rules
+ * directly over the products. Only the methods that select tv-programmes,
+ * videos and TV-channels are supported. Products and TV-programmes may be
+ * added and removed while the catalogue is in use.
+ */
+@SuppressWarnings("deprecation")
+public final class InMemoryCatalogue implements ProductManager {
+    public final Partner partner = new Partner(1L, "test", "test", "", null);
+    public final DataProvider provider;
+    /** The number of queries served, by method name. */
+    public final Map<String, AtomicInteger> queries = Collections.synchronizedMap(new HashMap<>());
+    /** The failures to throw from queries, by method name. */
+    public final Map<String, RuntimeException> failures = Collections.synchronizedMap(new HashMap<>());
+    public final AttributeCodes attributeCodes;
+    private final List<TvChannelProduct> tvChannels = new ArrayList<>();
+    private final List<PackageProduct> packages = new ArrayList<>();
+    private final List<TvProgrammeProduct> tvProgrammes = new ArrayList<>();
+    private final List<VideoProduct> videos = new ArrayList<>();
+    private final IdentityHashMap<VideoProduct, List<PackageProduct>> videoPackages = new IdentityHashMap<>();
+    private final VodProduct vod;
+    private long nextId = 1L;
+
+    public InMemoryCatalogue() {
+        final Map<String, Attribute> attributes = new HashMap<>();
+        final AttributeManager attributeManager = (AttributeManager) Proxy.newProxyInstance(AttributeManager.class.getClassLoader(), new Class<?>[] { AttributeManager.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getByIdentifier":
+                    return attributes.computeIfAbsent((String) args[0], (final String identifier) -> new Attribute((long) (attributes.size() + 1), identifier, ValueType.STRING, false, false, false));
+                case "list":
+                    return new ArrayList<>(attributes.values());
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        attributeCodes = new AttributeCodes(attributeManager);
+        provider = (DataProvider) Proxy.newProxyInstance(DataProvider.class.getClassLoader(), new Class<?>[] { DataProvider.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getAttributeCodes":
+                    return attributeCodes;
+                case "newDataLink":
+                    return newDataLink((DataProvider) proxy);
+                case "close":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        vod = new VodProduct(nextId++, 0L, partner.getId(), "vod", null, null, null, AttributeValues.NO_VALUES, AttributeValues.NO_VALUES, provider);
+    }
+
+    private DataLink newDataLink(final DataProvider dataProvider) {
+        return (DataLink) Proxy.newProxyInstance(DataLink.class.getClassLoader(), new Class<?>[] { DataLink.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getProductManager":
+                    return this;
+                case "getProvider":
+                    return dataProvider;
+                case "close":
+                case "commit":
+                case "rollback":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Opens a transaction in the calling thread, to be closed by the caller.
+     *
+     * @return the new transaction
+     */
+    public Transaction newTransaction() {
+        return Transaction.newTransaction(provider.newDataLink());
+    }
+
+    public synchronized TvChannelProduct tvChannel(final String code, final int catchupHours) {
+        final Map<Attribute, Value> values = new HashMap<>();
+        values.put(attributeCodes.catchupHours, new LongValue(catchupHours, false));
+        final TvChannelProduct tvChannel = new TvChannelProduct(nextId++, 0L, partner.getId(), code, null, null, null, new AttributeValues(values), AttributeValues.NO_VALUES, provider);
+        tvChannels.add(tvChannel);
+        return tvChannel;
+    }
+
+    public synchronized PackageProduct subscriptionPackage(final TvChannelProduct... packagedTvChannels) {
+        final Map<Attribute, Value> values = new HashMap<>();
+        values.put(attributeCodes.tvChannelId, strings(codesOf(packagedTvChannels)));
+        final PackageProduct p = new PackageProduct(nextId++, 0L, partner.getId(), "package-" + nextId, null, null, null, new AttributeValues(values), AttributeValues.NO_VALUES, provider);
+        packages.add(p);
+        return p;
+    }
+
+    /**
+     * Creates a TV-programme and adds it to the catalogue.
+     *
+     * @param videoMatchId the key of the item, equal keys are duplicates
+     * @param beginTimeMillis when the TV-programme begins
+     * @param endTimeMillis when the TV-programme ends
+     * @param playedOn the TV-channels playing the TV-programme
+     * @return the new TV-programme
+     */
+    public TvProgrammeProduct tvProgramme(final long videoMatchId, final long beginTimeMillis, final long endTimeMillis, final TvChannelProduct... playedOn) {
+        final TvProgrammeProduct tvProgramme = newTvProgramme(videoMatchId, beginTimeMillis, endTimeMillis, codesOf(playedOn));
+        add(tvProgramme);
+        return tvProgramme;
+    }
+
+    /**
+     * Creates a TV-programme without adding it to the catalogue.
+     *
+     * @param videoMatchId the key of the item
+     * @param beginTimeMillis when the TV-programme begins
+     * @param endTimeMillis when the TV-programme ends
+     * @param tvChannelCodes the codes of the TV-channels playing the TV-programme, or null to omit the attribute
+     * @return the new TV-programme
+     */
+    public synchronized TvProgrammeProduct newTvProgramme(final long videoMatchId, final long beginTimeMillis, final long endTimeMillis, final String... tvChannelCodes) {
+        final Map<Attribute, Value> values = new HashMap<>();
+        values.put(attributeCodes.beginTime, new LongValue(beginTimeMillis, false));
+        values.put(attributeCodes.endTime, new LongValue(endTimeMillis, false));
+        if (tvChannelCodes != null) values.put(attributeCodes.tvChannel, strings(tvChannelCodes));
+        final Map<Attribute, Value> related = new HashMap<>();
+        related.put(attributeCodes.videoId, new LongValue(videoMatchId, false));
+        return new TvProgrammeProduct(nextId++, 0L, partner.getId(), "tv-programme-" + nextId, null, null, null, new AttributeValues(values), new AttributeValues(related), provider);
+    }
+
+    public synchronized void add(final TvProgrammeProduct tvProgramme) {
+        tvProgrammes.add(tvProgramme);
+    }
+
+    public synchronized void remove(final TvProgrammeProduct tvProgramme) {
+        tvProgrammes.remove(tvProgramme);
+    }
+
+    /**
+     * Creates a video and adds it to the catalogue.
+     *
+     * @param videoMatchId the key of the item, equal keys are duplicates
+     * @param availableIn the packages through which the video is available
+     * @return the new video
+     */
+    public VideoProduct video(final long videoMatchId, final PackageProduct... availableIn) {
+        return video(videoMatchId, Collections.emptyMap(), availableIn);
+    }
+
+    /**
+     * Creates a video with the given attributes and adds it to the catalogue.
+     *
+     * @param videoMatchId the key of the item, equal keys are duplicates
+     * @param attributes the attributes of the video, by {@link #attributeCodes}
+     * @param availableIn the packages through which the video is available
+     * @return the new video
+     */
+    public synchronized VideoProduct video(final long videoMatchId, final Map<Attribute, Value> attributes, final PackageProduct... availableIn) {
+        final Map<Attribute, Value> related = new HashMap<>();
+        related.put(attributeCodes.videoId, new LongValue(videoMatchId, false));
+        final VideoProduct video = new VideoProduct(nextId++, 0L, partner.getId(), "video-" + nextId, null, null, null, new AttributeValues(attributes), new AttributeValues(related), provider);
+        videos.add(video);
+        final List<PackageProduct> list = new ArrayList<>();
+        Collections.addAll(list, availableIn);
+        videoPackages.put(video, list);
+        return video;
+    }
+
+    /**
+     * Creates a consumer subscribed to the given packages since the epoch.
+     *
+     * @param subscriptions the packages that the consumer subscribed to
+     * @return the new consumer
+     */
+    public synchronized ConsumerEntity consumer(final PackageProduct... subscriptions) {
+        final long consumerId = nextId++;
+        final List<RelationConsumerProductEntity> relations = new ArrayList<>();
+        for (final PackageProduct p : subscriptions) relations.add(new RelationConsumerProductEntity(nextId++, consumerId, p.id, 0L, 0L, 0L));
+        return new ConsumerEntity(consumerId, "consumer-" + consumerId, partner.getId(), 0L, 0L, (short) 0, relations, 0L, 0L);
+    }
+
+    private static String[] codesOf(final TvChannelProduct[] tvChannels) {
+        final String[] codes = new String[tvChannels.length];
+        for (int i = 0; i < codes.length; i++) codes[i] = tvChannels[i].partnerProductCode;
+        return codes;
+    }
+
+    public static Value strings(final String... strings) {
+        final Value[] values = new Value[strings.length];
+        for (int i = 0; i < values.length; i++) values[i] = new StringValue(strings[i]);
+        return new MultiValue(values);
+    }
+
+    private void count(final String query) {
+        queries.computeIfAbsent(query, (final String q) -> new AtomicInteger()).incrementAndGet();
+        final RuntimeException failure = failures.get(query);
+        if (failure != null) throw failure;
+    }
+
+    private List<PackageProduct> packagesOf(final TvChannelProduct tvChannel) {
+        final List<PackageProduct> result = new ArrayList<>();
+        for (final PackageProduct p : packages) {
+            for (final String code : p.tvChannelCodes) {
+                if (code.equals(tvChannel.partnerProductCode)) {
+                    result.add(p);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isSubscribed(final List<PackageProduct> packages, final TLongSet subscriptionPackageIds) {
+        for (final PackageProduct p : packages) {
+            if (subscriptionPackageIds.contains(p.id)) return true;
+        }
+        return false;
+    }
+
+    private static boolean playsOn(final TvProgrammeProduct tvProgramme, final TvChannelProduct tvChannel) {
+        if (tvProgramme.tvChannelCodes == null) return false;
+        for (final String code : tvProgramme.tvChannelCodes) {
+            if (code.equals(tvChannel.partnerProductCode)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void tvProgrammesInIntervalForPartner(final Transaction transaction, final Partner partner, final long recommendTimeMillis, final long negativeOffsetMillis, final long positiveOffsetMillis, final TLongSet subscriptionPackageIds, final DataSet.Builder<VideoData> outputBuilder) {
+        count("tvProgrammesInIntervalForPartner");
+        for (final TvProgrammeProduct tvProgramme : tvProgrammes) {
+            final boolean isActiveOrUpcoming = (tvProgramme.endTimeMillis > recommendTimeMillis) && (tvProgramme.beginTimeMillis <= recommendTimeMillis + positiveOffsetMillis);
+            final List<TvChannelData> channels = new ArrayList<>();
+            boolean subscribed = false;
+            for (final TvChannelProduct tvChannel : tvChannels) {
+                if (!playsOn(tvProgramme, tvChannel)) continue;
+                final boolean isCatchup = (tvProgramme.beginTimeMillis <= recommendTimeMillis) && ((recommendTimeMillis - tvProgramme.beginTimeMillis) <= Math.min(negativeOffsetMillis, tvChannel.catchupMillis));
+                if (!isActiveOrUpcoming && !isCatchup) continue;
+                final List<PackageProduct> channelPackages = packagesOf(tvChannel);
+                final boolean channelSubscribed = isSubscribed(channelPackages, subscriptionPackageIds);
+                channels.add(new TvChannelData(tvChannel, channelPackages, channelSubscribed));
+                subscribed |= channelSubscribed;
+            }
+            if (!channels.isEmpty()) outputBuilder.add(VideoData.forTvProgramme(tvProgramme, channels, subscribed));
+        }
+    }
+
+    @Override
+    public synchronized void vodForPartner(final Transaction transaction, final Partner partner, final long recommendTimeMillis, final TLongSet subscriptionPackageIds, final DataSet.Builder<VideoData> outputBuilder) {
+        count("vodForPartner");
+        for (final VideoProduct video : videos) {
+            final List<PackageProduct> p = videoPackages.get(video);
+            outputBuilder.add(VideoData.forVideo(video, vod, p, isSubscribed(p, subscriptionPackageIds)));
+        }
+    }
+
+    @Override
+    public synchronized TvProgrammeProduct tvProgrammeAtTimeForTvChannelAndPartner(final Transaction transaction, final Partner partner, final TvChannelProduct tvChannel, final long timeMillis) {
+        count("tvProgrammeAtTimeForTvChannelAndPartner");
+        for (final TvProgrammeProduct tvProgramme : tvProgrammes) {
+            if (playsOn(tvProgramme, tvChannel) && (tvProgramme.beginTimeMillis <= timeMillis) && (tvProgramme.endTimeMillis > timeMillis)) return tvProgramme;
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized TvProgrammeProduct firstTvProgrammeAfterTimeForTvChannelAndPartner(final Transaction transaction, final Partner partner, final TvChannelProduct tvChannel, final long timeMillis) {
+        count("firstTvProgrammeAfterTimeForTvChannelAndPartner");
+        TvProgrammeProduct first = null;
+        for (final TvProgrammeProduct tvProgramme : tvProgrammes) {
+            if (playsOn(tvProgramme, tvChannel) && (tvProgramme.beginTimeMillis > timeMillis) && ((first == null) || (tvProgramme.beginTimeMillis < first.beginTimeMillis))) first = tvProgramme;
+        }
+        return first;
+    }
+
+    @Override
+    public synchronized List<TvChannelProduct> getTvChannelsForPartner(final Transaction transaction, final Partner partner) {
+        return new ArrayList<>(tvChannels);
+    }
+
+    @Override
+    public synchronized void forEachOverlappingTvProgramme(final Transaction transaction, final Partner partner, final String tvChannelCode, final Long beginTimeMillis, final Long endTimeMillis, final Consumer<TvProgrammeProduct> consumer) {
+        for (final TvProgrammeProduct tvProgramme : new ArrayList<>(tvProgrammes)) {
+            if ((tvProgramme.tvChannelCodes == null) || !Arrays.asList(tvProgramme.tvChannelCodes).contains(tvChannelCode)) continue;
+            if ((tvProgramme.beginTimeMillis < endTimeMillis) && (tvProgramme.endTimeMillis > beginTimeMillis)) consumer.accept(tvProgramme);
+        }
+    }
+
+    @Override
+    public Product getProductByPartnerAndTypeAndCode(final Transaction transaction, final Partner partner, final ProductType productType, final String productCode, final boolean locked) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Product getById(final Transaction transaction, final Partner partner, final long productId, final boolean locked) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deleteByPartnerAndTypeAndCode(final Transaction transaction, final Partner partner, final ProductType productType, final String productCode) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Product delete(final Transaction transaction, final long id) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Product save(final Transaction transaction, final Product product) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<Product> findProductsHavingAttributes(final Transaction transaction, final ProductType productType, final Partner partner, final Map<Attribute, Value> attributeValues) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<Product> removeTvProgrammesOverlappingInterval(final Transaction transaction, final TvProgrammeProduct tvProgramme) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<TvProgrammeInfo> tvProgrammesInIntervalForPartner(final Transaction transaction, final Partner partner, final long recommendTimeMillis, final long negativeOffsetMillis, final long positiveOffsetMillis) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<VideoInfo> vodForPartner(final Transaction transaction, final Partner partner, final long recommendTimeMillis) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public VodProduct getVodCatalogue(final Transaction transaction, final Partner partner, final String catalogueId) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<PackageProduct> getPackagesForCatalogue(final Transaction transaction, final Partner partner, final String catalogueId) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<PackageProduct> getPackagesForTvChannel(final Transaction transaction, final Partner partner, final String tvChannelCode) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Set<Matcher> getMatchers(final Transaction transaction, final MatcherKey key) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setRelatedFieldForAll(final Transaction transaction, final Attribute attribute, final Value oldValue, final Value newValue) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void buildDatasetFromVideos(final Transaction transaction, final Iterable<? extends GeneralVideoProduct> products, final TLongSet subscriptionPackageIds, final DataSet.Builder<VideoData> outputBuilder) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test.entitymanager;
+
+import com.gurucue.recommendations.Timer;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import com.gurucue.recommendations.entitymanager.NowNextCache;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that the now-and-next cache rolls over at programme boundaries
+ * and re-checks its TV-channels, on the real {@link Timer}, with the
+ * schedule laid out relative to the current time.
+ */
+public class NowNextCacheTests {
+    private static final String AT_TIME = "tvProgrammeAtTimeForTvChannelAndPartner";
+    private static final String FIRST_AFTER = "firstTvProgrammeAfterTimeForTvChannelAndPartner";
+    private static final long HOUR = 3600000L;
+    private static final long WAIT_MILLIS = 5000L;
+
+    private final InMemoryCatalogue catalogue = new InMemoryCatalogue();
+    private final TvChannelProduct a = catalogue.tvChannel("a", 0);
+    private final TvChannelProduct b = catalogue.tvChannel("b", 0);
+
+    private int queries(final String query) {
+        final AtomicInteger count = catalogue.queries.get(query);
+        return count == null ? 0 : count.get();
+    }
+
+    /** Waits for the timer to refresh the cache, recognized by the number of queries. */
+    private void awaitQueries(final String query, final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (queries(query) < count) {
+            if (System.currentTimeMillis() > deadline) Assert.fail("The cache was not refreshed within " + WAIT_MILLIS + " ms, queries of " + query + ": " + queries(query));
+            Thread.sleep(10L);
+        }
+    }
+
+    private NowNextCache start(final long recheckMillis) {
+        return NowNextCache.start(catalogue.provider, catalogue.partner, Arrays.asList(a, b), recheckMillis);
+    }
+
+    @Test
+    public void testRollOver() throws InterruptedException {
+        final long t = Timer.currentTimeMillis();
+        final TvProgrammeProduct current = catalogue.tvProgramme(1L, t - HOUR, t + 300L, a);
+        final TvProgrammeProduct next = catalogue.tvProgramme(2L, t + 300L, t + HOUR, a);
+        final TvProgrammeProduct later = catalogue.tvProgramme(3L, t + HOUR, t + 2L * HOUR, a);
+        try (final NowNextCache cache = start(HOUR)) {
+            Assert.assertSame(current, cache.now(a));
+            Assert.assertSame(next, cache.next(a));
+            Assert.assertNull(cache.now(b));
+            Assert.assertNull(cache.next(b));
+            Assert.assertNull("An unknown TV-channel was answered", cache.now(catalogue.tvChannel("x", 0)));
+            Assert.assertEquals(2, queries(AT_TIME));
+            Assert.assertEquals(2, queries(FIRST_AFTER));
+
+            awaitQueries(FIRST_AFTER, 3);
+            Assert.assertSame(next, cache.now(a));
+            Assert.assertSame(later, cache.next(a));
+            Assert.assertEquals("The next TV-programme did not become the current one without a query", 2, queries(AT_TIME));
+            Assert.assertEquals("A TV-channel whose boundary has not passed was refreshed", 3, queries(FIRST_AFTER));
+        }
+    }
+
+    @Test
+    public void testRecheck() throws InterruptedException {
+        final long t = Timer.currentTimeMillis();
+        final TvProgrammeProduct running = catalogue.tvProgramme(1L, t - HOUR, t + HOUR, a);
+        try (final NowNextCache cache = start(200L)) {
+            Assert.assertSame(running, cache.now(a));
+            Assert.assertNull(cache.next(a));
+            Assert.assertNull(cache.now(b));
+
+            // neither TV-channel has a boundary within the re-check interval
+            final TvProgrammeProduct following = catalogue.tvProgramme(2L, t + HOUR, t + 2L * HOUR, a);
+            final TvProgrammeProduct added = catalogue.tvProgramme(3L, t - HOUR, t + HOUR, b);
+            awaitQueries(AT_TIME, 4);
+            awaitQueries(FIRST_AFTER, 4);
+            Assert.assertSame(running, cache.now(a));
+            Assert.assertSame("A long current TV-programme kept its TV-channel from being re-checked", following, cache.next(a));
+            Assert.assertSame("A TV-channel without TV-programmes was not re-checked", added, cache.now(b));
+        }
+    }
+
+    @Test
+    public void testInvalidate() {
+        final long t = Timer.currentTimeMillis();
+        final TvProgrammeProduct current = catalogue.tvProgramme(1L, t - HOUR, t + HOUR, a);
+        try (final NowNextCache cache = start(HOUR)) {
+            Assert.assertSame(current, cache.now(a));
+            catalogue.remove(current);
+            final TvProgrammeProduct replacement = catalogue.tvProgramme(2L, t - HOUR, t + HOUR, a);
+            final TvProgrammeProduct next = catalogue.tvProgramme(3L, t + HOUR, t + 2L * HOUR, b);
+            Assert.assertSame("The cache was refreshed before the boundary", current, cache.now(a));
+            cache.invalidate();
+            Assert.assertEquals("Not all TV-channels were reloaded", 4, queries(AT_TIME));
+            Assert.assertEquals("Not all TV-channels were reloaded", 4, queries(FIRST_AFTER));
+            Assert.assertSame(replacement, cache.now(a));
+            Assert.assertSame(next, cache.next(b));
+        }
+    }
+
+    @Test
+    public void testClose() throws InterruptedException {
+        final long t = Timer.currentTimeMillis();
+        final TvProgrammeProduct current = catalogue.tvProgramme(1L, t - HOUR, t + 100L, a);
+        final TvProgrammeProduct next = catalogue.tvProgramme(2L, t + 100L, t + HOUR, a);
+        final NowNextCache cache = start(100L);
+        Assert.assertSame(current, cache.now(a));
+        cache.close();
+        cache.invalidate();
+        Thread.sleep(400L);
+        Assert.assertEquals("A closed cache was refreshed", 2, queries(AT_TIME));
+        Assert.assertEquals("A closed cache was refreshed", 2, queries(FIRST_AFTER));
+        Assert.assertSame("Lookups no longer answer from the last refresh", next, cache.now(a));
+        Assert.assertNull(cache.next(a));
+        cache.close();
+    }
+
+    @Test
+    public void testInvalidRecheckInterval() {
+        try {
+            start(0L);
+            Assert.fail("A cache was started without a re-check interval");
+        }
+        catch (IllegalArgumentException expected) {}
+        Assert.assertEquals("A cache was loaded without a re-check interval", 0, queries(AT_TIME));
+    }
+}
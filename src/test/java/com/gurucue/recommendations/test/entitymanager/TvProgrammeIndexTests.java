@@ -0,0 +1,223 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.test.entitymanager;
+
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import com.gurucue.recommendations.entitymanager.TvProgrammeIndex;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests the time-window queries of the TV-programme index across
+ * overlapping schedules, and that updates and deletions replace the
+ * affected timelines.
+ */
+public class TvProgrammeIndexTests {
+    private final InMemoryCatalogue catalogue = new InMemoryCatalogue();
+    private final TvProgrammeIndex index = new TvProgrammeIndex();
+
+    /** A new version of the given TV-programme, with the schedule of another one. */
+    private TvProgrammeProduct version(final TvProgrammeProduct tvProgramme, final TvProgrammeProduct scheduledAs, final Timestamp deleted) {
+        return new TvProgrammeProduct(tvProgramme.id, tvProgramme.productTypeId, tvProgramme.partnerId, tvProgramme.partnerProductCode,
+                null, null, deleted, scheduledAs.attributes, scheduledAs.related, catalogue.provider);
+    }
+
+    private List<TvProgrammeProduct> overlapping(final String tvChannelCode, final long beginTimeMillis, final long endTimeMillis) {
+        final List<TvProgrammeProduct> result = new ArrayList<>();
+        index.forEachOverlapping(tvChannelCode, beginTimeMillis, endTimeMillis, result::add);
+        return result;
+    }
+
+    @Test
+    public void testAdjacentSchedule() {
+        final TvProgrammeProduct b1 = catalogue.newTvProgramme(1L, 0L, 100L, "b");
+        final TvProgrammeProduct b2 = catalogue.newTvProgramme(2L, 100L, 200L, "b");
+        final TvProgrammeProduct b3 = catalogue.newTvProgramme(3L, 200L, 300L, "b");
+        index.put(b3);
+        index.put(b1);
+        index.put(b2);
+        Assert.assertEquals(3, index.size());
+
+        Assert.assertNull("Nothing runs before the first TV-programme", index.atTime("b", -1L));
+        Assert.assertSame(b1, index.atTime("b", 0L));
+        Assert.assertSame("The end of a TV-programme is exclusive", b2, index.atTime("b", 100L));
+        Assert.assertSame(b2, index.atTime("b", 199L));
+        Assert.assertSame(b3, index.atTime("b", 299L));
+        Assert.assertNull("Nothing runs after the last TV-programme", index.atTime("b", 300L));
+        Assert.assertNull("An unknown TV-channel has no TV-programmes", index.atTime("x", 100L));
+
+        Assert.assertSame(b1, index.firstAfter("b", -1L));
+        Assert.assertSame("A TV-programme beginning at the given time does not begin after it", b3, index.firstAfter("b", 100L));
+        Assert.assertNull(index.firstAfter("b", 200L));
+        Assert.assertNull(index.firstAfter("x", 0L));
+
+        Assert.assertEquals("The interval is closed at its beginning and open at its end", Arrays.asList(b2), overlapping("b", 100L, 200L));
+        Assert.assertEquals(Arrays.asList(b1, b2, b3), overlapping("b", 99L, 201L));
+        Assert.assertEquals(Arrays.asList(b1, b2, b3), overlapping("b", Long.MIN_VALUE, Long.MAX_VALUE));
+        Assert.assertEquals(Arrays.asList(), overlapping("b", 300L, 400L));
+        Assert.assertEquals(Arrays.asList(), overlapping("b", -100L, 0L));
+        Assert.assertEquals(Arrays.asList(), overlapping("x", 0L, 300L));
+    }
+
+    @Test
+    public void testOverlappingSchedule() {
+        final TvProgrammeProduct p1 = catalogue.newTvProgramme(1L, 0L, 100L, "a");
+        final TvProgrammeProduct marathon = catalogue.newTvProgramme(2L, 50L, 1000L, "a");
+        final TvProgrammeProduct p2 = catalogue.newTvProgramme(3L, 100L, 200L, "a");
+        final TvProgrammeProduct p3 = catalogue.newTvProgramme(4L, 300L, 400L, "a");
+        index.putAll(Arrays.asList(p3, p2, marathon, p1));
+        Assert.assertEquals(4, index.size());
+
+        Assert.assertSame(p1, index.atTime("a", 49L));
+        Assert.assertSame("The TV-programme that began last wins", marathon, index.atTime("a", 50L));
+        Assert.assertSame("The TV-programme that began last wins", p2, index.atTime("a", 150L));
+        Assert.assertSame("The backward scan reaches a long TV-programme begun earlier", marathon, index.atTime("a", 250L));
+        Assert.assertSame(p3, index.atTime("a", 300L));
+        Assert.assertSame("The backward scan reaches a long TV-programme begun earlier", marathon, index.atTime("a", 999L));
+        Assert.assertNull(index.atTime("a", 1000L));
+
+        Assert.assertEquals("A long TV-programme begun earlier overlaps a later interval", Arrays.asList(marathon), overlapping("a", 250L, 300L));
+        Assert.assertEquals("Overlapping TV-programmes come in the order of begin times", Arrays.asList(marathon, p2, p3), overlapping("a", 150L, 301L));
+        Assert.assertEquals(Arrays.asList(p1, marathon), overlapping("a", 0L, 51L));
+        Assert.assertEquals(Arrays.asList(marathon), overlapping("a", 999L, 2000L));
+        Assert.assertEquals(Arrays.asList(), overlapping("a", 1000L, 2000L));
+    }
+
+    @Test
+    public void testMultipleTvChannels() {
+        final TvProgrammeProduct shared = catalogue.newTvProgramme(1L, 0L, 100L, "a", "b");
+        final TvProgrammeProduct own = catalogue.newTvProgramme(2L, 50L, 150L, "b");
+        index.put(shared);
+        index.put(own);
+        Assert.assertSame(shared, index.atTime("a", 75L));
+        Assert.assertSame(own, index.atTime("b", 75L));
+        Assert.assertSame(own, index.firstAfter("b", 0L));
+        Assert.assertNull(index.firstAfter("a", 0L));
+        Assert.assertEquals(2, index.tvChannelCodes().size());
+        Assert.assertTrue(index.tvChannelCodes().contains("a"));
+        Assert.assertTrue(index.tvChannelCodes().contains("b"));
+    }
+
+    @Test
+    public void testUpdate() {
+        final TvProgrammeProduct before = catalogue.newTvProgramme(1L, 100L, 200L, "b");
+        final TvProgrammeProduct next = catalogue.newTvProgramme(2L, 200L, 300L, "b");
+        index.put(before);
+        index.put(next);
+        final TvProgrammeProduct after = version(before, catalogue.newTvProgramme(1L, 500L, 600L, "b", "c"), null);
+        index.put(after);
+        Assert.assertEquals("An update does not add a TV-programme", 2, index.size());
+        Assert.assertNull("The old version was not removed", index.atTime("b", 150L));
+        Assert.assertSame(after, index.atTime("b", 550L));
+        Assert.assertSame(after, index.atTime("c", 550L));
+        Assert.assertSame(next, index.firstAfter("b", 100L));
+        Assert.assertSame(after, index.firstAfter("b", 200L));
+
+        // move it off a TV-channel, which then has no timeline
+        final TvProgrammeProduct moved = version(before, catalogue.newTvProgramme(1L, 500L, 600L, "b"), null);
+        index.put(moved);
+        Assert.assertSame(moved, index.atTime("b", 550L));
+        Assert.assertNull(index.atTime("c", 550L));
+        Assert.assertFalse(index.tvChannelCodes().contains("c"));
+
+        // a bulk that adds and updates the same TV-programme keeps only its last version
+        final TvProgrammeProduct added = catalogue.newTvProgramme(3L, 700L, 800L, "b");
+        final TvProgrammeProduct updated = version(added, catalogue.newTvProgramme(3L, 900L, 1000L, "b"), null);
+        index.putAll(Arrays.asList(added, updated, version(next, catalogue.newTvProgramme(2L, 300L, 400L, "b"), null)));
+        Assert.assertEquals(3, index.size());
+        Assert.assertNull(index.atTime("b", 750L));
+        Assert.assertSame(updated, index.atTime("b", 950L));
+        Assert.assertNull(index.atTime("b", 250L));
+        Assert.assertEquals(next.id, index.atTime("b", 350L).id);
+    }
+
+    @Test
+    public void testDelete() {
+        final TvProgrammeProduct a1 = catalogue.newTvProgramme(1L, 0L, 100L, "a");
+        final TvProgrammeProduct a2 = catalogue.newTvProgramme(2L, 100L, 200L, "a", "b");
+        final TvProgrammeProduct a3 = catalogue.newTvProgramme(3L, 200L, 300L, "a");
+        index.putAll(Arrays.asList(a1, a2, a3));
+
+        index.put(version(a2, a2, new Timestamp(1L)));
+        Assert.assertEquals("A TV-programme saved as deleted was not removed", 2, index.size());
+        Assert.assertNull(index.atTime("a", 150L));
+        Assert.assertFalse("An emptied TV-channel was not removed", index.tvChannelCodes().contains("b"));
+        Assert.assertEquals(Arrays.asList(a1, a3), overlapping("a", 0L, 300L));
+
+        index.remove(a1.id);
+        Assert.assertEquals(1, index.size());
+        Assert.assertNull(index.atTime("a", 50L));
+        Assert.assertSame(a3, index.firstAfter("a", -1L));
+
+        index.remove(a1.id);
+        index.remove(12345L);
+        Assert.assertEquals("Removing an unknown TV-programme changed the index", 1, index.size());
+
+        index.putAll(Arrays.asList(version(a3, a3, new Timestamp(1L))));
+        Assert.assertEquals(0, index.size());
+        Assert.assertTrue(index.tvChannelCodes().isEmpty());
+
+        index.put(version(a1, a1, new Timestamp(1L)));
+        Assert.assertEquals("A deleted TV-programme was added", 0, index.size());
+    }
+
+    @Test
+    public void testWithoutTvChannels() throws Exception {
+        final TvProgrammeProduct omitted = catalogue.newTvProgramme(1L, 0L, 100L, (String[]) null);
+        final TvProgrammeProduct missing = catalogue.newTvProgramme(2L, 0L, 100L, "a");
+        final Field tvChannelCodes = TvProgrammeProduct.class.getField("tvChannelCodes");
+        tvChannelCodes.setAccessible(true);
+        tvChannelCodes.set(missing, null);
+
+        index.put(omitted);
+        index.put(missing);
+        Assert.assertEquals(2, index.size());
+        Assert.assertTrue(index.tvChannelCodes().isEmpty());
+        index.put(version(missing, catalogue.newTvProgramme(2L, 0L, 100L, "a"), null));
+        Assert.assertEquals(missing.id, index.atTime("a", 50L).id);
+        index.put(missing);
+        Assert.assertNull(index.atTime("a", 50L));
+        index.putAll(Arrays.asList(omitted, missing));
+        Assert.assertEquals(2, index.size());
+        index.remove(missing.id);
+        index.remove(omitted.id);
+        Assert.assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testTvChannelCodesAreReadOnly() {
+        final Set<String> codes = index.tvChannelCodes();
+        final TvProgrammeProduct tvProgramme = catalogue.newTvProgramme(1L, 0L, 100L, "a");
+        index.put(tvProgramme);
+        Assert.assertTrue("The view does not reflect later updates", codes.contains("a"));
+        try {
+            codes.remove("a");
+            Assert.fail("The codes of TV-channels can be modified");
+        }
+        catch (UnsupportedOperationException expected) {}
+        Assert.assertSame("The index was modified through its view", tvProgramme, index.atTime("a", 50L));
+    }
+}